@@ -0,0 +1,410 @@
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+
+// Allocation-budget checks for the steady-state step and render cycle:
+//
+//   javac -d bin src/*.java && javac -cp bin -d bin src-bench/*.java
+//   java -cp bin AllocationBudget [--filter TEXT] [--budget BYTES]
+//
+// Each check warms up until the JIT has compiled the path and every buffer has reached its
+// final size, then counts the bytes allocated over the measured operations by the calling
+// thread and by every fork/join worker thread alive after the warm-up, with ThreadMXBean. A
+// check fails when the mean per operation exceeds the budget, 0 bytes unless given, plus any
+// allowance the check makes for bytes the JDK allocates on a path this code cannot avoid. The
+// exit status is 1 if any failed, so a build script can run this after compiling.
+//
+// Checks:
+//   step/M/V       one engine step of 2k particles in boundary mode M, with the default
+//                  half-shell pass or with the variant V (full shell, analytic kernel,
+//                  neighbour lists, sleeping cells, subdivided cells, velocity Verlet with an
+//                  adaptive time step, sleeping requested with Verlet or an adaptive step,
+//                  where it is ignored); the threadsT variants step on a pool of T threads, as
+//                  the GUI does with one per processor
+//   metrics        recording a step into SimulationMetrics
+//   publish/M      re-indexing and copying the engine into a FrameSnapshot, as SimulationLoop
+//                  does before handing a frame to the EDT
+//   render/zoomZ   rasterizing a snapshot into a 1280x720 image: culled cells above
+//                  ParticleRenderer.SPLAT_ZOOM, the density splat below it
+//   panel/V        one GUI frame: a SimulationLoop cycle (commands, step, publish), a mouse
+//                  drag and a wheel zoom through the panel's listeners, and paintComponent
+//                  into a 1280x720 image under headless AWT, with a placement preview or, for
+//                  V = stats, panning and the stats overlay. Swing's own paint() around
+//                  paintComponent, which creates a Graphics per call, is not run. Allowance:
+//                  96 bytes, the three Rectangles DrawImage.blitSurfaceData allocates for the
+//                  frame's one drawImage unless C2 happens to scalar-replace them
+public class AllocationBudget {
+    private static final long SEED = 20240601L;
+    private static final int PARTICLES = 2000;
+    private static final int WARMUP = 1000;
+    private static final int MEASURE = 200;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final long budget;
+    private int failures;
+
+    AllocationBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public static void main(String[] args) {
+        // The panel checks paint into an image; no display is needed
+        System.setProperty("java.awt.headless", "true");
+        String filter = "";
+        long budget = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--filter":
+                    filter = args[++i];
+                    break;
+                case "--budget":
+                    budget = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: java AllocationBudget [--filter TEXT] [--budget BYTES]");
+                    System.exit(2);
+            }
+        }
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM cannot measure per-thread allocation");
+            System.exit(2);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        AllocationBudget checks = new AllocationBudget(budget);
+        System.out.printf("%-28s %14s  %s%n", "check", "bytes/op", "result");
+        for (Check check : checks.checks()) {
+            if (check.name.contains(filter)) {
+                checks.run(check);
+            }
+        }
+        if (checks.failures > 0) {
+            System.out.println(checks.failures + " check(s) over the budget of " + budget + " bytes per operation");
+            System.exit(1);
+        }
+    }
+
+    private List<Check> checks() {
+        List<Check> list = new ArrayList<>();
+        for (SimulationEngine.BoundaryMode mode : SimulationEngine.BoundaryMode.values()) {
+            list.add(new StepCheck("step/" + mode + "/half-shell", mode, engine -> { }));
+        }
+        SimulationEngine.BoundaryMode wrap = SimulationEngine.BoundaryMode.WRAP;
+        list.add(new StepCheck("step/WRAP/full-shell", wrap, engine -> engine.setHalfShell(false)));
+        list.add(new StepCheck("step/WRAP/analytic", wrap, engine -> engine.setTabulatedKernel(false)));
+        list.add(new StepCheck("step/WRAP/lists", wrap, engine -> engine.setNeighbourLists(true)));
+        list.add(new StepCheck("step/WRAP/sleep", wrap, engine -> engine.setSleeping(true)));
+        list.add(new StepCheck("step/WRAP/subdivide", wrap, engine -> engine.setSubdivision(true)));
+        list.add(new StepCheck("step/WRAP/verlet-adaptive", wrap, engine -> {
+            engine.setIntegrator(SimulationEngine.Integrator.VERLET);
+            engine.setAdaptiveTimeStep(true);
+        }));
+        list.add(new StepCheck("step/WRAP/sleep-verlet", wrap, engine -> {
+            engine.setSleeping(true);
+            engine.setIntegrator(SimulationEngine.Integrator.VERLET);
+        }));
+        list.add(new StepCheck("step/WRAP/sleep-adaptive", wrap, engine -> {
+            engine.setSleeping(true);
+            engine.setAdaptiveTimeStep(true);
+        }));
+        for (SimulationEngine.BoundaryMode mode : SimulationEngine.BoundaryMode.values()) {
+            list.add(new StepCheck("step/" + mode + "/threads4", mode, engine -> engine.setThreads(4)));
+        }
+        list.add(new StepCheck("step/WRAP/threads4-full-shell", wrap, engine -> {
+            engine.setThreads(4);
+            engine.setHalfShell(false);
+        }));
+        list.add(new StepCheck("step/WRAP/threads4-lists", wrap, engine -> {
+            engine.setThreads(4);
+            engine.setNeighbourLists(true);
+        }));
+        list.add(new MetricsCheck());
+        for (SimulationEngine.BoundaryMode mode : SimulationEngine.BoundaryMode.values()) {
+            list.add(new PublishCheck("publish/" + mode, mode));
+        }
+        list.add(new RenderCheck("render/zoom0.2", 0.2));
+        list.add(new RenderCheck("render/zoom1", 1.0));
+        list.add(new RenderCheck("render/zoom4", 4.0));
+        list.add(new PanelCheck("panel/place", false));
+        list.add(new PanelCheck("panel/stats", true));
+        return list;
+    }
+
+    private void run(Check check) {
+        check.setUp();
+        for (int i = 0; i < WARMUP; i++) {
+            check.op();
+        }
+        long[] workers = workerIds();
+        long[] before = new long[workers.length];
+        long[] after = new long[workers.length];
+        for (int w = 0; w < workers.length; w++) {
+            before[w] = THREADS.getThreadAllocatedBytes(workers[w]);
+        }
+        long callerBefore = THREADS.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURE; i++) {
+            check.op();
+        }
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - callerBefore;
+        for (int w = 0; w < workers.length; w++) {
+            after[w] = THREADS.getThreadAllocatedBytes(workers[w]);
+        }
+        // A worker that exited in between reports -1 and is left out
+        for (int w = 0; w < workers.length; w++) {
+            if (before[w] >= 0 && after[w] >= 0) {
+                allocated += after[w] - before[w];
+            }
+        }
+        check.tearDown();
+        double perOp = (double) allocated / MEASURE;
+        boolean pass = perOp <= budget + check.allowance;
+        if (!pass) failures++;
+        String result = !pass ? "OVER BUDGET" : check.allowance > 0 ? "ok, " + check.allowance + " allowed" : "ok";
+        System.out.printf(Locale.ROOT, "%-28s %14.1f  %s%n", check.name, perOp, result);
+    }
+
+    private static long[] workerIds() {
+        List<Long> ids = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread instanceof ForkJoinWorkerThread) {
+                ids.add(thread.getId());
+            }
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    // Every species attracts itself and mildly repels the others, so the particles gather into
+    // blobs instead of drifting apart; in INFINITE mode a spreading swarm keeps growing the grid
+    // and would never reach a steady state.
+    private static SimulationEngine newEngine(SimulationEngine.BoundaryMode mode) {
+        SimulationEngine engine = new SimulationEngine(SEED);
+        engine.setBoundaryMode(mode);
+        int m = engine.getSpeciesCount();
+        float[] matrix = new float[m * m];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                matrix[i * m + j] = i == j ? 1.0f : -0.2f;
+            }
+        }
+        engine.setMatrix(m, matrix);
+        engine.generateRandomParticles(PARTICLES);
+        return engine;
+    }
+
+    private interface Setting {
+        void apply(SimulationEngine engine);
+    }
+
+    private abstract static class Check {
+        final String name;
+        // Bytes per op allocated inside the JDK on a path with no allocation-free alternative
+        final long allowance;
+
+        Check(String name) {
+            this(name, 0);
+        }
+
+        Check(String name, long allowance) {
+            this.name = name;
+            this.allowance = allowance;
+        }
+
+        abstract void setUp();
+
+        abstract void op();
+
+        void tearDown() {
+        }
+    }
+
+    // One op is one engine step.
+    private static final class StepCheck extends Check {
+        private final SimulationEngine.BoundaryMode mode;
+        private final Setting setting;
+        private SimulationEngine engine;
+
+        StepCheck(String name, SimulationEngine.BoundaryMode mode, Setting setting) {
+            super(name);
+            this.mode = mode;
+            this.setting = setting;
+        }
+
+        @Override
+        void setUp() {
+            engine = newEngine(mode);
+            setting.apply(engine);
+        }
+
+        @Override
+        void op() {
+            engine.step(1);
+        }
+
+        @Override
+        void tearDown() {
+            engine.setThreads(1);
+        }
+    }
+
+    // One op records the stats of the last step; the engine steps untimed in between.
+    private static final class MetricsCheck extends Check {
+        private final SimulationMetrics metrics = new SimulationMetrics();
+        private SimulationEngine engine;
+
+        MetricsCheck() {
+            super("metrics");
+        }
+
+        @Override
+        void setUp() {
+            engine = newEngine(SimulationEngine.BoundaryMode.WRAP);
+            engine.step(1);
+        }
+
+        @Override
+        void op() {
+            metrics.recordStep(engine);
+        }
+    }
+
+    // One op is a step, which is not counted separately here, plus the snapshot copy.
+    private static final class PublishCheck extends Check {
+        private final SimulationEngine.BoundaryMode mode;
+        private final FrameSnapshot snapshot = new FrameSnapshot();
+        private SimulationEngine engine;
+
+        PublishCheck(String name, SimulationEngine.BoundaryMode mode) {
+            super(name);
+            this.mode = mode;
+        }
+
+        @Override
+        void setUp() {
+            engine = newEngine(mode);
+        }
+
+        @Override
+        void op() {
+            engine.step(1);
+            engine.ensureCellIndex();
+            snapshot.copyFrom(engine);
+        }
+    }
+
+    // One op is one frame of a live, stepping simulation.
+    private static final class RenderCheck extends Check {
+        private static final int WIDTH = 1280;
+        private static final int HEIGHT = 720;
+
+        private final double zoom;
+        private final ParticleRenderer renderer = new ParticleRenderer();
+        private final FrameSnapshot snapshot = new FrameSnapshot();
+        private int[] palette;
+        private SimulationEngine engine;
+
+        RenderCheck(String name, double zoom) {
+            super(name);
+            this.zoom = zoom;
+        }
+
+        @Override
+        void setUp() {
+            engine = newEngine(SimulationEngine.BoundaryMode.WRAP);
+            palette = ParticleRenderer.speciesPalette(engine.getSpeciesCount());
+        }
+
+        @Override
+        void op() {
+            engine.step(1);
+            engine.ensureCellIndex();
+            snapshot.copyFrom(engine);
+            renderer.begin(WIDTH, HEIGHT, 0);
+            renderer.drawParticles(snapshot.positionsX, snapshot.positionsY, snapshot.colors,
+                    snapshot.groups, snapshot.groupEnd, snapshot.groupBounds, palette, 0.5, 0.5, zoom);
+        }
+    }
+
+    // One op is one frame of the GUI, driven on this thread in place of the simulation thread
+    // and the EDT. SimulationPanel lives in ParticleLife.java.
+    @SuppressWarnings("auxiliaryclass")
+    private static final class PanelCheck extends Check {
+        private static final int WIDTH = 1280;
+        private static final int HEIGHT = 720;
+        // Three java.awt.Rectangles per drawImage, see the header
+        private static final long BLIT_ALLOWANCE = 96;
+
+        private final boolean stats;
+        private final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        private final MouseEvent[] drags = new MouseEvent[2];
+        private final MouseWheelEvent[] wheels = new MouseWheelEvent[2];
+        private SimulationLoop loop;
+        private Consumer<Graphics> paint;
+        private MouseMotionListener motion;
+        private MouseWheelListener wheel;
+        private Graphics2D g;
+        private int frame;
+
+        PanelCheck(String name, boolean stats) {
+            super(name, BLIT_ALLOWANCE);
+            this.stats = stats;
+        }
+
+        @Override
+        void setUp() {
+            SimulationEngine engine = newEngine(SimulationEngine.BoundaryMode.WRAP);
+            loop = new SimulationLoop(engine);
+            SimulationPanel panel = new SimulationPanel(loop, engine.getSpeciesCount());
+            paint = panel::paintComponent;
+            panel.setSize(WIDTH, HEIGHT);
+            if (stats) {
+                panel.toggleStats();
+            }
+            g = image.createGraphics();
+
+            // The right button pans; the left one drags out a placement, previewed every frame
+            // and never released
+            int button = stats ? MouseEvent.BUTTON3 : MouseEvent.BUTTON1;
+            MouseListener mouse = panel.getMouseListeners()[0];
+            motion = panel.getMouseMotionListeners()[0];
+            wheel = panel.getMouseWheelListeners()[0];
+            mouse.mousePressed(new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, 0, 0, 600, 300, 1, false, button));
+            for (int i = 0; i < 2; i++) {
+                drags[i] = new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, 0, 0, 640 + 40 * i, 360 + 20 * i,
+                        1, false, button);
+                wheels[i] = new MouseWheelEvent(panel, MouseEvent.MOUSE_WHEEL, 0, 0, 500 + 100 * i, 400, 0, false,
+                        MouseWheelEvent.WHEEL_UNIT_SCROLL, 1, 2 * i - 1);
+            }
+        }
+
+        @Override
+        void op() {
+            loop.cycle(1);
+            motion.mouseDragged(drags[frame & 1]);
+            wheel.mouseWheelMoved(wheels[frame & 1]);
+            paint.accept(g);
+            frame++;
+        }
+
+        @Override
+        void tearDown() {
+            g.dispose();
+        }
+    }
+}
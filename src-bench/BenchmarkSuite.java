@@ -0,0 +1,372 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Seeded, reproducible benchmarks for the stepping and rendering hot paths:
+//
+//   javac -d bin src/*.java && javac -cp bin -d bin src-bench/*.java
+//   java -cp bin BenchmarkSuite [--filter TEXT] [--threads T] [--quick] [--csv]
+//
+// The engine classes are package-private in the default package, which JMH-generated code
+// cannot reach, so this follows JMH's method in plain Java instead: untimed set-up, timed warmup
+// iterations that are discarded, then measured iterations reported as mean and standard
+// deviation per operation. Every iteration starts again from the state captured at set-up, so
+// each measures the same fixed workload however long the run.
+//
+// Workloads:
+//   step/scaling/N  INFINITE mode at constant density (10,000 per unit area), N = 1k .. 500k
+//   step/mode/M     10k particles in the unit square for each BoundaryMode
+//   step/density/D  10k particles, WRAP, uniform versus clustered; the clustered state is
+//                   the same seed stepped until self-attracting species have collapsed into blobs
+//   step/lists/S/P  10k particles, WRAP, settled (the clustered state above) or chaotic
+//                   (strong random matrix, still churning), searched with the grid (P = grid)
+//                   or with Verlet neighbour lists (P = lists); the detail column gives the
+//                   share of steps that rebuilt the lists
+//   step/subdivide/N/P  N particles, WRAP, the clustered state above, with the plain grid
+//                   (P = grid) or with crowded cells split into sub-cells (P = subdivided);
+//                   the detail column gives the cells divided per step. Run with --threads to
+//                   see the strips balanced by pair count
+//   render/N/zoomZ  rasterizing a snapshot of N particles (WRAP, uniform) into a 1280x720
+//                   offscreen image; below ParticleRenderer.SPLAT_ZOOM this is the density
+//                   splat, above it only cells overlapping the viewport are drawn; the detail
+//                   column gives the share of particles in drawn cells
+public class BenchmarkSuite {
+    private static final long SEED = 20240601L;
+    private static final int DENSITY = 10000;
+    private static final int[] SCALING_COUNTS = {1000, 5000, 10000, 50000, 100000, 500000};
+
+    private final int threads;
+    private final int warmupIterations;
+    private final int measureIterations;
+    private final long iterationNanos;
+    private final boolean csv;
+
+    // Keeps results alive so the JIT cannot discard the measured work
+    private long sink;
+
+    BenchmarkSuite(int threads, boolean quick, boolean csv) {
+        this.threads = threads;
+        this.warmupIterations = quick ? 1 : 3;
+        this.measureIterations = quick ? 3 : 5;
+        this.iterationNanos = quick ? 300_000_000L : 1_000_000_000L;
+        this.csv = csv;
+    }
+
+    public static void main(String[] args) {
+        String filter = "";
+        int threads = 1;
+        boolean quick = false;
+        boolean csv = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--filter":
+                    filter = args[++i];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--quick":
+                    quick = true;
+                    break;
+                case "--csv":
+                    csv = true;
+                    break;
+                default:
+                    System.err.println("Usage: java BenchmarkSuite [--filter TEXT] [--threads T] [--quick] [--csv]");
+                    System.exit(2);
+            }
+        }
+
+        BenchmarkSuite suite = new BenchmarkSuite(threads, quick, csv);
+        List<Benchmark> benchmarks = suite.benchmarks();
+        suite.printHeader();
+        for (Benchmark b : benchmarks) {
+            if (b.name.contains(filter)) {
+                suite.run(b);
+            }
+        }
+    }
+
+    private List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+        for (int n : SCALING_COUNTS) {
+            list.add(new StepBenchmark("step/scaling/" + n, () -> constantDensity(n)));
+        }
+        for (SimulationEngine.BoundaryMode mode : SimulationEngine.BoundaryMode.values()) {
+            list.add(new StepBenchmark("step/mode/" + mode, () -> uniform(10000, mode)));
+        }
+        list.add(new StepBenchmark("step/density/uniform", () -> uniform(10000, SimulationEngine.BoundaryMode.WRAP)));
+        list.add(new StepBenchmark("step/density/clustered", () -> clustered(10000)));
+        list.add(new StepBenchmark("step/lists/settled/grid", () -> clustered(10000)));
+        list.add(new StepBenchmark("step/lists/settled/lists", () -> withLists(clustered(10000))));
+        list.add(new StepBenchmark("step/lists/chaotic/grid", () -> chaotic(10000)));
+        list.add(new StepBenchmark("step/lists/chaotic/lists", () -> withLists(chaotic(10000))));
+        for (int n : new int[] {10000, 50000}) {
+            list.add(new StepBenchmark("step/subdivide/" + n + "/grid", () -> clustered(n)));
+            list.add(new StepBenchmark("step/subdivide/" + n + "/subdivided", () -> withSubdivision(clustered(n))));
+        }
+        list.add(new RenderBenchmark("render/50000/zoom0.2", 50000, 0.2));
+        list.add(new RenderBenchmark("render/50000/zoom1", 50000, 1.0));
+        list.add(new RenderBenchmark("render/50000/zoom4", 50000, 4.0));
+        list.add(new RenderBenchmark("render/50000/zoom10", 50000, 10.0));
+        list.add(new RenderBenchmark("render/500000/zoom0.2", 500000, 0.2));
+        list.add(new RenderBenchmark("render/500000/zoom1", 500000, 1.0));
+        list.add(new RenderBenchmark("render/500000/zoom10", 500000, 10.0));
+        return list;
+    }
+
+    private SimulationEngine newEngine(SimulationEngine.BoundaryMode mode) {
+        SimulationEngine engine = new SimulationEngine(SEED);
+        engine.setBoundaryMode(mode);
+        engine.setThreads(threads);
+        return engine;
+    }
+
+    private SimulationEngine uniform(int n, SimulationEngine.BoundaryMode mode) {
+        SimulationEngine engine = newEngine(mode);
+        engine.generateRandomParticles(n);
+        return engine;
+    }
+
+    // n particles spread over a square sized so that there are DENSITY per unit area
+    private SimulationEngine constantDensity(int n) {
+        SimulationEngine engine = newEngine(SimulationEngine.BoundaryMode.INFINITE);
+        double side = Math.sqrt((double) n / DENSITY);
+        Random rand = new Random(SEED);
+        for (int i = 0; i < n; i++) {
+            engine.addParticle(rand.nextInt(engine.getSpeciesCount()), rand.nextDouble() * side, rand.nextDouble() * side);
+        }
+        return engine;
+    }
+
+    // Strong self-attraction and mild mutual repulsion make every species clump within a few
+    // hundred steps.
+    private SimulationEngine clustered(int n) {
+        SimulationEngine engine = uniform(n, SimulationEngine.BoundaryMode.WRAP);
+        int m = engine.getSpeciesCount();
+        Random rand = new Random(SEED);
+        float[] matrix = new float[m * m];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                matrix[i * m + j] = i == j ? 1.0f : (float) (rand.nextDouble() * 0.6 - 0.4);
+            }
+        }
+        engine.setMatrix(m, matrix);
+        engine.step(400);
+        return engine;
+    }
+
+    // Strong, asymmetric attractions keep clusters chasing each other instead of settling.
+    private SimulationEngine chaotic(int n) {
+        SimulationEngine engine = uniform(n, SimulationEngine.BoundaryMode.WRAP);
+        int m = engine.getSpeciesCount();
+        Random rand = new Random(SEED);
+        float[] matrix = new float[m * m];
+        for (int i = 0; i < m * m; i++) {
+            matrix[i] = (float) (rand.nextDouble() * 2 - 1);
+        }
+        engine.setMatrix(m, matrix);
+        engine.step(400);
+        return engine;
+    }
+
+    private static SimulationEngine withLists(SimulationEngine engine) {
+        engine.setNeighbourLists(true);
+        return engine;
+    }
+
+    private static SimulationEngine withSubdivision(SimulationEngine engine) {
+        engine.setSubdivision(true);
+        return engine;
+    }
+
+    private void printHeader() {
+        if (csv) {
+            System.out.println("benchmark,ops,mean_ms,stddev_ms,neighbours_per_particle,detail");
+        } else {
+            System.out.printf("threads=%d warmup=%dx%dms measure=%dx%dms%n", threads,
+                    warmupIterations, iterationNanos / 1_000_000, measureIterations, iterationNanos / 1_000_000);
+            System.out.printf("%-32s %8s %12s %10s %12s  %s%n", "benchmark", "ops", "ms/op", "+-", "neighbours", "detail");
+        }
+    }
+
+    private void run(Benchmark b) {
+        b.setUp();
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(b);
+        }
+        double[] msPerOp = new double[measureIterations];
+        long totalOps = 0;
+        for (int i = 0; i < measureIterations; i++) {
+            long[] result = iteration(b);
+            totalOps += result[1];
+            msPerOp[i] = result[0] / 1e6 / result[1];
+        }
+        double mean = 0;
+        for (double v : msPerOp) mean += v;
+        mean /= msPerOp.length;
+        double var = 0;
+        for (double v : msPerOp) var += (v - mean) * (v - mean);
+        double stddev = msPerOp.length > 1 ? Math.sqrt(var / (msPerOp.length - 1)) : 0;
+
+        String extra = b.neighbours() < 0 ? "" : String.format(Locale.ROOT, "%.1f", b.neighbours());
+        if (csv) {
+            System.out.printf(Locale.ROOT, "%s,%d,%.4f,%.4f,%s,%s%n", b.name, totalOps, mean, stddev, extra, b.detail());
+        } else {
+            System.out.printf(Locale.ROOT, "%-32s %8d %12.3f %10.3f %12s  %s%n", b.name, totalOps, mean, stddev, extra, b.detail());
+        }
+        b.tearDown();
+        if (sink == 42) System.out.print("");
+    }
+
+    // Returns {elapsed nanos, operations}
+    private long[] iteration(Benchmark b) {
+        b.reset();
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += b.op();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return new long[] {elapsed, ops};
+    }
+
+    private abstract static class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        abstract void setUp();
+
+        // Untimed, before every iteration
+        abstract void reset();
+
+        abstract long op();
+
+        // Candidate neighbours per particle and step, or -1 when not applicable
+        double neighbours() {
+            return -1;
+        }
+
+        // Free-form extra result, or empty
+        String detail() {
+            return "";
+        }
+
+        void tearDown() {
+        }
+    }
+
+    private interface EngineFactory {
+        SimulationEngine create();
+    }
+
+    // One op is one engine step.
+    private static final class StepBenchmark extends Benchmark {
+        private final EngineFactory factory;
+        private final SimulationState initial = new SimulationState();
+        private SimulationEngine engine;
+        private long steps;
+        private long pairs;
+        private long divided;
+
+        StepBenchmark(String name, EngineFactory factory) {
+            super(name);
+            this.factory = factory;
+        }
+
+        @Override
+        void setUp() {
+            engine = factory.create();
+            initial.captureFrom(engine);
+        }
+
+        @Override
+        void reset() {
+            initial.applyTo(engine);
+        }
+
+        @Override
+        long op() {
+            long before = engine.getPairEvaluations();
+            engine.step(1);
+            pairs += engine.getPairEvaluations() - before;
+            divided += engine.getStepStats().dividedCells;
+            steps++;
+            return engine.getStepCount();
+        }
+
+        @Override
+        double neighbours() {
+            return (double) pairs / Math.max(1, steps) / Math.max(1, engine.getParticleCount());
+        }
+
+        @Override
+        String detail() {
+            if (engine.isSubdivision()) {
+                return String.format(Locale.ROOT, "divided %.1f", (double) divided / Math.max(1, steps));
+            }
+            if (!engine.isNeighbourLists()) return "";
+            return String.format(Locale.ROOT, "rebuilds %.1f%%",
+                    100.0 * engine.getNeighbourListBuilds() / Math.max(1, engine.getNeighbourListSteps()));
+        }
+
+        @Override
+        void tearDown() {
+            engine.setThreads(1);
+            engine = null;
+        }
+    }
+
+    // One op is one frame: clear plus rasterizing the particles of a published snapshot, grouped
+    // by cell as the panel gets them. The camera sits on the centre of the unit square.
+    private final class RenderBenchmark extends Benchmark {
+        private static final int WIDTH = 1280;
+        private static final int HEIGHT = 720;
+
+        private final int count;
+        private final double zoom;
+        private final ParticleRenderer renderer = new ParticleRenderer();
+        private final int[] palette = new int[SimulationEngine.DEFAULT_SPECIES];
+        private final FrameSnapshot snapshot = new FrameSnapshot();
+        private int drawn;
+
+        RenderBenchmark(String name, int count, double zoom) {
+            super(name);
+            this.count = count;
+            this.zoom = zoom;
+        }
+
+        @Override
+        void setUp() {
+            SimulationEngine engine = uniform(count, SimulationEngine.BoundaryMode.WRAP);
+            engine.ensureCellIndex();
+            snapshot.copyFrom(engine);
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = 0x204060 * (i + 1) & 0xFFFFFF;
+            }
+        }
+
+        @Override
+        void reset() {
+        }
+
+        @Override
+        long op() {
+            renderer.begin(WIDTH, HEIGHT, 0);
+            drawn = renderer.drawParticles(snapshot.positionsX, snapshot.positionsY, snapshot.colors,
+                    snapshot.groups, snapshot.groupEnd, snapshot.groupBounds, palette, 0.5, 0.5, zoom);
+            return renderer.getImage().getRGB(WIDTH / 2, HEIGHT / 2);
+        }
+
+        @Override
+        String detail() {
+            return String.format(Locale.ROOT, "drawn %.1f%%", 100.0 * drawn / count);
+        }
+    }
+}
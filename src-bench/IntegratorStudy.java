@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Accuracy against cost for the time integrators:
+//
+//   javac -d bin src/*.java && javac -cp bin -d bin src-bench/*.java
+//   java -cp bin IntegratorStudy [--particles N] [--time T] [--warmup K] [--seed S] [--threads T] [--sleep]
+//
+// Every run starts from the same seeded WRAP state, stepped K Euler steps past the random start
+// so clusters are forming, and is integrated to the same simulated time T. The error of a run is
+// the RMS distance of its particles from a reference run, velocity Verlet at DT / 16, under the
+// minimum-image convention. Throughput is simulated time per wall second, best of a few timed
+// repeats.
+//
+// The last table matches accuracy: for fixed-step Euler at DT, the current default, and for the
+// fastest run of each other kind whose error is no larger, it gives the throughput relative to
+// Euler at DT. Particle life is chaotic, so all errors grow with T; compare runs at the same T.
+//
+// With --sleep every run, the reference included, asks for sleeping cells; only fixed-step Euler
+// runs use them, the others ignore the setting.
+public class IntegratorStudy {
+    private static final int REPEATS = 3;
+
+    private final SimulationState start = new SimulationState();
+    private final int threads;
+    private final double time;
+    private final boolean sleep;
+    private float[] referenceX;
+    private float[] referenceY;
+
+    IntegratorStudy(int threads, double time, boolean sleep) {
+        this.threads = threads;
+        this.time = time;
+        this.sleep = sleep;
+    }
+
+    public static void main(String[] args) {
+        int particles = 3000;
+        double time = 1.0;
+        int warmup = 100;
+        long seed = 20240601L;
+        int threads = 1;
+        boolean sleep = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--particles":
+                    particles = Integer.parseInt(args[++i]);
+                    break;
+                case "--time":
+                    time = Double.parseDouble(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--sleep":
+                    sleep = true;
+                    break;
+                default:
+                    System.err.println("Usage: java IntegratorStudy [--particles N] [--time T] [--warmup K] [--seed S] [--threads T] [--sleep]");
+                    System.exit(2);
+            }
+        }
+
+        IntegratorStudy study = new IntegratorStudy(threads, time, sleep);
+        SimulationEngine engine = new SimulationEngine(seed);
+        engine.generateRandomParticles(particles);
+        engine.step(warmup);
+        study.start.captureFrom(engine);
+        study.run();
+    }
+
+    private void run() {
+        Config reference = new Config("reference", SimulationEngine.Integrator.VERLET, SimulationEngine.DT / 16, 0);
+        SimulationEngine engine = integrate(reference);
+        referenceX = new float[engine.getParticleCount()];
+        referenceY = new float[engine.getParticleCount()];
+        engine.copyPositions(referenceX, referenceY);
+
+        List<Config> configs = new ArrayList<>();
+        double dt = SimulationEngine.DT;
+        for (double scale : new double[] {0.25, 0.5, 1, 2, 4}) {
+            configs.add(new Config("euler", SimulationEngine.Integrator.EULER, dt * scale, 0));
+        }
+        for (double scale : new double[] {0.5, 1, 2, 4, 8}) {
+            configs.add(new Config("verlet", SimulationEngine.Integrator.VERLET, dt * scale, 0));
+        }
+        for (double tolerance : new double[] {0.2, 0.4, 0.8, 1.6, 3.2}) {
+            configs.add(new Config("euler-adaptive", SimulationEngine.Integrator.EULER, dt, tolerance));
+            configs.add(new Config("verlet-adaptive", SimulationEngine.Integrator.VERLET, dt, tolerance));
+        }
+
+        System.out.printf(Locale.ROOT, "%d particles, T = %.2f, error = RMS distance from the reference run%n",
+                start.count, time);
+        System.out.printf("%-16s %10s %7s %12s %14s%n", "run", "dt/tol", "steps", "error", "time/wall s");
+        for (Config c : configs) {
+            measure(c);
+            System.out.printf(Locale.ROOT, "%-16s %10.4f %7d %12.3e %14.3f%n", c.name,
+                    c.tolerance > 0 ? c.tolerance : c.timeStep, c.steps, c.error, c.throughput);
+        }
+
+        Config baseline = null;
+        for (Config c : configs) {
+            if (c.name.equals("euler") && c.timeStep == dt) baseline = c;
+        }
+        System.out.println();
+        System.out.printf(Locale.ROOT, "At the accuracy of fixed-step Euler at DT = %.3f (error %.3e):%n", dt, baseline.error);
+        for (String name : new String[] {"euler", "verlet", "euler-adaptive", "verlet-adaptive"}) {
+            Config best = null;
+            for (Config c : configs) {
+                if (c.name.equals(name) && c.error <= baseline.error && (best == null || c.throughput > best.throughput)) {
+                    best = c;
+                }
+            }
+            if (best == null) {
+                System.out.printf("  %-16s no run within the error%n", name);
+            } else {
+                System.out.printf(Locale.ROOT, "  %-16s %s %.4f: %.3f time/wall s, %.2fx%n", name,
+                        best.tolerance > 0 ? "tolerance" : "dt", best.tolerance > 0 ? best.tolerance : best.timeStep,
+                        best.throughput, best.throughput / baseline.throughput);
+            }
+        }
+    }
+
+    private void measure(Config c) {
+        long best = Long.MAX_VALUE;
+        SimulationEngine engine = null;
+        for (int r = 0; r < REPEATS; r++) {
+            long t0 = System.nanoTime();
+            engine = integrate(c);
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        c.steps = engine.getStepCount() - start.stepCount;
+        c.throughput = time / (best / 1e9);
+
+        float[] xs = new float[engine.getParticleCount()];
+        float[] ys = new float[engine.getParticleCount()];
+        engine.copyPositions(xs, ys);
+        double sum = 0;
+        for (int i = 0; i < xs.length; i++) {
+            double dx = xs[i] - referenceX[i];
+            double dy = ys[i] - referenceY[i];
+            dx -= Math.rint(dx);
+            dy -= Math.rint(dy);
+            sum += dx * dx + dy * dy;
+        }
+        c.error = Math.sqrt(sum / xs.length);
+    }
+
+    // Steps a fresh engine from the start state until exactly `time` has been simulated; the
+    // last step is shortened to land on it.
+    private SimulationEngine integrate(Config c) {
+        SimulationEngine engine = new SimulationEngine(start.seed, start.speciesCount);
+        engine.setThreads(threads);
+        start.applyTo(engine);
+        engine.setIntegrator(c.integrator);
+        engine.setTimeStep(c.timeStep);
+        engine.setSleeping(sleep);
+        if (c.tolerance > 0) {
+            engine.setAdaptiveTimeStep(true);
+            engine.setTimeStepTolerance(c.tolerance);
+        }
+        double remaining = time;
+        while (remaining > 1e-9) {
+            if (engine.getTimeStep() > remaining) {
+                engine.setTimeStep(remaining);
+            }
+            double before = engine.getSimulatedTime();
+            engine.step(1);
+            remaining -= engine.getSimulatedTime() - before;
+        }
+        engine.setThreads(1);
+        return engine;
+    }
+
+    private static final class Config {
+        final String name;
+        final SimulationEngine.Integrator integrator;
+        final double timeStep;
+        // 0 for a fixed step
+        final double tolerance;
+        long steps;
+        double error;
+        double throughput;
+
+        Config(String name, SimulationEngine.Integrator integrator, double timeStep, double tolerance) {
+            this.name = name;
+            this.integrator = integrator;
+            this.timeStep = timeStep;
+            this.tolerance = tolerance;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// Half-shell force pass using the incubating Vector API. It lives outside src/ because it needs
+// the jdk.incubator.vector module to compile and run:
+//
+//   javac --add-modules jdk.incubator.vector -cp bin -d bin src-vector/*.java
+//   java --add-modules jdk.incubator.vector -cp bin HeadlessRunner --vector
+//
+// SimulationEngine loads it by name and keeps the scalar pass when it is missing.
+//
+// Candidates of a cell are contiguous in the engine's cell-sorted arrays, so each particle is
+// tested against a whole lane batch at once: masked cutoff test, branch-free kernel and fx/fy
+// accumulation; reaction forces on the candidates are a load-subtract-store. Runs shorter than
+// a batch finish in scalar code, which on JDK 17 is cheaper than masked memory access. The
+// kernel is evaluated in closed form, core = min(r / BETA - 1, 0) and
+// shape = max(1 - |2r - 1 - BETA| / (1 - BETA), 0), which equals ForceKernel.analytic().
+//
+// Tolerance: all arithmetic is in double, so per-particle forces match the scalar analytic
+// pass up to summation order (relative 1e-12), and the scalar tabulated pass within
+// ForceKernel.MAX_ERROR per contributing pair.
+class VectorForcePass implements SimulationEngine.ForcePass {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    private static final VectorSpecies<Integer> INT_SPECIES =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(Math.max(64, LANES * 32)));
+
+    private static final double INV_R_MAX = 1.0 / SimulationEngine.R_MAX;
+    private static final double INV_BETA = 1.0 / SimulationEngine.BETA;
+    private static final double PEAK = 1 + SimulationEngine.BETA;
+    private static final double INV_WIDTH = 1.0 / (1 - SimulationEngine.BETA);
+
+    // Double copies of the engine's float matrix (row-major and transposed), refreshed when the
+    // matrix version moves so lane loads and gathers stay in double
+    private double[] matrix = new double[0];
+    private double[] matrixTransposed = new double[0];
+    private long matrixVersion = -1;
+
+    // Forward-neighbour buffer per thread, so a pass allocates nothing at steady state
+    private static final ThreadLocal<int[]> FORWARD = ThreadLocal.withInitial(() -> new int[4]);
+
+    private synchronized void refreshMatrix(SimulationEngine engine) {
+        if (matrixVersion == engine.getMatrixVersion()) return;
+        float[] source = engine.getMatrix();
+        float[] sourceT = engine.matrixTransposed;
+        double[] copy = new double[source.length];
+        double[] copyT = new double[source.length];
+        for (int i = 0; i < source.length; i++) {
+            copy[i] = source[i];
+            copyT[i] = sourceT[i];
+        }
+        matrix = copy;
+        matrixTransposed = copyT;
+        matrixVersion = engine.getMatrixVersion();
+    }
+
+    @Override
+    public long forceRows(SimulationEngine engine, int rowFrom, int rowTo) {
+        CellGrid grid = engine.grid;
+        boolean wrap = grid.wrap;
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] rowStart = grid.rowStart;
+        int[] forward = FORWARD.get();
+        boolean[] frozen = engine.frozenCells;
+        double[] sx = engine.sortedX;
+        double[] sy = engine.sortedY;
+        int[] species = engine.sortedSpecies;
+        double[] forceX = engine.forceX;
+        double[] forceY = engine.forceY;
+        refreshMatrix(engine);
+        double[] matrix;
+        double[] matrixT;
+        synchronized (this) {
+            matrix = this.matrix;
+            matrixT = this.matrixTransposed;
+        }
+        int m = engine.getSpeciesCount();
+        double aspect = engine.getAspect();
+        long pairs = 0;
+        long interacting = 0;
+
+        for (int row = rowFrom; row < rowTo; row++) {
+            for (int cell = rowStart[row]; cell < rowStart[row + 1]; cell++) {
+                int start = cellStart[cell];
+                int end = start + cellCount[cell];
+                if (start == end) continue;
+                int forwardCount = grid.forwardNeighbours(cell, forward);
+                boolean asleep = frozen != null && frozen[cell];
+
+                for (int k = start; k < end; k++) {
+                    double px = sx[k];
+                    double py = sy[k];
+                    int rowBase = species[k] * m;
+                    DoubleVector accX = DoubleVector.zero(SPECIES);
+                    DoubleVector accY = DoubleVector.zero(SPECIES);
+                    double tailX = 0, tailY = 0;
+                    DoubleVector rowLanes = null, columnLanes = null;
+                    if (m <= LANES) {
+                        rowLanes = DoubleVector.fromArray(SPECIES, matrix, rowBase, SPECIES.indexInRange(0, m));
+                        columnLanes = DoubleVector.fromArray(SPECIES, matrixT, rowBase, SPECIES.indexInRange(0, m));
+                    }
+
+                    // Rest of the own cell, then the forward neighbour cells
+                    int s = asleep ? end : k + 1;
+                    int sEnd = end;
+                    for (int f = -1; f < forwardCount; f++) {
+                        if (f >= 0) {
+                            int c = forward[f];
+                            if (asleep && frozen[c]) continue;
+                            s = cellStart[c];
+                            sEnd = s + cellCount[c];
+                        }
+                        pairs += sEnd - s;
+
+                        int bound = s + SPECIES.loopBound(sEnd - s);
+                        for (; s < bound; s += LANES) {
+                            DoubleVector rx = DoubleVector.fromArray(SPECIES, sx, s).sub(px);
+                            DoubleVector ry = DoubleVector.fromArray(SPECIES, sy, s).sub(py);
+
+                            if (wrap) {
+                                rx = rx.sub(1.0, rx.compare(VectorOperators.GT, 0.5))
+                                       .add(1.0, rx.compare(VectorOperators.LT, -0.5));
+                                ry = ry.sub(1.0, ry.compare(VectorOperators.GT, 0.5))
+                                       .add(1.0, ry.compare(VectorOperators.LT, -0.5));
+                            }
+
+                            DoubleVector dxAspect = rx.mul(aspect);
+                            DoubleVector r2 = dxAspect.mul(dxAspect).add(ry.mul(ry));
+                            VectorMask<Double> near = r2.compare(VectorOperators.LT, SimulationEngine.R_MAX_SQ)
+                                    .and(r2.compare(VectorOperators.GT, 0.0));
+                            if (!near.anyTrue()) continue;
+                            interacting += near.trueCount();
+
+                            DoubleVector r = r2.lanewise(VectorOperators.SQRT);
+                            DoubleVector rn = r.mul(INV_R_MAX);
+                            DoubleVector core = rn.mul(INV_BETA).sub(1.0).min(0.0);
+                            DoubleVector shape = rn.mul(2.0).sub(PEAK).abs()
+                                    .mul(-INV_WIDTH).add(1.0).max(0.0);
+
+                            DoubleVector aij, aji;
+                            if (rowLanes != null) {
+                                // Few species: look the entries up in registers
+                                DoubleVector cj = (DoubleVector) IntVector.fromArray(INT_SPECIES, species, s)
+                                        .convertShape(VectorOperators.I2D, SPECIES, 0);
+                                aij = cj.selectFrom(rowLanes);
+                                aji = cj.selectFrom(columnLanes);
+                            } else {
+                                aij = DoubleVector.fromArray(SPECIES, matrix, rowBase, species, s);
+                                aji = DoubleVector.fromArray(SPECIES, matrixT, rowBase, species, s);
+                            }
+                            DoubleVector fi = core.add(aij.mul(shape)).div(r).blend(0.0, near.not());
+                            DoubleVector fj = core.add(aji.mul(shape)).div(r).blend(0.0, near.not());
+
+                            accX = accX.add(dxAspect.mul(fi));
+                            accY = accY.add(ry.mul(fi));
+
+                            DoubleVector.fromArray(SPECIES, forceX, s)
+                                    .sub(dxAspect.mul(fj))
+                                    .intoArray(forceX, s);
+                            DoubleVector.fromArray(SPECIES, forceY, s)
+                                    .sub(ry.mul(fj))
+                                    .intoArray(forceY, s);
+                        }
+
+                        // Remainder shorter than one lane batch
+                        for (; s < sEnd; s++) {
+                            double rx = sx[s] - px;
+                            double ry = sy[s] - py;
+                            if (wrap) {
+                                if (rx > 0.5)  rx -= 1.0;
+                                if (rx < -0.5) rx += 1.0;
+                                if (ry > 0.5)  ry -= 1.0;
+                                if (ry < -0.5) ry += 1.0;
+                            }
+                            double dxAspect = rx * aspect;
+                            double r2 = dxAspect * dxAspect + ry * ry;
+                            if (r2 > 0 && r2 < SimulationEngine.R_MAX_SQ) {
+                                interacting++;
+                                double r = Math.sqrt(r2);
+                                double rn = r * INV_R_MAX;
+                                double core = Math.min(rn * INV_BETA - 1.0, 0.0);
+                                double shape = Math.max(1.0 - Math.abs(2.0 * rn - PEAK) * INV_WIDTH, 0.0);
+                                int cj = species[s];
+                                double fi = (core + matrix[rowBase + cj] * shape) / r;
+                                double fj = (core + matrixT[rowBase + cj] * shape) / r;
+                                tailX += dxAspect * fi;
+                                tailY += ry * fi;
+                                forceX[s] -= dxAspect * fj;
+                                forceY[s] -= ry * fj;
+                            }
+                        }
+                    }
+
+                    forceX[k] += accX.reduceLanes(VectorOperators.ADD) + tailX;
+                    forceY[k] += accY.reduceLanes(VectorOperators.ADD) + tailY;
+                }
+            }
+        }
+        engine.addInteractions(interacting);
+        return pairs;
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+// Periodically checkpoints a SimulationLoop to a snapshot file from a background thread. The
+// simulation thread only copies the state into a reused SimulationState between two steps;
+// encoding and disk I/O happen here, so stepping never waits for the disk.
+class Autosaver {
+    private final SimulationLoop loop;
+    private final Path file;
+    private final long intervalNanos;
+    private final SimulationState state = new SimulationState();
+
+    private volatile boolean running = false;
+    private Thread thread;
+    private volatile long lastSaveStep = -1;
+
+    Autosaver(SimulationLoop loop, Path file, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + intervalMillis);
+        }
+        this.loop = loop;
+        this.file = file;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, "autosave");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    // Step count of the last checkpoint written, or -1 before the first one.
+    long getLastSaveStep() {
+        return lastSaveStep;
+    }
+
+    private void run() {
+        long next = System.nanoTime() + intervalNanos;
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            save();
+            next = System.nanoTime() + intervalNanos;
+        }
+    }
+
+    private void save() {
+        try {
+            // Bounded wait so a stopped loop cannot hang the saver
+            loop.capture(state).get(intervalNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+            return;
+        } catch (ExecutionException e) {
+            System.err.println("Autosave failed: " + e.getCause());
+            return;
+        }
+        if (state.stepCount == lastSaveStep) return;
+        try {
+            SnapshotFile.write(state, file);
+            lastSaveStep = state.stepCount;
+        } catch (IOException e) {
+            System.err.println("Autosave to " + file + " failed: " + e.getMessage());
+        }
+    }
+}
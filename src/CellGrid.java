@@ -0,0 +1,641 @@
+import java.util.Arrays;
+
+// Uniform spatial grid built by a counting sort over cell ids. Particles of a cell are stored
+// contiguously in sortedIndex[cellStart[c] .. cellStart[c] + cellCount[c]). Cells are numbered
+// row by row; the cells of row r are rowStart[r] .. rowStart[r + 1). Arrays are kept between
+// builds, so a steady-state rebuild allocates nothing.
+//
+// Dense layouts cover a rectangle with cols x rows cells. The sparse layout, for the unbounded
+// INFINITE mode, numbers only the occupied cells: cell coordinates are found through an
+// open-addressing table keyed by the packed (row, column) pair, so memory and build time follow
+// the particle count however far the swarm spreads, and rows counts only occupied rows.
+//
+// After a build, subdivide() can split crowded cells into k x k sub-cells, k chosen per cell
+// from its occupancy, and their occupied neighbours as finely. The cell's particles are
+// re-sorted by sub-cell within the cell's range, so everything that walks whole cells is
+// unaffected; force passes that know about sub-cells look up which sub-cell pairs can be
+// within the interaction range in precomputed stencils and skip the rest.
+class CellGrid {
+    // Upper bound on cells for the dense bounded layout, relative to particle count.
+    private static final int MIN_CELLS = 1024;
+    private static final int CELLS_PER_PARTICLE = 2;
+
+    // Sparse cell coordinates are clamped below this so that +1 still fits in an int
+    private static final int MAX_COORD = Integer.MAX_VALUE - 1;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_TABLE = 16;
+
+    static final int MAX_SUBDIVISION = 8;
+
+    // Offsets of the forward half-shell neighbours, indexed by the slots forwardNeighbours reports,
+    // plus the cell itself as the last slot
+    static final int[] FORWARD_DX = {1, -1, 0, 1, 0};
+    static final int[] FORWARD_DY = {0, 1, 1, 1, 0};
+    static final int OWN_SLOT = 4;
+
+    int cols;
+    int rows;
+    boolean wrap;
+    boolean sparse;
+
+    // Region covered by the grid and the size of one cell in world units.
+    double originX;
+    double originY;
+    double cellWidth;
+    double cellHeight;
+
+    private int cells;
+    // Number of particles indexed by the last build
+    int particles;
+    int[] cellStart = new int[0];
+    int[] cellCount = new int[0];
+    int[] rowStart = new int[1];
+    int[] sortedIndex = new int[0];
+    int[] cellOf = new int[0];
+    private int[] cursor = new int[0];
+
+    // Sparse layout: coordinates of each occupied cell, and the key -> cell table
+    private int[] cellX = new int[0];
+    private int[] cellY = new int[0];
+    private long[] cellKey = new long[0];
+    private int[] rank = new int[0];
+    private long[] tableKeys = new long[0];
+    private int[] tableCells = new int[0];
+    private int tableShift;
+    // Radix sort buffers for the occupied cell keys
+    private long[] keyScratch = new long[0];
+    private final int[] digitCount = new int[257];
+
+    // Sub-cells of crowded cells. subK[c] is 1 for an undivided cell. Sub-cell (sx, sy) of a
+    // divided cell holds sortedIndex[subStart[b + sy * k + sx] .. subStart[b + sy * k + sx + 1])
+    // with b = subBase[c], and sub-cells are in that order within the cell's range.
+    int dividedCells;
+    int[] subK = new int[0];
+    int[] subBase = new int[0];
+    int[] subStart = new int[0];
+    private int[] subOf = new int[0];
+    private int[] subScratch = new int[0];
+    // Split each cell gets from its divided neighbours, and the largest split of the last build
+    private int[] neighbourK = new int[0];
+    private int maxSubK;
+
+    // Sub-cell stencils, see stencil(). Built for every pair of splits up to stencilK, for cells
+    // whose aspect-scaled size relative to the range was stencilScaleX x stencilScaleY.
+    private final int[] stencilFirst = new int[MAX_SUBDIVISION * MAX_SUBDIVISION * FORWARD_DX.length];
+    int[] stencilStart = new int[0];
+    int[] stencilCells = new int[0];
+    private int stencilK;
+    private double stencilScaleX;
+    private double stencilScaleY;
+
+    int cellCount() {
+        return cells;
+    }
+
+    // Largest number of particles in one cell after the last build.
+    int maxOccupancy() {
+        int max = 0;
+        for (int c = 0; c < cells; c++) {
+            if (cellCount[c] > max) max = cellCount[c];
+        }
+        return max;
+    }
+
+    // Memory held by the per-particle and per-cell index arrays.
+    long indexBytes() {
+        return 4L * (sortedIndex.length + cellOf.length + cellStart.length + cellCount.length + cursor.length
+                + rowStart.length + cellX.length + cellY.length + rank.length + tableCells.length
+                + subK.length + subBase.length + subStart.length + subOf.length + subScratch.length
+                + neighbourK.length + stencilFirst.length + stencilStart.length + stencilCells.length)
+                + 8L * (cellKey.length + tableKeys.length + keyScratch.length);
+    }
+
+    // Periodic unit square. Cells are at least minWidth x minHeight.
+    void layoutWrap(double minWidth, double minHeight) {
+        wrap = true;
+        sparse = false;
+        originX = 0;
+        originY = 0;
+        // Fewer than three cells per axis would make the 3x3 scan visit a cell twice
+        cols = (int) (1.0 / minWidth);
+        rows = (int) (1.0 / minHeight);
+        if (cols < 3) cols = 1;
+        if (rows < 3) rows = 1;
+        cellWidth = 1.0 / cols;
+        cellHeight = 1.0 / rows;
+    }
+
+    // Non-periodic region; particles outside it are clamped into the border cells.
+    void layoutBounded(double x0, double y0, double x1, double y1, double minWidth, double minHeight, int particles) {
+        wrap = false;
+        sparse = false;
+        double width = x1 - x0;
+        double height = y1 - y0;
+        if (!(width >= 0) || !(height >= 0) || Double.isInfinite(width) || Double.isInfinite(height)) {
+            width = 0;
+            height = 0;
+        }
+
+        // Coarsen the cells when the region would need more than maxCells of them
+        long maxCells = Math.max(MIN_CELLS, (long) CELLS_PER_PARTICLE * particles);
+        double cw = minWidth;
+        double ch = minHeight;
+        double needed = (width / cw + 1) * (height / ch + 1);
+        if (needed > maxCells) {
+            double scale = Math.sqrt(needed / maxCells);
+            cw *= scale;
+            ch *= scale;
+        }
+
+        originX = x0;
+        originY = y0;
+        cols = Math.max(1, (int) (width / cw) + 1);
+        rows = Math.max(1, (int) (height / ch) + 1);
+        while ((long) cols * rows > maxCells) {
+            cw *= 1.25;
+            ch *= 1.25;
+            cols = Math.max(1, (int) (width / cw) + 1);
+            rows = Math.max(1, (int) (height / ch) + 1);
+        }
+        cellWidth = cw;
+        cellHeight = ch;
+    }
+
+    // Unbounded plane with cells of exactly cellWidth x cellHeight, starting at (x0, y0), the
+    // lower corner of the particles' bounding box. Only occupied cells exist.
+    void layoutSparse(double x0, double y0, double cellWidth, double cellHeight) {
+        wrap = false;
+        sparse = true;
+        originX = Double.isFinite(x0) ? x0 : 0;
+        originY = Double.isFinite(y0) ? y0 : 0;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        cols = 0;
+    }
+
+    void build(ParticleStore store, int n) {
+        dividedCells = 0;
+        if (sortedIndex.length < n) {
+            sortedIndex = new int[store.capacity()];
+            cellOf = new int[store.capacity()];
+        }
+
+        if (sparse) {
+            assignSparseCells(store, n);
+        } else {
+            cells = cols * rows;
+            ensureCells(cells);
+            if (rowStart.length < rows + 1) {
+                rowStart = new int[rows + 1];
+            }
+            for (int r = 0; r <= rows; r++) {
+                rowStart[r] = r * cols;
+            }
+            for (int i = 0; i < n; i++) {
+                cellOf[i] = cellIndex(store.x(i), store.y(i));
+            }
+        }
+
+        Arrays.fill(cellCount, 0, cells, 0);
+        for (int i = 0; i < n; i++) {
+            cellCount[cellOf[i]]++;
+        }
+
+        int start = 0;
+        for (int c = 0; c < cells; c++) {
+            cellStart[c] = start;
+            cursor[c] = start;
+            start += cellCount[c];
+        }
+        cellStart[cells] = start;
+
+        for (int i = 0; i < n; i++) {
+            sortedIndex[cursor[cellOf[i]]++] = i;
+        }
+        particles = n;
+    }
+
+    // Divides every cell holding at least threshold particles into k x k sub-cells of about
+    // perSubCell particles each, k between 2 and MAX_SUBDIVISION. Their occupied neighbours are
+    // divided as finely as the finest of them, since a pair of sub-cells can only be skipped when
+    // both sides are small: an undivided neighbour touches every sub-cell next to it. Sub-cell
+    // geometry assumes each particle lies inside its cell, so nothing is divided while particles
+    // sit outside a bounded layout (they are clamped into the border cells), nor on a periodic
+    // axis of fewer than three cells, where one cell is its own neighbour. A cell whose particles
+    // do not all land in its sub-cells because of rounding stays undivided.
+    void subdivide(ParticleStore store, int threshold, int perSubCell, int[] around) {
+        dividedCells = 0;
+        maxSubK = 1;
+        if (subK.length < cells) {
+            int capacity = Math.max(cells, subK.length + (subK.length >> 1));
+            subK = new int[capacity];
+            subBase = new int[capacity];
+            neighbourK = new int[capacity];
+        }
+        Arrays.fill(subK, 0, cells, 1);
+        if (wrap ? cols < 3 || rows < 3 : !sparse && !allInside(store)) return;
+
+        Arrays.fill(neighbourK, 0, cells, 1);
+        boolean crowded = false;
+        for (int c = 0; c < cells; c++) {
+            int count = cellCount[c];
+            if (count < threshold) continue;
+            int k = Math.min(MAX_SUBDIVISION, (int) Math.sqrt((double) count / perSubCell));
+            if (k < 2) continue;
+            crowded = true;
+            int n = neighbourhood(c, around);
+            for (int j = 0; j < n; j++) {
+                neighbourK[around[j]] = Math.max(neighbourK[around[j]], k);
+            }
+        }
+        if (!crowded) return;
+
+        int used = 0;
+        for (int c = 0; c < cells; c++) {
+            int count = cellCount[c];
+            int k = neighbourK[c];
+            if (k < 2 || count == 0) continue;
+            int subCells = k * k;
+            if (subOf.length < count) {
+                subOf = new int[Math.max(count, subOf.length + (subOf.length >> 1))];
+                subScratch = new int[subOf.length];
+            }
+            if (subStart.length < used + subCells + 1) {
+                subStart = Arrays.copyOf(subStart, Math.max(used + subCells + 1, subStart.length * 2));
+            }
+
+            int start = cellStart[c];
+            int gx = sparse ? cellX[c] : c % cols;
+            int gy = sparse ? cellY[c] : c / cols;
+            boolean inside = true;
+            for (int p = 0; p < count && inside; p++) {
+                int i = sortedIndex[start + p];
+                double u = (store.x(i) - originX) / cellWidth - gx;
+                double v = (store.y(i) - originY) / cellHeight - gy;
+                inside = u >= 0 && u < 1 && v >= 0 && v < 1;
+                subOf[p] = Math.min(k - 1, (int) (v * k)) * k + Math.min(k - 1, (int) (u * k));
+            }
+            if (!inside) continue;
+
+            // Counting sort of the cell's range by sub-cell
+            int base = used;
+            Arrays.fill(subStart, base, base + subCells + 1, 0);
+            for (int p = 0; p < count; p++) {
+                subStart[base + subOf[p] + 1]++;
+            }
+            subStart[base] = start;
+            for (int b = 1; b <= subCells; b++) {
+                subStart[base + b] += subStart[base + b - 1];
+            }
+            for (int p = 0; p < count; p++) {
+                subScratch[p] = sortedIndex[start + p];
+            }
+            // subStart[base + b] serves as the cursor of sub-cell b - 1 and ends at its end
+            for (int p = 0; p < count; p++) {
+                sortedIndex[subStart[base + subOf[p]]++] = subScratch[p];
+            }
+            for (int b = subCells; b > 0; b--) {
+                subStart[base + b] = subStart[base + b - 1];
+            }
+            subStart[base] = start;
+
+            subK[c] = k;
+            subBase[c] = base;
+            used += subCells + 1;
+            dividedCells++;
+            maxSubK = Math.max(maxSubK, k);
+        }
+    }
+
+    // Makes sure stencil() covers the splits of the last subdivide() for the given range, in the
+    // aspect-scaled units in which cells are cellWidth * aspect x cellHeight. The stencils only
+    // change with the cell shape, so they are rebuilt when it or the largest split changes.
+    void prepareStencils(double aspect, double range) {
+        double scaleX = cellWidth * aspect / range;
+        double scaleY = cellHeight / range;
+        if (maxSubK <= stencilK && scaleX == stencilScaleX && scaleY == stencilScaleY) return;
+        int maxK = Math.max(maxSubK, stencilK);
+        int slots = FORWARD_DX.length;
+        int starts = 1;
+        for (int kA = 1; kA <= maxK; kA++) {
+            starts += slots * maxK * kA * kA;
+        }
+        if (stencilStart.length < starts) {
+            stencilStart = new int[starts];
+        }
+
+        int first = 0;
+        int n = 0;
+        for (int kA = 1; kA <= maxK; kA++) {
+            for (int kB = 1; kB <= maxK; kB++) {
+                for (int slot = 0; slot < slots; slot++) {
+                    stencilFirst[((kA - 1) * MAX_SUBDIVISION + kB - 1) * slots + slot] = first;
+                    for (int g = 0; g < kA * kA; g++) {
+                        stencilStart[first++] = n;
+                        // The cell's own sub-cells pair with the later ones only
+                        int from = slot == OWN_SLOT ? g + 1 : 0;
+                        if (slot == OWN_SLOT && kA != kB) from = kB * kB;
+                        for (int b = from; b < kB * kB; b++) {
+                            if (near(kA, g % kA, g / kA, FORWARD_DX[slot], FORWARD_DY[slot], kB, b % kB, b / kB,
+                                    scaleX, scaleY)) {
+                                if (n == stencilCells.length) {
+                                    stencilCells = Arrays.copyOf(stencilCells, Math.max(64, n + (n >> 1)));
+                                }
+                                stencilCells[n++] = b;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        stencilStart[first] = n;
+        stencilK = maxK;
+        stencilScaleX = scaleX;
+        stencilScaleY = scaleY;
+    }
+
+    // Index into stencilStart of sub-cell 0 of a cell split kA ways, paired with the cell split
+    // kB ways in the given slot of FORWARD_DX / FORWARD_DY. The sub-cells of the other cell that
+    // sub-cell g may hold a pair with are stencilCells[stencilStart[s + g] .. stencilStart[s + g + 1])
+    // for s the returned index, in ascending order.
+    int stencil(int kA, int kB, int slot) {
+        return stencilFirst[((kA - 1) * MAX_SUBDIVISION + kB - 1) * FORWARD_DX.length + slot];
+    }
+
+    // Whether sub-cell (ax, ay) of a cell split kA ways and sub-cell (bx, by) of the cell dx, dy
+    // cells away, split kB ways, may hold a pair closer than the range. Lengths are in cells,
+    // scaled to multiples of the range; the slack covers rounding in the sub-cell assignment.
+    private static boolean near(int kA, int ax, int ay, int dx, int dy, int kB, int bx, int by,
+                                double scaleX, double scaleY) {
+        double gapX = Math.max(0, Math.max(dx + (double) bx / kB - (ax + 1.0) / kA,
+                (double) ax / kA - dx - (bx + 1.0) / kB)) * scaleX;
+        double gapY = Math.max(0, Math.max(dy + (double) by / kB - (ay + 1.0) / kA,
+                (double) ay / kA - dy - (by + 1.0) / kB)) * scaleY;
+        return gapX * gapX + gapY * gapY < 1 + 1e-9;
+    }
+
+    private boolean allInside(ParticleStore store) {
+        double x1 = originX + cols * cellWidth;
+        double y1 = originY + rows * cellHeight;
+        for (int i = 0; i < particles; i++) {
+            double x = store.x(i);
+            double y = store.y(i);
+            if (!(x >= originX && x < x1 && y >= originY && y < y1)) return false;
+        }
+        return true;
+    }
+
+    private void ensureCells(int count) {
+        if (cellStart.length < count + 1) {
+            int capacity = Math.max(count, cellCount.length + (cellCount.length >> 1));
+            cellStart = new int[capacity + 1];
+            cellCount = new int[capacity];
+            cursor = new int[capacity];
+        }
+    }
+
+    // Numbers the occupied cells in row-major order and stores each particle's cell in cellOf.
+    private void assignSparseCells(ParticleStore store, int n) {
+        // Size the table for the previous build's occupancy; it grows if the swarm spreads
+        int wanted = tableSizeFor(2 * Math.max(cells, MIN_TABLE / 2));
+        if (tableKeys.length < wanted || tableKeys.length > 4 * wanted) {
+            resizeTable(wanted);
+        }
+        Arrays.fill(tableKeys, EMPTY);
+
+        // Pass 1: cells in order of first appearance
+        int occupied = 0;
+        for (int i = 0; i < n; i++) {
+            long key = key(sparseCoord(store.x(i), originX, cellWidth), sparseCoord(store.y(i), originY, cellHeight));
+            int slot = slotOf(key);
+            int cell;
+            if (tableKeys[slot] == EMPTY) {
+                if (occupied == cellKey.length) {
+                    cellKey = Arrays.copyOf(cellKey, Math.max(MIN_TABLE, occupied + (occupied >> 1)));
+                }
+                cell = occupied++;
+                cellKey[cell] = key;
+                tableKeys[slot] = key;
+                tableCells[slot] = cell;
+                if (2 * occupied > tableKeys.length) {
+                    rehash(occupied);
+                }
+            } else {
+                cell = tableCells[slot];
+            }
+            cellOf[i] = cell;
+        }
+
+        // Renumber the cells row-major so the passes can walk them row by row
+        cells = occupied;
+        ensureCells(occupied);
+        if (rank.length < occupied) {
+            int capacity = Math.max(occupied, rank.length + (rank.length >> 1));
+            rank = new int[capacity];
+            cellX = new int[capacity];
+            cellY = new int[capacity];
+        }
+        if (rowStart.length < occupied + 1) {
+            rowStart = new int[Math.max(occupied + 1, rowStart.length + (rowStart.length >> 1))];
+        }
+        sortKeys(occupied);
+        rows = 0;
+        for (int c = 0; c < occupied; c++) {
+            long key = cellKey[c];
+            int slot = slotOf(key);
+            rank[tableCells[slot]] = c;
+            tableCells[slot] = c;
+            cellX[c] = (int) key;
+            cellY[c] = (int) (key >>> 32);
+            if (c == 0 || cellY[c] != cellY[c - 1]) {
+                rowStart[rows++] = c;
+            }
+        }
+        rowStart[rows] = occupied;
+
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = rank[cellOf[i]];
+        }
+    }
+
+    // Sorts cellKey[0, n) ascending: an LSD radix sort by bytes, skipping bytes that are the same
+    // in every key, which is most of them. Keys are non-negative as coordinates are measured from
+    // the origin. Unlike Arrays.sort it never allocates once keyScratch has grown.
+    private void sortKeys(int n) {
+        if (n < 2) return;
+        if (keyScratch.length < cellKey.length) {
+            keyScratch = new long[cellKey.length];
+        }
+        long[] from = cellKey;
+        long[] to = keyScratch;
+        int[] count = digitCount;
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++) {
+                count[(int) (from[i] >>> shift & 0xFF) + 1]++;
+            }
+            if (count[(int) (from[0] >>> shift & 0xFF) + 1] == n) continue;
+            for (int d = 0; d < 256; d++) {
+                count[d + 1] += count[d];
+            }
+            for (int i = 0; i < n; i++) {
+                to[count[(int) (from[i] >>> shift & 0xFF)]++] = from[i];
+            }
+            long[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != cellKey) {
+            System.arraycopy(from, 0, cellKey, 0, n);
+        }
+    }
+
+    private void rehash(int occupied) {
+        resizeTable(tableKeys.length * 2);
+        Arrays.fill(tableKeys, EMPTY);
+        for (int c = 0; c < occupied; c++) {
+            int slot = slotOf(cellKey[c]);
+            tableKeys[slot] = cellKey[c];
+            tableCells[slot] = c;
+        }
+    }
+
+    private void resizeTable(int size) {
+        tableKeys = new long[size];
+        tableCells = new int[size];
+        tableShift = 64 - Integer.numberOfTrailingZeros(size);
+    }
+
+    private static int tableSizeFor(int n) {
+        return Math.max(MIN_TABLE, Integer.highestOneBit(n - 1) << 1);
+    }
+
+    // Slot holding key, or the empty slot where it would go. Linear probing.
+    private int slotOf(long key) {
+        int mask = tableKeys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> tableShift);
+        while (true) {
+            long k = tableKeys[slot];
+            if (k == key || k == EMPTY) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Rows are the high word so that key order is row-major order.
+    private static long key(int gx, int gy) {
+        return ((long) gy << 32) | (gx & 0xFFFFFFFFL);
+    }
+
+    private static int sparseCoord(double v, double origin, double size) {
+        double g = Math.floor((v - origin) / size);
+        if (!(g > 0)) return 0;
+        return g >= MAX_COORD ? MAX_COORD : (int) g;
+    }
+
+    // Sparse cell at the given coordinates, or -1 if it holds no particles.
+    private int findSparse(int gx, int gy) {
+        if (gx < 0 || gy < 0) return -1;
+        long key = key(gx, gy);
+        int slot = slotOf(key);
+        return tableKeys[slot] == key ? tableCells[slot] : -1;
+    }
+
+    // Dense cell at the given coordinates with periodic wrapping, or -1 outside the grid.
+    private int denseCell(int gx, int gy) {
+        if (wrap) {
+            if (gx < 0) gx += cols;
+            else if (gx >= cols) gx -= cols;
+            if (gy < 0) gy += rows;
+            else if (gy >= rows) gy -= rows;
+        } else if (gx < 0 || gx >= cols || gy < 0 || gy >= rows) {
+            return -1;
+        }
+        return gy * cols + gx;
+    }
+
+    // Writes the cells of the 3x3 block around cell, including itself, row by row into out and
+    // returns how many there are. Missing cells are skipped; a periodic axis with a single cell
+    // contributes it once.
+    int neighbourhood(int cell, int[] out) {
+        int n = 0;
+        if (sparse) {
+            int gx = cellX[cell];
+            int gy = cellY[cell];
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int c = dx == 0 && dy == 0 ? cell : findSparse(gx + dx, gy + dy);
+                    if (c >= 0) out[n++] = c;
+                }
+            }
+            return n;
+        }
+
+        int gx = cell % cols;
+        int gy = cell / cols;
+        int dxMin = wrap && cols < 3 ? 0 : -1;
+        int dyMin = wrap && rows < 3 ? 0 : -1;
+        for (int dy = dyMin; dy <= -dyMin; dy++) {
+            for (int dx = dxMin; dx <= -dxMin; dx++) {
+                int c = denseCell(gx + dx, gy + dy);
+                if (c >= 0) out[n++] = c;
+            }
+        }
+        return n;
+    }
+
+    // Writes the forward half-shell neighbours of cell into out: right, then below-left, below
+    // and below-right. Every unordered pair of neighbouring cells appears exactly once over all
+    // cells. Returns how many there are.
+    int forwardNeighbours(int cell, int[] out) {
+        return forwardNeighbours(cell, out, null);
+    }
+
+    // As above; slots, if not null, receives each neighbour's index into FORWARD_DX / FORWARD_DY.
+    int forwardNeighbours(int cell, int[] out, int[] slots) {
+        int n = 0;
+        if (sparse) {
+            int gx = cellX[cell];
+            int gy = cellY[cell];
+            for (int f = 0; f < 4; f++) {
+                int c = findSparse(gx + FORWARD_DX[f], gy + FORWARD_DY[f]);
+                if (c >= 0) {
+                    if (slots != null) slots[n] = f;
+                    out[n++] = c;
+                }
+            }
+            return n;
+        }
+
+        // A periodic axis with one cell would alias these offsets back onto the cell itself
+        boolean singleCol = wrap && cols == 1;
+        boolean singleRow = wrap && rows == 1;
+        int gx = cell % cols;
+        int gy = cell / cols;
+        for (int f = 0; f < 4; f++) {
+            if (singleCol && FORWARD_DX[f] != 0 || singleRow && FORWARD_DY[f] != 0) continue;
+            int c = denseCell(gx + FORWARD_DX[f], gy + FORWARD_DY[f]);
+            if (c >= 0) {
+                if (slots != null) slots[n] = f;
+                out[n++] = c;
+            }
+        }
+        return n;
+    }
+
+    int cellIndex(double x, double y) {
+        int gx = (int) Math.floor((x - originX) / cellWidth);
+        int gy = (int) Math.floor((y - originY) / cellHeight);
+        if (wrap) {
+            gx %= cols;
+            if (gx < 0) gx += cols;
+            gy %= rows;
+            if (gy < 0) gy += rows;
+        } else {
+            if (gx < 0) gx = 0;
+            else if (gx >= cols) gx = cols - 1;
+            if (gy < 0) gy = 0;
+            else if (gy >= rows) gy = rows - 1;
+        }
+        return gy * cols + gx;
+    }
+}
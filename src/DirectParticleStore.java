@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+// ParticleStore in direct (off-heap) buffers, for runs with millions of particles that should not
+// weigh on the garbage collector. Each field is its own native-order buffer; replaced buffers are
+// freed when they become unreachable.
+final class DirectParticleStore extends ParticleStore {
+    private FloatBuffer positionsX = floats(0);
+    private FloatBuffer positionsY = floats(0);
+    private FloatBuffer velocitiesX = floats(0);
+    private FloatBuffer velocitiesY = floats(0);
+    private ByteBuffer colors = ByteBuffer.allocateDirect(0);
+    private int capacity;
+
+    private static FloatBuffer floats(int n) {
+        return ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Override
+    int capacity() {
+        return capacity;
+    }
+
+    @Override
+    int maxCapacity() {
+        // A direct buffer is addressed in bytes by an int
+        return Integer.MAX_VALUE / 4;
+    }
+
+    @Override
+    boolean isOffHeap() {
+        return true;
+    }
+
+    @Override
+    float x(int i) {
+        return positionsX.get(i);
+    }
+
+    @Override
+    float y(int i) {
+        return positionsY.get(i);
+    }
+
+    @Override
+    float vx(int i) {
+        return velocitiesX.get(i);
+    }
+
+    @Override
+    float vy(int i) {
+        return velocitiesY.get(i);
+    }
+
+    @Override
+    int species(int i) {
+        return colors.get(i);
+    }
+
+    @Override
+    void setPosition(int i, float x, float y) {
+        positionsX.put(i, x);
+        positionsY.put(i, y);
+    }
+
+    @Override
+    void setVelocity(int i, float vx, float vy) {
+        velocitiesX.put(i, vx);
+        velocitiesY.put(i, vy);
+    }
+
+    @Override
+    void setSpecies(int i, int species) {
+        colors.put(i, (byte) species);
+    }
+
+    @Override
+    void copyPositions(float[] xs, float[] ys, int n) {
+        positionsX.get(0, xs, 0, n);
+        positionsY.get(0, ys, 0, n);
+    }
+
+    @Override
+    void copySpecies(byte[] dst, int n) {
+        colors.get(0, dst, 0, n);
+    }
+
+    @Override
+    void copyVelocities(float[] vxs, float[] vys, int n) {
+        velocitiesX.get(0, vxs, 0, n);
+        velocitiesY.get(0, vys, 0, n);
+    }
+
+    @Override
+    protected void putColumns(float[] xs, float[] ys, float[] vxs, float[] vys, byte[] species, int n) {
+        positionsX.put(0, xs, 0, n);
+        positionsY.put(0, ys, 0, n);
+        velocitiesX.put(0, vxs, 0, n);
+        velocitiesY.put(0, vys, 0, n);
+        colors.put(0, species, 0, n);
+    }
+
+    @Override
+    protected void reallocate(int capacity) {
+        int keep = Math.min(size(), capacity);
+        positionsX = copy(positionsX, capacity, keep);
+        positionsY = copy(positionsY, capacity, keep);
+        velocitiesX = copy(velocitiesX, capacity, keep);
+        velocitiesY = copy(velocitiesY, capacity, keep);
+        ByteBuffer c = ByteBuffer.allocateDirect(capacity);
+        c.put(0, colors, 0, keep);
+        colors = c;
+        this.capacity = capacity;
+    }
+
+    private static FloatBuffer copy(FloatBuffer source, int capacity, int keep) {
+        FloatBuffer target = floats(capacity);
+        target.put(0, source, 0, keep);
+        return target;
+    }
+}
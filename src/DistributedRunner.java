@@ -0,0 +1,383 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Coordinator of a multi-process run: splits a WRAP domain into vertical slabs, starts one
+// SlabWorker JVM per slab on this machine, and drives them over loopback sockets. Workers
+// exchange halos and migrants directly with their neighbours; the coordinator only sends the
+// initial particles, tells workers how many steps to take, and gathers their particles into a
+// SimulationState whenever a frame is saved or recorded.
+//
+//   java -cp bin DistributedRunner --workers 4 --particles 200000 --steps 200
+//   java -cp bin DistributedRunner --workers 4 --scaling        (1, 2, .. 4 workers in turn)
+//
+// Slabs must be at least one interaction range wide, so at most aspect / R_MAX workers.
+public class DistributedRunner {
+    private final int workers;
+    private final int threads;
+    private final List<Process> processes = new ArrayList<>();
+    private final DataInputStream[] in;
+    private final DataOutputStream[] out;
+    private final SimulationState state = new SimulationState();
+
+    private long computeNanos;
+    private long exchangeNanos;
+    private long ghosts;
+    private long bytesSent;
+    // Totals when the measured steps began
+    private long computeBefore;
+    private long exchangeBefore;
+    private long ghostsBefore;
+    private long bytesBefore;
+    private int minOwned;
+    private int maxOwned;
+
+    private DistributedRunner(int workers, int threads) {
+        this.workers = workers;
+        this.threads = threads;
+        this.in = new DataInputStream[workers];
+        this.out = new DataOutputStream[workers];
+    }
+
+    public static void main(String[] args) throws IOException {
+        int workers = 2;
+        int particles = 50000;
+        int steps = 200;
+        int warmup = 20;
+        long seed = 42;
+        int species = SimulationEngine.DEFAULT_SPECIES;
+        double aspect = 1.0;
+        int threads = 1;
+        boolean scaling = false;
+        boolean check = false;
+        Path save = null;
+        Path record = null;
+        int recordEvery = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--workers":
+                    workers = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--particles":
+                    particles = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--steps":
+                    steps = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--species":
+                    species = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--aspect":
+                    aspect = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--scaling":
+                    scaling = true;
+                    break;
+                case "--check":
+                    check = true;
+                    break;
+                case "--save":
+                    save = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--record":
+                    record = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--record-every":
+                    recordEvery = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    usage();
+                    System.exit(2);
+            }
+        }
+        int maxWorkers = (int) Math.floor(aspect / SimulationEngine.R_MAX + 1e-9);
+        if (workers < 1 || workers > maxWorkers) {
+            System.err.printf("--workers must be 1 .. %d: slabs narrower than the interaction range%n", maxWorkers);
+            System.err.println("would need ghosts from beyond the neighbouring slabs");
+            System.exit(2);
+        }
+
+        // The initial state is generated here, so every worker count starts from the same particles
+        SimulationEngine initial = new SimulationEngine(seed, species);
+        initial.setBoundaryMode(SimulationEngine.BoundaryMode.WRAP);
+        initial.setAspect(aspect);
+        initial.generateRandomParticles(particles);
+        SimulationState start = new SimulationState();
+        start.captureFrom(initial);
+
+        System.out.printf("particles=%d species=%d steps=%d mode=WRAP aspect=%.3f seed=%d threads/worker=%d%n",
+                particles, species, steps, aspect, seed, threads);
+        int from = scaling ? 1 : workers;
+        double baseline = 0;
+        for (int w = from; w <= workers; w++) {
+            DistributedRunner runner = new DistributedRunner(w, threads);
+            try {
+                runner.start(start);
+                runner.step(warmup);
+                runner.resetCounters();
+                long begin = System.nanoTime();
+                if (record == null || w < workers) {
+                    runner.step(steps);
+                } else {
+                    runner.record(record, steps, recordEvery, warmup);
+                }
+                double seconds = (System.nanoTime() - begin) / 1e9;
+                if (w == from) baseline = seconds;
+                runner.report(steps, seconds, baseline);
+
+                if (check && w == workers) {
+                    runner.check(start, warmup + steps);
+                }
+                if (save != null && w == workers) {
+                    runner.gather(warmup + steps);
+                    SnapshotFile.write(runner.state, save);
+                    System.out.printf("saved %s: %d particles gathered from %d workers%n", save, runner.state.count, w);
+                }
+            } finally {
+                runner.stop();
+            }
+        }
+    }
+
+    // Starts the worker processes, hands each its slab of the initial state and waits until all
+    // are connected to their neighbours.
+    private void start(SimulationState initial) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        int[] peerPorts = new int[workers];
+        SocketChannel[] channels = new SocketChannel[workers];
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(loopback, 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int w = 0; w < workers; w++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "SlabWorker", Integer.toString(port));
+                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                builder.directory(new File(System.getProperty("user.dir")));
+                processes.add(builder.start());
+            }
+            // Workers are numbered in the order they connect
+            for (int w = 0; w < workers; w++) {
+                channels[w] = server.accept();
+                in[w] = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channels[w]), 1 << 16));
+                out[w] = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channels[w]), 1 << 16));
+                peerPorts[w] = in[w].readInt();
+            }
+        }
+
+        int n = initial.count;
+        for (int w = 0; w < workers; w++) {
+            DataOutputStream o = out[w];
+            o.writeInt(w);
+            o.writeInt(workers);
+            o.writeLong(initial.seed);
+            o.writeInt(initial.speciesCount);
+            o.writeDouble(initial.aspect);
+            o.writeInt(threads);
+            for (int k = 0; k < initial.speciesCount * initial.speciesCount; k++) {
+                o.writeFloat(initial.matrix[k]);
+            }
+            o.writeInt(peerPorts[(w + 1) % workers]);
+
+            int owned = 0;
+            for (int i = 0; i < n; i++) {
+                if (slabOf(initial.positionsX[i]) == w) owned++;
+            }
+            o.writeInt(owned);
+            for (int i = 0; i < n; i++) {
+                if (slabOf(initial.positionsX[i]) != w) continue;
+                o.writeInt(i);
+                o.writeFloat(initial.positionsX[i]);
+                o.writeFloat(initial.positionsY[i]);
+                o.writeFloat(initial.velocitiesX[i]);
+                o.writeFloat(initial.velocitiesY[i]);
+                o.writeByte(initial.colors[i]);
+            }
+            o.flush();
+        }
+        for (int w = 0; w < workers; w++) {
+            in[w].readInt();
+        }
+
+        state.seed = initial.seed;
+        state.speciesCount = initial.speciesCount;
+        state.boundaryMode = SimulationEngine.BoundaryMode.WRAP;
+        state.aspect = initial.aspect;
+        state.matrix = initial.matrix.clone();
+        state.ensureCapacity(n);
+        state.count = n;
+    }
+
+    private int slabOf(float x) {
+        return Math.min(workers - 1, (int) (x * workers));
+    }
+
+    // Runs steps on every worker; they pace each other through the halo exchange. Workers
+    // report running totals: the slowest worker's compute and exchange time, and the sums of
+    // ghosts and bytes sent.
+    private void step(int steps) throws IOException {
+        if (steps <= 0) return;
+        for (DataOutputStream o : out) {
+            o.writeInt(SlabWorker.STEP);
+            o.writeInt(steps);
+            o.flush();
+        }
+        computeNanos = exchangeNanos = ghosts = bytesSent = 0;
+        minOwned = Integer.MAX_VALUE;
+        maxOwned = 0;
+        for (DataInputStream i : in) {
+            int owned = i.readInt();
+            computeNanos = Math.max(computeNanos, i.readLong());
+            exchangeNanos = Math.max(exchangeNanos, i.readLong());
+            ghosts += i.readLong();
+            bytesSent += i.readLong();
+            minOwned = Math.min(minOwned, owned);
+            maxOwned = Math.max(maxOwned, owned);
+        }
+    }
+
+    private void resetCounters() {
+        computeBefore = computeNanos;
+        exchangeBefore = exchangeNanos;
+        ghostsBefore = ghosts;
+        bytesBefore = bytesSent;
+    }
+
+    // Collects every worker's particles into state, indexed by their original id, so gathered
+    // frames keep the particle order of the initial state.
+    private void gather(long stepCount) throws IOException {
+        for (DataOutputStream o : out) {
+            o.writeInt(SlabWorker.GATHER);
+            o.flush();
+        }
+        int total = 0;
+        for (DataInputStream i : in) {
+            int n = i.readInt();
+            for (int k = 0; k < n; k++) {
+                int id = i.readInt();
+                state.positionsX[id] = i.readFloat();
+                state.positionsY[id] = i.readFloat();
+                state.velocitiesX[id] = i.readFloat();
+                state.velocitiesY[id] = i.readFloat();
+                state.colors[id] = i.readByte();
+            }
+            total += n;
+        }
+        if (total != state.count) {
+            throw new IOException("gathered " + total + " particles, expected " + state.count);
+        }
+        state.stepCount = stepCount;
+    }
+
+    // Gathers a frame every recordEvery steps into a viewer engine that only holds the state
+    // for the TrajectoryRecorder; the file plays back in the GUI like a local recording.
+    private void record(Path path, int steps, int recordEvery, long stepsBefore) throws IOException {
+        SimulationEngine viewer = new SimulationEngine(state.seed, state.speciesCount);
+        TrajectoryRecorder recorder = new TrajectoryRecorder(path, 1, 120, 64);
+        for (int done = 0; done < steps; ) {
+            int chunk = Math.min(recordEvery, steps - done);
+            step(chunk);
+            done += chunk;
+            gather(stepsBefore + done);
+            state.applyTo(viewer);
+            recorder.onStep(viewer);
+        }
+        recorder.close();
+        System.out.printf("recorded %s: %d frames (%d dropped)%n", path, recorder.getFramesWritten(),
+                recorder.getFramesDropped());
+    }
+
+    private void report(int steps, double seconds, double baseline) {
+        double perStep = 1e6 * Math.max(1, steps);
+        System.out.printf("workers=%-2d  %8.2f steps/s  speedup %5.2fx  compute %7.2f ms  exchange %6.2f ms"
+                        + "  ghosts %5.1f%%  traffic %6.1f KB/step  owned %d..%d%n",
+                workers, steps / seconds, baseline / seconds,
+                (computeNanos - computeBefore) / perStep, (exchangeNanos - exchangeBefore) / perStep,
+                100.0 * (ghosts - ghostsBefore) / Math.max(1, steps) / Math.max(1, state.count),
+                (bytesSent - bytesBefore) / 1e3 / Math.max(1, steps), minOwned, maxOwned);
+    }
+
+    // Steps the same initial state in this process and reports how far the gathered positions
+    // are from it. Force sums run in a different order, so the two agree to rounding at first
+    // and then drift apart as any chaotic system does; keep the run short to compare.
+    private void check(SimulationState initial, int steps) throws IOException {
+        SimulationEngine local = new SimulationEngine(initial.seed, initial.speciesCount);
+        initial.applyTo(local);
+        local.step(steps);
+        gather(steps);
+        double max = 0;
+        for (int i = 0; i < state.count; i++) {
+            max = Math.max(max, wrapped(state.positionsX[i] - local.getX(i)));
+            max = Math.max(max, wrapped(state.positionsY[i] - local.getY(i)));
+        }
+        System.out.printf("check:      max position difference to one engine after %d steps: %.3e%n", steps, max);
+    }
+
+    private static double wrapped(double d) {
+        d -= Math.round(d);
+        return Math.abs(d);
+    }
+
+    private void stop() {
+        for (DataOutputStream o : out) {
+            if (o == null) continue;
+            try {
+                o.writeInt(SlabWorker.STOP);
+                o.flush();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        for (Process p : processes) {
+            try {
+                if (!p.waitFor(5, TimeUnit.SECONDS)) p.destroyForcibly();
+            } catch (InterruptedException e) {
+                p.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java DistributedRunner [--workers N] [--scaling] [--particles P]");
+        System.out.println("                              [--steps K] [--warmup W] [--seed S] [--species M]");
+        System.out.println("                              [--aspect A] [--threads T] [--check]");
+        System.out.println("                              [--save FILE] [--record FILE] [--record-every K]");
+    }
+}
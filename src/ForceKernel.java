@@ -0,0 +1,76 @@
+// Interaction kernel. force(r, a) is linear in the matrix entry a, so it splits into a repulsive
+// core and an attraction shape scaled by a:
+//
+//   force(r, a) = core(r) + a * shape(r)
+//
+// Both parts are sampled once into a single interleaved table (value, slope per node) and read
+// back with linear interpolation, which needs no branches and no Math.abs. Since the table does
+// not depend on the matrix, edits to the matrix never require a rebuild.
+//
+// Accuracy: both parts are piecewise linear with kinks at BETA, (1 + BETA) / 2 and 1. With
+// RESOLUTION = 1000 and BETA = 0.3 every kink is a table node, so interpolation is exact and the
+// only error is float rounding of the stored nodes: |lookup - analytic| <= MAX_ERROR for |a| <= 1.
+// For a BETA whose kinks fall between nodes the bound degrades to about 1.6e-3 (largest slope
+// change times the node spacing / 4); maxError() measures it either way.
+final class ForceKernel {
+    static final int RESOLUTION = 1000;
+    static final double MAX_ERROR = 1e-6;
+
+    // Per node: core, core slope, shape, shape slope
+    static final float[] TABLE = new float[(RESOLUTION + 2) * 4];
+
+    static {
+        for (int k = 0; k <= RESOLUTION + 1; k++) {
+            double r0 = (double) k / RESOLUTION;
+            double r1 = (double) (k + 1) / RESOLUTION;
+            double core0 = core(r0);
+            double shape0 = shape(r0);
+            TABLE[4 * k] = (float) core0;
+            TABLE[4 * k + 1] = (float) (core(r1) - core0);
+            TABLE[4 * k + 2] = (float) shape0;
+            TABLE[4 * k + 3] = (float) (shape(r1) - shape0);
+        }
+    }
+
+    private ForceKernel() {
+    }
+
+    static double analytic(double r, double a) {
+        if (r < SimulationEngine.BETA) {
+            return r / SimulationEngine.BETA - 1;
+        } else if (r < 1) {
+            return a * (1 - Math.abs(2 * r - 1 - SimulationEngine.BETA) / (1 - SimulationEngine.BETA));
+        }
+        return 0;
+    }
+
+    // r is the distance divided by R_MAX and must lie in [0, 1].
+    static double lookup(double r, double a) {
+        double t = r * RESOLUTION;
+        int k = (int) t;
+        double frac = t - k;
+        int o = k << 2;
+        return TABLE[o] + frac * TABLE[o + 1] + a * (TABLE[o + 2] + frac * TABLE[o + 3]);
+    }
+
+    // Largest |lookup - analytic| over a dense sweep of r in [0, 1) and a in [-1, 1].
+    static double maxError(int samples) {
+        double max = 0;
+        for (int i = 0; i < samples; i++) {
+            double r = (double) i / samples;
+            for (int ai = -4; ai <= 4; ai++) {
+                double a = ai / 4.0;
+                max = Math.max(max, Math.abs(lookup(r, a) - analytic(r, a)));
+            }
+        }
+        return max;
+    }
+
+    private static double core(double r) {
+        return r < SimulationEngine.BETA ? r / SimulationEngine.BETA - 1 : 0;
+    }
+
+    private static double shape(double r) {
+        return analytic(r, 1) - core(r);
+    }
+}
@@ -0,0 +1,544 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Streams a running simulation to browsers. GET / serves the viewer page (viewer.html); a
+// WebSocket upgrade on any path subscribes to the frame stream.
+//
+//   java -cp bin FrameServer --particles 50000 --port 8080
+//
+// onStep() runs on the simulation thread. At most fps times a second it encodes the current
+// positions once, as TrajectoryFile frames, and offers the same read-only message to every
+// client. Each client has a short queue drained by the network thread; when a client's queue is
+// full the frame is dropped for that client alone, and it gets a keyframe next instead of a
+// delta. A delta and a keyframe of the same frame decode to the same positions, so lagging
+// clients rejoin without disturbing the others, and the simulation never waits for a socket.
+//
+// Messages are binary WebSocket messages holding one TrajectoryFile frame each. Keyframes are
+// preceded by the 32-byte TrajectoryFile header, so every keyframe is self-contained; its
+// keyframe interval and steps-between-frames fields are 0, since both depend on the clients.
+public class FrameServer {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // Longest HTTP request head, and longest message accepted from a client
+    private static final int MAX_REQUEST_BYTES = 8192;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Path viewer;
+    private final long frameNanos;
+    private final int queueFrames;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final Thread network;
+    private volatile boolean running = true;
+
+    // Encoder state, owned by the simulation thread
+    private final TrajectoryEncoder encoder = new TrajectoryEncoder();
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+    private long lastFrame;
+    private int speciesCount;
+    private double aspect;
+
+    private volatile long framesEncoded;
+    private volatile long keyframesEncoded;
+    private volatile long bytesEncoded;
+
+    FrameServer(InetSocketAddress address, Path viewer, double fps, int queueFrames) throws IOException {
+        if (fps <= 0 || queueFrames < 1) {
+            throw new IllegalArgumentException("fps and queueFrames must be positive");
+        }
+        this.viewer = viewer;
+        this.frameNanos = (long) (1e9 / fps);
+        this.queueFrames = queueFrames;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        network = new Thread(this::serve, "frame-server");
+        network.setDaemon(true);
+        network.start();
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    int getClientCount() {
+        return clients.size();
+    }
+
+    long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    long getKeyframesEncoded() {
+        return keyframesEncoded;
+    }
+
+    long getBytesEncoded() {
+        return bytesEncoded;
+    }
+
+    // Frames sent and dropped per connected client, as {sent, dropped}
+    List<long[]> getClientStats() {
+        List<long[]> stats = new ArrayList<>();
+        for (Client c : clients) {
+            stats.add(new long[] {c.framesSent, c.framesDropped});
+        }
+        return stats;
+    }
+
+    void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            network.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Call after every engine step, from the thread that steps it.
+    void onStep(SimulationEngine engine) {
+        long now = System.nanoTime();
+        if (now - lastFrame < frameNanos || clients.isEmpty()) return;
+        lastFrame = now;
+
+        boolean anyBehind = false, anyFollowing = false;
+        for (Client c : clients) {
+            if (c.needsKeyframe) {
+                anyBehind = true;
+            } else {
+                anyFollowing = true;
+            }
+        }
+        encoder.capture(engine);
+        int n = encoder.getCount();
+        int capacity = TrajectoryFile.HEADER_BYTES + TrajectoryFile.maxFrameBytes(n);
+        if (scratch.capacity() < capacity) {
+            scratch = ByteBuffer.allocate(capacity * 5 / 4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        boolean rebound = encoder.needsKeyframe()
+                || engine.getSpeciesCount() != speciesCount || engine.getAspect() != aspect;
+
+        ByteBuffer delta = null;
+        if (!rebound && anyFollowing) {
+            scratch.clear();
+            if (encoder.encodeDelta(scratch)) {
+                delta = message(scratch);
+            }
+        }
+        ByteBuffer keyframe = null;
+        if (delta == null || anyBehind) {
+            // Reusing the bounds is only safe once a delta has shown that every particle is in them
+            speciesCount = engine.getSpeciesCount();
+            aspect = engine.getAspect();
+            scratch.clear();
+            TrajectoryFile.putHeader(scratch, speciesCount, engine.getBoundaryMode(), 0, 0, aspect);
+            encoder.encodeKeyframe(scratch, delta != null);
+            keyframe = message(scratch);
+            keyframesEncoded++;
+        }
+        framesEncoded++;
+
+        for (Client c : clients) {
+            ByteBuffer frame = c.needsKeyframe || delta == null ? keyframe : delta;
+            if (frame == null) {
+                // Connected since the scan above; it gets a keyframe next time
+                continue;
+            }
+            if (c.queue.offer(frame.duplicate())) {
+                c.needsKeyframe = false;
+            } else {
+                c.framesDropped++;
+                c.needsKeyframe = true;
+            }
+        }
+        selector.wakeup();
+    }
+
+    // Wraps the encoded bytes in an unmasked binary WebSocket frame. Clients hold on to messages
+    // for different lengths of time, so each one gets its own buffer instead of a pooled one.
+    private ByteBuffer message(ByteBuffer payload) {
+        payload.flip();
+        int length = payload.remaining();
+        int headerBytes = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        ByteBuffer msg = ByteBuffer.allocate(headerBytes + length);
+        msg.put((byte) 0x82);
+        if (length < 126) {
+            msg.put((byte) length);
+        } else if (length < 65536) {
+            msg.put((byte) 126).putShort((short) length);
+        } else {
+            msg.put((byte) 127).putLong(length);
+        }
+        msg.put(payload);
+        msg.flip();
+        bytesEncoded += msg.remaining();
+        return msg.asReadOnlyBuffer();
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client c = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) c.read();
+                        if (key.isValid() && key.isWritable()) c.write();
+                    } catch (IOException e) {
+                        c.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+                // New frames may have been queued since the last select
+                for (Client c : clients) {
+                    c.updateInterest();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("frame server stopped: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client c = new Client(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // One connection: an HTTP request, then either a single response or a WebSocket stream.
+    private final class Client {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(queueFrames);
+        ByteBuffer current;
+        boolean upgraded;
+        boolean closeWhenWritten;
+
+        // Simulation thread only
+        boolean needsKeyframe = true;
+        volatile long framesDropped;
+        // Network thread only
+        volatile long framesSent;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            if (upgraded) {
+                readMessages();
+                return;
+            }
+            if (closeWhenWritten) {
+                // Answered already; ignore anything pipelined after the request
+                in.clear();
+                return;
+            }
+            String head = new String(in.array(), 0, in.position(), StandardCharsets.ISO_8859_1);
+            int end = head.indexOf("\r\n\r\n");
+            if (end >= 0) {
+                handleRequest(head.substring(0, end));
+            } else if (!in.hasRemaining()) {
+                respond("431 Request Header Fields Too Large", "text/plain", new byte[0]);
+            }
+        }
+
+        private void handleRequest(String head) {
+            String[] lines = head.split("\r\n");
+            String[] request = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            in.clear();
+            if (request.length < 2 || !request[0].equals("GET")) {
+                respond("405 Method Not Allowed", "text/plain", new byte[0]);
+                return;
+            }
+            String wsKey = headers.get("sec-websocket-key");
+            if ("websocket".equalsIgnoreCase(headers.get("upgrade")) && wsKey != null) {
+                String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + acceptKey(wsKey) + "\r\n\r\n";
+                current = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+                upgraded = true;
+                clients.add(this);
+                System.out.println("client connected: " + channel.socket().getRemoteSocketAddress());
+                return;
+            }
+            String path = request[1];
+            if (path.equals("/") || path.equals("/index.html") || path.equals("/viewer.html")) {
+                try {
+                    respond("200 OK", "text/html; charset=utf-8", Files.readAllBytes(viewer));
+                } catch (NoSuchFileException e) {
+                    respond("404 Not Found", "text/plain", ("viewer page " + viewer + " not found\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    respond("500 Internal Server Error", "text/plain", new byte[0]);
+                }
+            } else {
+                respond("404 Not Found", "text/plain", new byte[0]);
+            }
+        }
+
+        private void respond(String status, String contentType, byte[] body) {
+            byte[] head = ("HTTP/1.1 " + status + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            current = ByteBuffer.allocate(head.length + body.length).put(head).put(body).flip();
+            closeWhenWritten = true;
+            updateInterest();
+        }
+
+        // Clients only ever need to be heard when they hang up. Text, binary, ping and pong
+        // messages are skipped; a close message or an oversized one ends the connection.
+        private void readMessages() {
+            in.flip();
+            while (in.remaining() >= 2) {
+                int at = in.position();
+                int opcode = in.get(at) & 0x0F;
+                int b1 = in.get(at + 1) & 0xFF;
+                long length = b1 & 0x7F;
+                int headerBytes = 2 + ((b1 & 0x80) != 0 ? 4 : 0);
+                if (length == 126) {
+                    if (in.remaining() < 4) break;
+                    length = in.getShort(at + 2) & 0xFFFF;
+                    headerBytes += 2;
+                } else if (length == 127) {
+                    if (in.remaining() < 10) break;
+                    length = in.getLong(at + 2);
+                    headerBytes += 8;
+                }
+                if (opcode == 0x8 || length > in.capacity() - headerBytes) {
+                    close();
+                    return;
+                }
+                if (in.remaining() < headerBytes + length) break;
+                in.position(at + headerBytes + (int) length);
+            }
+            in.compact();
+        }
+
+        void write() throws IOException {
+            while (true) {
+                if (current == null || !current.hasRemaining()) {
+                    current = queue.poll();
+                    if (current == null) break;
+                    framesSent++;
+                }
+                channel.write(current);
+                if (current.hasRemaining()) break;
+            }
+            if (current == null && closeWhenWritten) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        void updateInterest() {
+            if (!key.isValid()) return;
+            boolean pending = (current != null && current.hasRemaining()) || !queue.isEmpty();
+            key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (upgraded && clients.remove(this)) {
+                System.out.printf("client disconnected: %d frames sent, %d dropped%n", framesSent, framesDropped);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 8080;
+        String bind = null;
+        int particles = 20000;
+        long seed = 42;
+        int species = SimulationEngine.DEFAULT_SPECIES;
+        SimulationEngine.BoundaryMode mode = SimulationEngine.BoundaryMode.WRAP;
+        int threads = 1;
+        Path load = null;
+        double stepsPerSecond = 60;
+        double fps = 30;
+        int queue = 4;
+        Path viewer = Paths.get("viewer.html");
+        double seconds = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--port":
+                    port = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--bind":
+                    bind = value(args, ++i, arg);
+                    break;
+                case "--particles":
+                    particles = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--species":
+                    species = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--mode":
+                    mode = SimulationEngine.BoundaryMode.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--load":
+                    load = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--steps-per-second":
+                    stepsPerSecond = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--fps":
+                    fps = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--queue":
+                    queue = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--viewer":
+                    viewer = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--seconds":
+                    seconds = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    usage();
+                    System.exit(2);
+            }
+        }
+
+        SimulationEngine engine = new SimulationEngine(seed, species);
+        engine.setBoundaryMode(mode);
+        engine.setThreads(threads);
+        if (load != null) {
+            SimulationState state = new SimulationState();
+            SnapshotFile.read(load, state);
+            state.applyTo(engine);
+        } else {
+            engine.generateRandomParticles(particles);
+        }
+
+        InetAddress address = bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+        FrameServer server = new FrameServer(new InetSocketAddress(address, port), viewer, fps, queue);
+        SimulationLoop loop = new SimulationLoop(engine);
+        loop.setStepsPerSecond(stepsPerSecond);
+        loop.setStepObserver(server::onStep);
+        loop.start();
+        InetSocketAddress local = server.getAddress();
+        System.out.printf("serving %d particles at http://%s:%d/%n", engine.getParticleCount(),
+                local.getAddress().getHostAddress(), local.getPort());
+
+        long start = System.nanoTime();
+        long frames = 0, bytes = 0;
+        while (seconds <= 0 || System.nanoTime() - start < seconds * 1e9) {
+            Thread.sleep(5000);
+            long f = server.getFramesEncoded();
+            long b = server.getBytesEncoded();
+            StringBuilder perClient = new StringBuilder();
+            for (long[] c : server.getClientStats()) {
+                perClient.append(String.format(" %d/%d", c[0], c[1]));
+            }
+            System.out.printf(Locale.ROOT, "%.0f steps/s, %d clients, %.1f frames/s, %.1f kB/frame, sent/dropped:%s%n",
+                    loop.getMetrics().getStepsPerSecond(), server.getClientCount(), (f - frames) / 5.0,
+                    (b - bytes) / 1e3 / Math.max(1, f - frames), perClient);
+            frames = f;
+            bytes = b;
+        }
+        loop.stop();
+        server.close();
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java FrameServer [--port P] [--bind ADDR] [--particles N] [--seed S]");
+        System.out.println("                        [--species M] [--mode WRAP|CLOSED|INFINITE] [--threads T]");
+        System.out.println("                        [--load FILE] [--steps-per-second R] [--fps F]");
+        System.out.println("                        [--queue FRAMES] [--viewer FILE] [--seconds S]");
+    }
+}
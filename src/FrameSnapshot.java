@@ -0,0 +1,50 @@
+// Copy of the simulation state published by SimulationLoop for rendering. Snapshots are reused;
+// arrays only grow. Particles are grouped by grid cell (see SimulationEngine.copyByCell) so a
+// renderer can skip whole groups outside its viewport.
+class FrameSnapshot {
+    int count;
+    float[] positionsX = new float[0];
+    float[] positionsY = new float[0];
+    byte[] colors = new byte[0];
+    int groups;
+    int[] groupEnd = new int[0];
+    float[] groupBounds = new float[0];
+    int speciesCount;
+    float[] matrix = new float[0];
+    long matrixVersion = -1;
+    SimulationEngine.BoundaryMode boundaryMode;
+    long stepCount;
+    double stepsPerSecond;
+    double bytesPerParticle;
+
+    void copyFrom(SimulationEngine engine) {
+        int n = engine.getParticleCount();
+        if (positionsX.length < n) {
+            int capacity = Math.max(n, positionsX.length * 3 / 2);
+            positionsX = new float[capacity];
+            positionsY = new float[capacity];
+            colors = new byte[capacity];
+        }
+        int bound = engine.cellGroupBound();
+        if (groupEnd.length < bound) {
+            int capacity = Math.max(bound, groupEnd.length * 3 / 2);
+            groupEnd = new int[capacity];
+            groupBounds = new float[4 * capacity];
+        }
+        groups = engine.copyByCell(positionsX, positionsY, colors, groupEnd, groupBounds);
+        count = n;
+        bytesPerParticle = engine.getBytesPerParticle();
+
+        if (matrixVersion != engine.getMatrixVersion()) {
+            float[] source = engine.getMatrix();
+            if (matrix.length != source.length) {
+                matrix = new float[source.length];
+            }
+            System.arraycopy(source, 0, matrix, 0, source.length);
+            speciesCount = engine.getSpeciesCount();
+            matrixVersion = engine.getMatrixVersion();
+        }
+        boundaryMode = engine.getBoundaryMode();
+        stepCount = engine.getStepCount();
+    }
+}
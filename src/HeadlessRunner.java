@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Command-line batch runner: steps a SimulationEngine without creating any window.
+//
+//   java -cp bin HeadlessRunner --particles 20000 --steps 500 --mode WRAP --seed 1
+public class HeadlessRunner {
+
+    public static void main(String[] args) throws IOException {
+        int particles = 10000;
+        int steps = 200;
+        int warmup = 20;
+        long seed = 42;
+        int species = SimulationEngine.DEFAULT_SPECIES;
+        double aspect = 1.0;
+        int threads = 1;
+        boolean halfShell = true;
+        boolean tabulated = true;
+        boolean vector = false;
+        boolean offHeap = false;
+        boolean neighbourLists = false;
+        boolean sleep = false;
+        double sleepTolerance = SimulationEngine.DEFAULT_SLEEP_TOLERANCE;
+        int sleepInterval = SimulationEngine.DEFAULT_SLEEP_INTERVAL;
+        double skin = SimulationEngine.DEFAULT_SKIN;
+        boolean subdivide = false;
+        int subdivideThreshold = SimulationEngine.DEFAULT_SUBDIVISION_THRESHOLD;
+        SimulationEngine.Integrator integrator = SimulationEngine.Integrator.EULER;
+        double dt = SimulationEngine.DT;
+        boolean adaptiveDt = false;
+        double dtTolerance = SimulationEngine.DEFAULT_TIME_STEP_TOLERANCE;
+        Path load = null;
+        Path save = null;
+        Path record = null;
+        int recordEvery = 1;
+        SimulationEngine.BoundaryMode mode = SimulationEngine.BoundaryMode.WRAP;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--particles":
+                    particles = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--steps":
+                    steps = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--species":
+                    species = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--aspect":
+                    aspect = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--full-shell":
+                    halfShell = false;
+                    break;
+                case "--analytic-kernel":
+                    tabulated = false;
+                    break;
+                case "--vector":
+                    vector = true;
+                    break;
+                case "--off-heap":
+                    offHeap = true;
+                    break;
+                case "--neighbour-lists":
+                    neighbourLists = true;
+                    break;
+                case "--skin":
+                    skin = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--sleep":
+                    sleep = true;
+                    break;
+                case "--sleep-tolerance":
+                    sleepTolerance = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--sleep-interval":
+                    sleepInterval = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--subdivide":
+                    subdivide = true;
+                    break;
+                case "--subdivide-threshold":
+                    subdivideThreshold = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--integrator":
+                    integrator = SimulationEngine.Integrator.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--dt":
+                    dt = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--adaptive-dt":
+                    adaptiveDt = true;
+                    break;
+                case "--dt-tolerance":
+                    dtTolerance = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--load":
+                    load = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--save":
+                    save = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--record":
+                    record = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--record-every":
+                    recordEvery = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--mode":
+                    mode = SimulationEngine.BoundaryMode.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    usage();
+                    System.exit(2);
+            }
+        }
+
+        SimulationEngine engine = new SimulationEngine(seed, species);
+        engine.setBoundaryMode(mode);
+        engine.setAspect(aspect);
+        engine.setThreads(threads);
+        engine.setHalfShell(halfShell);
+        engine.setTabulatedKernel(tabulated);
+        engine.setOffHeap(offHeap);
+        engine.setNeighbourLists(neighbourLists);
+        engine.setNeighbourSkin(skin);
+        engine.setSleeping(sleep);
+        engine.setSleepTolerance(sleepTolerance);
+        engine.setSleepInterval(sleepInterval);
+        engine.setSubdivision(subdivide);
+        engine.setSubdivisionThreshold(subdivideThreshold);
+        engine.setIntegrator(integrator);
+        engine.setTimeStep(dt);
+        engine.setAdaptiveTimeStep(adaptiveDt);
+        engine.setTimeStepTolerance(dtTolerance);
+        if (vector && !engine.setVectorized(true)) {
+            System.err.println("Vector API unavailable (needs --add-modules jdk.incubator.vector"
+                    + " and src-vector compiled); using the scalar kernel");
+        }
+        if (load != null) {
+            // The snapshot replaces particles, species, matrix, mode and aspect
+            SimulationState state = new SimulationState();
+            long loadStart = System.nanoTime();
+            SnapshotFile.read(load, state);
+            state.applyTo(engine);
+            System.out.printf("loaded %s: %d particles in %.1f ms%n",
+                    load, state.count, (System.nanoTime() - loadStart) / 1e6);
+            mode = state.boundaryMode;
+            aspect = state.aspect;
+        } else {
+            engine.generateRandomParticles(particles);
+        }
+
+        engine.step(warmup);
+
+        TrajectoryRecorder recorder = record != null ? new TrajectoryRecorder(record, recordEvery, 120, 64) : null;
+
+        long pairsBefore = engine.getPairEvaluations();
+        long buildsBefore = engine.getNeighbourListBuilds();
+        StepStats stats = engine.getStepStats();
+        long gridBefore = stats.totalGridNanos;
+        long forceBefore = stats.totalForceNanos;
+        long integrateBefore = stats.totalIntegrateNanos;
+        long interactingBefore = stats.totalInteractingPairs;
+        long asleepBefore = stats.totalAsleepCells;
+        long occupiedBefore = stats.totalOccupiedCells;
+        long dividedBefore = stats.totalDividedCells;
+        long vectorizedBefore = stats.totalVectorizedSteps;
+        double timeBefore = engine.getSimulatedTime();
+        long start = System.nanoTime();
+        if (recorder == null) {
+            engine.step(steps);
+        } else {
+            for (int s = 0; s < steps; s++) {
+                engine.step(1);
+                recorder.onStep(engine);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long pairs = engine.getPairEvaluations() - pairsBefore;
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("particles=%d species=%d steps=%d mode=%s aspect=%.3f seed=%d threads=%d shell=%s%n",
+                engine.getParticleCount(), engine.getSpeciesCount(), steps, mode, aspect, seed, threads,
+                halfShell ? "half" : "full");
+        if (neighbourLists) {
+            long builds = engine.getNeighbourListBuilds() - buildsBefore;
+            System.out.printf("search:       neighbour lists, skin %.3f, rebuilt on %d of %d steps (%.1f%%), %.1f entries/particle%n",
+                    skin, builds, steps, 100.0 * builds / Math.max(1, steps), engine.getMeanNeighbourListLength());
+        }
+        if (sleep) {
+            System.out.printf("sleeping:     %.1f%% of occupied cells asleep on average (tolerance %.4f, every %d steps)%n",
+                    100.0 * (stats.totalAsleepCells - asleepBefore) / Math.max(1, stats.totalOccupiedCells - occupiedBefore),
+                    sleepTolerance, sleepInterval);
+        }
+        if (subdivide) {
+            System.out.printf("subdivision:  %.1f cells divided per step (threshold %d particles, max occupancy %d)%n",
+                    (double) (stats.totalDividedCells - dividedBefore) / Math.max(1, steps),
+                    subdivideThreshold, stats.maxCellOccupancy);
+        }
+        // The vector pass only replaces the half-shell pass, so a run with neighbour lists or
+        // too few grid rows for it falls back to the scalar kernel on some or all steps.
+        long vectorized = stats.totalVectorizedSteps - vectorizedBefore;
+        String fallback = "";
+        if (engine.isVectorized()) {
+            fallback = String.format(" (vector pass ran on %d of %d steps)", vectorized, steps);
+        }
+        if (vectorized > 0 && vectorized == steps) {
+            System.out.println("kernel:       vectorized (jdk.incubator.vector)");
+        } else if (tabulated) {
+            System.out.printf("kernel:       tabulated, max error %.2e vs analytic%s%n", ForceKernel.maxError(200000), fallback);
+        } else {
+            System.out.println("kernel:       analytic" + fallback);
+        }
+        double simulated = engine.getSimulatedTime() - timeBefore;
+        System.out.printf("integrator:   %s, %s dt %.4f mean (last %.4f), simulated %.2f time units, %.2f per wall second%n",
+                integrator, adaptiveDt ? "adaptive" : "fixed", simulated / Math.max(1, steps), engine.getTimeStep(),
+                simulated, simulated / seconds);
+        System.out.printf("elapsed:      %.3f s%n", seconds);
+        System.out.printf("steps/sec:    %.2f%n", steps / seconds);
+        System.out.printf("pairs/sec:    %.3e%n", pairs / seconds);
+        System.out.printf("pairs/step:   %.0f (%.1f%% within R_MAX)%n", (double) pairs / Math.max(1, steps),
+                100.0 * (stats.totalInteractingPairs - interactingBefore) / Math.max(1, pairs));
+        double perStep = 1e6 * Math.max(1, steps);
+        System.out.printf("phases:       grid %.3f ms, force %.3f ms, integrate %.3f ms per step%n",
+                (stats.totalGridNanos - gridBefore) / perStep, (stats.totalForceNanos - forceBefore) / perStep,
+                (stats.totalIntegrateNanos - integrateBefore) / perStep);
+        System.out.printf("memory:       %.1f B/particle (store %s %.1f MB, working %.1f MB)%n",
+                engine.getBytesPerParticle(), offHeap ? "off-heap" : "heap",
+                engine.getStorageBytes() / 1e6, engine.getWorkingBytes() / 1e6);
+
+        if (recorder != null) {
+            recorder.close();
+            long frames = recorder.getFramesWritten();
+            System.out.printf("recorded %s: %d frames (%d dropped), %.1f bytes/particle/frame%n",
+                    record, frames, recorder.getFramesDropped(),
+                    (double) recorder.getBytesWritten() / Math.max(1, frames) / Math.max(1, engine.getParticleCount()));
+        }
+
+        if (save != null) {
+            SimulationState state = new SimulationState();
+            state.captureFrom(engine);
+            long saveStart = System.nanoTime();
+            SnapshotFile.write(state, save);
+            System.out.printf("saved %s: %d particles in %.1f ms%n",
+                    save, state.count, (System.nanoTime() - saveStart) / 1e6);
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java HeadlessRunner [--particles N] [--steps K] [--warmup W]");
+        System.out.println("                           [--seed S] [--species M] [--aspect A]");
+        System.out.println("                           [--threads T] [--mode WRAP|CLOSED|INFINITE]");
+        System.out.println("                           [--full-shell] [--analytic-kernel] [--vector]");
+        System.out.println("                           [--off-heap] [--neighbour-lists] [--skin S]");
+        System.out.println("                           [--sleep] [--sleep-tolerance D] [--sleep-interval K]");
+        System.out.println("                           [--subdivide] [--subdivide-threshold N]");
+        System.out.println("                           [--integrator EULER|VERLET] [--dt DT]");
+        System.out.println("                           [--adaptive-dt] [--dt-tolerance T]");
+        System.out.println("                           [--load FILE] [--save FILE]");
+        System.out.println("                           [--record FILE] [--record-every K]");
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+// ParticleStore backed by plain Java arrays.
+final class HeapParticleStore extends ParticleStore {
+    private float[] positionsX = new float[0];
+    private float[] positionsY = new float[0];
+    private float[] velocitiesX = new float[0];
+    private float[] velocitiesY = new float[0];
+    private byte[] colors = new byte[0];
+
+    @Override
+    int capacity() {
+        return positionsX.length;
+    }
+
+    @Override
+    int maxCapacity() {
+        return Integer.MAX_VALUE - 8;
+    }
+
+    @Override
+    boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    float x(int i) {
+        return positionsX[i];
+    }
+
+    @Override
+    float y(int i) {
+        return positionsY[i];
+    }
+
+    @Override
+    float vx(int i) {
+        return velocitiesX[i];
+    }
+
+    @Override
+    float vy(int i) {
+        return velocitiesY[i];
+    }
+
+    @Override
+    int species(int i) {
+        return colors[i];
+    }
+
+    @Override
+    void setPosition(int i, float x, float y) {
+        positionsX[i] = x;
+        positionsY[i] = y;
+    }
+
+    @Override
+    void setVelocity(int i, float vx, float vy) {
+        velocitiesX[i] = vx;
+        velocitiesY[i] = vy;
+    }
+
+    @Override
+    void setSpecies(int i, int species) {
+        colors[i] = (byte) species;
+    }
+
+    @Override
+    void copyPositions(float[] xs, float[] ys, int n) {
+        System.arraycopy(positionsX, 0, xs, 0, n);
+        System.arraycopy(positionsY, 0, ys, 0, n);
+    }
+
+    @Override
+    void copySpecies(byte[] dst, int n) {
+        System.arraycopy(colors, 0, dst, 0, n);
+    }
+
+    @Override
+    void copyVelocities(float[] vxs, float[] vys, int n) {
+        System.arraycopy(velocitiesX, 0, vxs, 0, n);
+        System.arraycopy(velocitiesY, 0, vys, 0, n);
+    }
+
+    @Override
+    protected void putColumns(float[] xs, float[] ys, float[] vxs, float[] vys, byte[] species, int n) {
+        System.arraycopy(xs, 0, positionsX, 0, n);
+        System.arraycopy(ys, 0, positionsY, 0, n);
+        System.arraycopy(vxs, 0, velocitiesX, 0, n);
+        System.arraycopy(vys, 0, velocitiesY, 0, n);
+        System.arraycopy(species, 0, colors, 0, n);
+    }
+
+    @Override
+    protected void reallocate(int capacity) {
+        positionsX = Arrays.copyOf(positionsX, capacity);
+        positionsY = Arrays.copyOf(positionsY, capacity);
+        velocitiesX = Arrays.copyOf(velocitiesX, capacity);
+        velocitiesY = Arrays.copyOf(velocitiesY, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+    }
+}
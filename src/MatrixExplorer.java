@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Batch search for interesting matrices: runs many small headless simulations at once, one per
+// core, each from its own seed, and ranks them by MatrixMetrics.score(). The engine draws its
+// random matrix and particles from the seed, so run S starts exactly as
+// `HeadlessRunner --seed S --particles P` does.
+//
+//   java -cp bin MatrixExplorer --runs 200 --particles 2000 --steps 600 --top 10 --out explore
+//
+// The top runs are written to the output directory as snapshots of their final state, named
+// by rank and seed, for `ParticleLife --load FILE`, together with ranking.csv for every run.
+public class MatrixExplorer {
+
+    // One finished run
+    private static final class Result {
+        final long seed;
+        final double score;
+        final double speed;
+        final double dense;
+        final double clusters;
+        final double persistence;
+        final SimulationState state;
+
+        Result(long seed, MatrixMetrics metrics, SimulationState state) {
+            this.seed = seed;
+            this.score = metrics.score();
+            this.speed = metrics.getMeanSpeed();
+            this.dense = metrics.getDenseFraction();
+            this.clusters = metrics.getMeanClusters();
+            this.persistence = metrics.getPersistence();
+            this.state = state;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int runs = 100;
+        int particles = 2000;
+        int steps = 500;
+        int sampleEvery = 10;
+        long seed = 1;
+        int species = SimulationEngine.DEFAULT_SPECIES;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 10;
+        Path outDir = Paths.get("explore");
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--runs":
+                    runs = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--particles":
+                    particles = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--steps":
+                    steps = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--sample-every":
+                    sampleEvery = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--species":
+                    species = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--top":
+                    top = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--out":
+                    outDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    usage();
+                    System.exit(2);
+            }
+        }
+
+        System.out.printf("runs=%d particles=%d steps=%d species=%d seeds=%d..%d threads=%d%n",
+                runs, particles, steps, species, seed, seed + runs - 1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            long runSeed = seed + r;
+            int n = particles, k = steps, every = sampleEvery, m = species;
+            futures.add(pool.submit(() -> run(runSeed, m, n, k, every)));
+        }
+        pool.shutdown();
+
+        List<Result> results = new ArrayList<>();
+        int reportEvery = Math.max(1, runs / 10);
+        try {
+            for (Future<Result> f : futures) {
+                results.add(f.get());
+                if (results.size() % reportEvery == 0 || results.size() == runs) {
+                    double minutes = (System.nanoTime() - start) / 6e10;
+                    System.out.printf(Locale.ROOT, "%d / %d runs, %.1f simulations/minute%n",
+                            results.size(), runs, results.size() / minutes);
+                }
+            }
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            throw new IllegalStateException("run failed", e.getCause());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        results.sort(Comparator.comparingDouble((Result r) -> r.score).reversed());
+        Files.createDirectories(outDir);
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(outDir.resolve("ranking.csv")))) {
+            csv.println("rank,seed,score,speed,dense,clusters,persistence");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                csv.printf(Locale.ROOT, "%d,%d,%.5f,%.5f,%.4f,%.2f,%.4f%n",
+                        i + 1, r.seed, r.score, r.speed, r.dense, r.clusters, r.persistence);
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%d runs in %.1f s: %.1f simulations/minute, %.3e particle-steps/s%n",
+                runs, seconds, runs / (seconds / 60), (double) runs * particles * steps / seconds);
+        System.out.println("rank      seed    score    speed   dense  clusters  persistence  file");
+        for (int i = 0; i < Math.min(top, results.size()); i++) {
+            Result r = results.get(i);
+            Path file = outDir.resolve(String.format(Locale.ROOT, "rank%02d-seed%d.snapshot", i + 1, r.seed));
+            SnapshotFile.write(r.state, file);
+            System.out.printf(Locale.ROOT, "%4d %9d  %7.4f  %7.4f  %6.3f  %8.1f  %11.3f  %s%n",
+                    i + 1, r.seed, r.score, r.speed, r.dense, r.clusters, r.persistence, file);
+        }
+        System.out.println("ranking of all runs: " + outDir.resolve("ranking.csv"));
+    }
+
+    // Steps one seeded simulation on the calling thread, sampling the metrics over its second
+    // half so that the transient from the uniform start is not scored.
+    private static Result run(long seed, int species, int particles, int steps, int sampleEvery) {
+        SimulationEngine engine = new SimulationEngine(seed, species);
+        engine.setBoundaryMode(SimulationEngine.BoundaryMode.WRAP);
+        engine.generateRandomParticles(particles);
+        MatrixMetrics metrics = new MatrixMetrics();
+        int burnIn = steps / 2;
+        for (int s = 1; s <= steps; s++) {
+            engine.step(1);
+            if (s > burnIn && (s - burnIn) % sampleEvery == 0) {
+                metrics.sample(engine);
+            }
+        }
+        SimulationState state = new SimulationState();
+        state.captureFrom(engine);
+        return new Result(seed, metrics, state);
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java MatrixExplorer [--runs N] [--particles P] [--steps K]");
+        System.out.println("                           [--sample-every K] [--seed S] [--species M]");
+        System.out.println("                           [--threads T] [--top K] [--out DIR]");
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+// Cheap online measures of how much structure a run shows, sampled every few steps by the
+// MatrixExplorer. Particles are binned into a coarse GRID x GRID density field over the unit
+// square (WRAP runs only). Per sample:
+//
+//   speed        mean particle speed
+//   dense        share of particles in cells holding DENSE_FACTOR times the mean density
+//   clusters     connected groups of dense cells (4-neighbour, wrapping)
+//   persistence  correlation of the density field with the previous sample's: near 1 when
+//                structures hold still or drift slowly, near 0 for a churning gas
+//
+// The score rewards what the eye looks for: most particles in a handful of lasting clusters
+// that still move. It is a heuristic for ranking, not a physical quantity.
+class MatrixMetrics {
+    static final int GRID = 32;
+    static final double DENSE_FACTOR = 3.0;
+    // Speed at which activity reaches half its maximum weight
+    static final double SPEED_REF = 0.02;
+    // Cluster counts from 1 up to this are weighted linearly, above it fully
+    static final int CLUSTER_REF = 4;
+
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] vxs = new float[0];
+    private float[] vys = new float[0];
+    private int[] density = new int[GRID * GRID];
+    private int[] previous = new int[GRID * GRID];
+    private final int[] component = new int[GRID * GRID];
+    private final int[] queue = new int[GRID * GRID];
+    private boolean hasPrevious;
+
+    private int samples;
+    private int persistenceSamples;
+    private double speedSum;
+    private double denseSum;
+    private double clusterSum;
+    private double persistenceSum;
+
+    void sample(SimulationEngine engine) {
+        int n = engine.getParticleCount();
+        if (xs.length < n) {
+            xs = new float[n];
+            ys = new float[n];
+            vxs = new float[n];
+            vys = new float[n];
+        }
+        engine.copyPositions(xs, ys);
+        engine.copyVelocities(vxs, vys);
+
+        int[] field = density;
+        Arrays.fill(field, 0);
+        double speed = 0;
+        for (int i = 0; i < n; i++) {
+            int gx = Math.min(GRID - 1, Math.max(0, (int) (xs[i] * GRID)));
+            int gy = Math.min(GRID - 1, Math.max(0, (int) (ys[i] * GRID)));
+            field[gy * GRID + gx]++;
+            speed += Math.sqrt(vxs[i] * vxs[i] + vys[i] * vys[i]);
+        }
+        samples++;
+        if (n == 0) return;
+        speedSum += speed / n;
+
+        int threshold = (int) Math.ceil(DENSE_FACTOR * n / (GRID * GRID));
+        int inDense = 0;
+        for (int c = 0; c < field.length; c++) {
+            if (field[c] >= threshold) inDense += field[c];
+        }
+        denseSum += (double) inDense / n;
+        clusterSum += countClusters(field, threshold);
+
+        if (hasPrevious) {
+            persistenceSum += correlation(field, previous);
+            persistenceSamples++;
+        }
+        density = previous;
+        previous = field;
+        hasPrevious = true;
+    }
+
+    private int countClusters(int[] field, int threshold) {
+        Arrays.fill(component, -1);
+        int clusters = 0;
+        for (int start = 0; start < field.length; start++) {
+            if (field[start] < threshold || component[start] >= 0) continue;
+            int head = 0, tail = 0;
+            queue[tail++] = start;
+            component[start] = clusters;
+            while (head < tail) {
+                int c = queue[head++];
+                int gx = c % GRID;
+                int gy = c / GRID;
+                for (int d = 0; d < 4; d++) {
+                    int nx = (gx + (d == 0 ? 1 : d == 1 ? GRID - 1 : 0)) % GRID;
+                    int ny = (gy + (d == 2 ? 1 : d == 3 ? GRID - 1 : 0)) % GRID;
+                    int nc = ny * GRID + nx;
+                    if (field[nc] >= threshold && component[nc] < 0) {
+                        component[nc] = clusters;
+                        queue[tail++] = nc;
+                    }
+                }
+            }
+            clusters++;
+        }
+        return clusters;
+    }
+
+    private static double correlation(int[] a, int[] b) {
+        int n = a.length;
+        double meanA = 0, meanB = 0;
+        for (int i = 0; i < n; i++) {
+            meanA += a[i];
+            meanB += b[i];
+        }
+        meanA /= n;
+        meanB /= n;
+        double cov = 0, varA = 0, varB = 0;
+        for (int i = 0; i < n; i++) {
+            double da = a[i] - meanA;
+            double db = b[i] - meanB;
+            cov += da * db;
+            varA += da * da;
+            varB += db * db;
+        }
+        return varA == 0 || varB == 0 ? 0 : cov / Math.sqrt(varA * varB);
+    }
+
+    double getMeanSpeed() {
+        return samples == 0 ? 0 : speedSum / samples;
+    }
+
+    double getDenseFraction() {
+        return samples == 0 ? 0 : denseSum / samples;
+    }
+
+    double getMeanClusters() {
+        return samples == 0 ? 0 : clusterSum / samples;
+    }
+
+    double getPersistence() {
+        return persistenceSamples == 0 ? 0 : persistenceSum / persistenceSamples;
+    }
+
+    double score() {
+        double speed = getMeanSpeed();
+        double activity = speed / (speed + SPEED_REF);
+        double clusters = Math.min(1.0, getMeanClusters() / CLUSTER_REF);
+        return getDenseFraction() * Math.max(0, getPersistence()) * activity * clusters;
+    }
+}
@@ -9,6 +9,8 @@ import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.BorderFactory;
 import javax.swing.JScrollPane;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
@@ -21,39 +23,66 @@ import java.awt.GridBagLayout;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
 import java.awt.Point;
-import java.awt.image.BufferedImage;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseWheelEvent;
-import java.awt.geom.Point2D;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Random;
-import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 
 public class ParticleLife extends JFrame {
     private SimulationPanel simulationPanel;
     private JPanel controlPanel;
     private MatrixPanel matrixPanel;
+    private JButton boundaryButton;
+    private final JFileChooser stateChooser = new JFileChooser();
+    private final JFileChooser trajectoryChooser = new JFileChooser();
+    private JPanel playbackBar;
+    private JSlider playbackSlider;
+    private JButton playbackPauseButton;
+    private boolean updatingSlider = false;
     private boolean uiVisible = true;
 
     
     
     public ParticleLife() {
+        this(SimulationEngine.DEFAULT_SPECIES);
+    }
+
+    public ParticleLife(int speciesCount) {
         setTitle("Particle Life Simulation");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
         
-        simulationPanel = new SimulationPanel();
+        simulationPanel = new SimulationPanel(speciesCount);
         add(simulationPanel, BorderLayout.CENTER);
         
         createControlPanel();
         add(controlPanel, BorderLayout.EAST);
+
+        createPlaybackBar();
+        add(playbackBar, BorderLayout.SOUTH);
+
+        // Finish the recording's index before exiting
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                try {
+                    simulationPanel.stopRecording();
+                } catch (IOException ex) {
+                    System.err.println("Could not finish recording: " + ex.getMessage());
+                }
+            }
+        });
         
         // Toggle UI with H key
         addKeyListener(new KeyAdapter() {
@@ -61,6 +90,8 @@ public class ParticleLife extends JFrame {
             public void keyPressed(KeyEvent e) {
                 if (e.getKeyCode() == KeyEvent.VK_H) {
                     toggleUI();
+                } else if (e.getKeyCode() == KeyEvent.VK_S) {
+                    simulationPanel.toggleStats();
                 }
             }
         });
@@ -99,27 +130,64 @@ public class ParticleLife extends JFrame {
         topPanel.add(pauseButton);
 
         JButton randomAllButton = new JButton("Randomize Everything");
-        randomAllButton.addActionListener(e -> {
-            simulationPanel.randomizeEverything();
-            matrixPanel.updateFields();
-        });
+        randomAllButton.addActionListener(e -> simulationPanel.randomizeEverything());
         topPanel.add(randomAllButton);
         
         JButton randomButton = new JButton("Random Matrix");
         randomButton.addActionListener(e -> {
             simulationPanel.randomizeMatrix();
             simulationPanel.generateRandomParticles(10000);
-            matrixPanel.updateFields();
         });
         topPanel.add(randomButton);
         
         // Boundary mode toggle
-        JButton boundaryButton = new JButton("Mode: Wrap");
+        boundaryButton = new JButton("Mode: Wrap");
         boundaryButton.addActionListener(e -> {
             String mode = simulationPanel.cycleBoundaryMode();
             boundaryButton.setText("Mode: " + mode);
         });
         topPanel.add(boundaryButton);
+
+        // Simulation speed: steps per second, independent of the paint rate
+        String[] speeds = {"Speed: 1x", "Speed: 2x", "Speed: 4x", "Speed: 8x", "Speed: Max"};
+        double[] stepRates = {60, 120, 240, 480, 0};
+        JComboBox<String> speedCombo = new JComboBox<>(speeds);
+        speedCombo.addActionListener(e ->
+            simulationPanel.setStepsPerSecond(stepRates[speedCombo.getSelectedIndex()]));
+        topPanel.add(speedCombo);
+
+        JButton saveButton = new JButton("Save State");
+        saveButton.addActionListener(e -> saveState());
+        topPanel.add(saveButton);
+
+        JButton loadButton = new JButton("Load State");
+        loadButton.addActionListener(e -> {
+            if (stateChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                loadState(stateChooser.getSelectedFile().toPath());
+            }
+        });
+        topPanel.add(loadButton);
+
+        JButton recordButton = new JButton("Record");
+        recordButton.addActionListener(e -> toggleRecording(recordButton));
+        topPanel.add(recordButton);
+
+        JButton playbackButton = new JButton("Playback");
+        playbackButton.addActionListener(e -> {
+            if (trajectoryChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                startPlayback(trajectoryChooser.getSelectedFile().toPath());
+            }
+        });
+        topPanel.add(playbackButton);
+
+        JButton sleepButton = new JButton("Sleep: Off");
+        sleepButton.addActionListener(e ->
+            sleepButton.setText(simulationPanel.toggleSleeping() ? "Sleep: On" : "Sleep: Off"));
+        topPanel.add(sleepButton);
+
+        JButton statsButton = new JButton("Stats (S)");
+        statsButton.addActionListener(e -> simulationPanel.toggleStats());
+        topPanel.add(statsButton);
         
         
         controlPanel.add(topPanel, BorderLayout.NORTH);
@@ -131,6 +199,7 @@ public class ParticleLife extends JFrame {
         
         // Matrix editor
         matrixPanel = new MatrixPanel(simulationPanel);
+        simulationPanel.setMatrixListener(matrixPanel::updateFields);
         contentPanel.add(matrixPanel, BorderLayout.NORTH);
         
         // Particle placement controls
@@ -172,7 +241,7 @@ public class ParticleLife extends JFrame {
         placementPanel.add(shapeLabel, gbc);
         
         gbc.gridx = 1;
-        String[] shapes = {"Circle", "Square", "Line", "Ring"};
+        String[] shapes = {"Circle", "Square", "Line", "Ring", "Erase"};
         JComboBox<String> shapeCombo = new JComboBox<>(shapes);
         shapeCombo.addActionListener(e -> 
             simulationPanel.setPlacementShape((String) shapeCombo.getSelectedItem()));
@@ -206,14 +275,20 @@ public class ParticleLife extends JFrame {
         placementPanel.add(speciesLabel, gbc);
         
         gbc.gridy++;
+        int speciesCount = simulationPanel.getSpeciesCount();
+        boolean compact = speciesCount > SimulationEngine.DEFAULT_SPECIES;
         JPanel colorPanel = new JPanel();
-        colorPanel.setLayout(new FlowLayout(FlowLayout.LEFT));
+        // Many species get smaller buttons in a wrapping grid
+        colorPanel.setLayout(compact ? new GridLayout(0, 8, 2, 2) : new FlowLayout(FlowLayout.LEFT));
         colorPanel.setBackground(new Color(40, 40, 40));
         
-        for (int i = 0; i < SimulationPanel.M; i++) {
+        for (int i = 0; i < speciesCount; i++) {
             final int species = i;
             JButton colorBtn = new JButton(String.valueOf(i));
-            colorBtn.setPreferredSize(new Dimension(50, 40));
+            colorBtn.setPreferredSize(compact ? new Dimension(36, 24) : new Dimension(50, 40));
+            if (compact) {
+                colorBtn.setMargin(new Insets(0, 0, 0, 0));
+            }
             colorBtn.setBackground(simulationPanel.particleColors[i]);
             colorBtn.setForeground(Color.BLACK);
             colorBtn.addActionListener(e -> {
@@ -233,6 +308,119 @@ public class ParticleLife extends JFrame {
         return placementPanel;
     }
     
+    private void saveState() {
+        if (stateChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path path = stateChooser.getSelectedFile().toPath();
+        simulationPanel.saveState(path).whenComplete((ignored, error) -> {
+            if (error != null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Could not save " + path + ":\n" + error.getMessage(),
+                        "Save State", JOptionPane.ERROR_MESSAGE));
+            }
+        });
+    }
+
+    void loadState(Path path) {
+        SimulationState state = new SimulationState();
+        try {
+            SnapshotFile.read(path, state);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not load " + path + ":\n" + e.getMessage(),
+                    "Load State", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (state.speciesCount != simulationPanel.getSpeciesCount()) {
+            JOptionPane.showMessageDialog(this, "The snapshot has " + state.speciesCount
+                    + " species; start the app with --species " + state.speciesCount + " to load it.",
+                    "Load State", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        boundaryButton.setText("Mode: " + simulationPanel.loadState(state));
+    }
+
+    private void toggleRecording(JButton recordButton) {
+        try {
+            if (simulationPanel.isRecording()) {
+                simulationPanel.stopRecording();
+                recordButton.setText("Record");
+            } else if (trajectoryChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                simulationPanel.startRecording(trajectoryChooser.getSelectedFile().toPath());
+                recordButton.setText("Stop Recording");
+            }
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Recording failed:\n" + e.getMessage(),
+                    "Record", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Slider, pause and exit controls, shown only while a recording plays back
+    private void createPlaybackBar() {
+        playbackBar = new JPanel(new BorderLayout(5, 5));
+        playbackBar.setBackground(new Color(40, 40, 40));
+
+        playbackPauseButton = new JButton("Pause");
+        playbackPauseButton.addActionListener(e -> {
+            boolean running = !simulationPanel.isPlaybackRunning();
+            simulationPanel.setPlaybackRunning(running);
+            playbackPauseButton.setText(running ? "Pause" : "Play");
+        });
+        playbackBar.add(playbackPauseButton, BorderLayout.WEST);
+
+        playbackSlider = new JSlider(0, 0, 0);
+        playbackSlider.setBackground(new Color(40, 40, 40));
+        playbackSlider.addChangeListener(e -> {
+            if (!updatingSlider) {
+                simulationPanel.seekPlayback(playbackSlider.getValue());
+            }
+        });
+        playbackBar.add(playbackSlider, BorderLayout.CENTER);
+
+        JButton liveButton = new JButton("Back to Live");
+        liveButton.addActionListener(e -> {
+            simulationPanel.stopPlayback();
+            playbackBar.setVisible(false);
+        });
+        playbackBar.add(liveButton, BorderLayout.EAST);
+
+        simulationPanel.setPlaybackListener(frame -> {
+            updatingSlider = true;
+            playbackSlider.setValue(frame);
+            updatingSlider = false;
+        });
+        playbackBar.setVisible(false);
+    }
+
+    void startPlayback(Path path) {
+        TrajectoryReader reader;
+        try {
+            reader = new TrajectoryReader(path);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not open " + path + ":\n" + e.getMessage(),
+                    "Playback", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (reader.getSpeciesCount() > simulationPanel.getSpeciesCount() || reader.getFrameCount() == 0) {
+            String message = reader.getFrameCount() == 0 ? "The recording has no frames."
+                    : "The recording has " + reader.getSpeciesCount() + " species; start the app with --species "
+                    + reader.getSpeciesCount() + " to play it.";
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+                // Nothing was read from it
+            }
+            JOptionPane.showMessageDialog(this, message, "Playback", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        updatingSlider = true;
+        playbackSlider.setMaximum(reader.getFrameCount() - 1);
+        playbackSlider.setValue(0);
+        updatingSlider = false;
+        playbackPauseButton.setText("Pause");
+        simulationPanel.startPlayback(reader);
+        playbackBar.setVisible(true);
+        revalidate();
+    }
+
     private void toggleUI() {
         uiVisible = !uiVisible;
         controlPanel.setVisible(uiVisible);
@@ -243,31 +431,60 @@ public class ParticleLife extends JFrame {
         }
     }
     
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        int speciesCount = SimulationEngine.DEFAULT_SPECIES;
+        Path load = null;
+        Path autosave = null;
+        long autosaveSeconds = 60;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--species")) {
+                speciesCount = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--load")) {
+                load = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--autosave")) {
+                autosave = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--autosave-seconds")) {
+                autosaveSeconds = Long.parseLong(args[i + 1]);
+            }
+        }
+        // A loaded snapshot decides the species count
+        if (load != null) {
+            SimulationState state = new SimulationState();
+            SnapshotFile.read(load, state);
+            speciesCount = state.speciesCount;
+        }
+        int species = speciesCount;
+        Path loadPath = load;
+        Path autosavePath = autosave;
+        long autosaveMillis = autosaveSeconds * 1000;
         SwingUtilities.invokeLater(() -> {
-            ParticleLife frame = new ParticleLife();
+            ParticleLife frame = new ParticleLife(species);
+            if (loadPath != null) {
+                frame.loadState(loadPath);
+            }
+            if (autosavePath != null) {
+                frame.simulationPanel.startAutosave(autosavePath, autosaveMillis);
+            }
             frame.setVisible(true);
         });
     }
 }
 
 class SimulationPanel extends JPanel {
-    static final int MAX_PARTICLES = 50000;
-    static final double DT = 0.02;
-    static final double FRICTION_HALF_LIFE = 0.04;
-    static final double R_MAX = 0.1;
-    static final int M = 6;
-    static final double BETA = 0.3;
-
-    private final double frictionFactor;
-    private double[][] matrix;
-
-    private int particleCount = 0;
-    private final int[] colors = new int[MAX_PARTICLES];
-    private final float[] positionsX = new float[MAX_PARTICLES];
-    private final float[] positionsY = new float[MAX_PARTICLES];
-    private final float[] velocitiesX = new float[MAX_PARTICLES];
-    private final float[] velocitiesY = new float[MAX_PARTICLES];
+    // The engine is owned by the simulation thread; the panel only sends commands to it
+    // and paints published snapshots.
+    private final SimulationLoop loop;
+    private final int speciesCount;
+    private Autosaver autosaver;
+    private TrajectoryRecorder recorder;
+
+    // While a recording plays back, it is painted instead of the live simulation
+    private TrajectoryReader playback;
+    private boolean playbackRunning;
+    private IntConsumer playbackListener;
+    private Runnable matrixListener;
+    private long shownMatrixVersion = -1;
+    private double aspect = 0;
 
     final Color[] particleColors;
     private int selectedSpecies = 0;
@@ -275,132 +492,162 @@ class SimulationPanel extends JPanel {
     private String placementShape = "Circle";
     private final Random rand = new Random();
     
-    private Point dragStart = null;
-    private Point dragEnd = null;
-    private boolean paused = false;
+    // Mouse positions are copied into these rather than kept as event points; dragging and
+    // panning say whether they are in use
+    private final Point dragStart = new Point();
+    private final Point dragEnd = new Point();
+    private boolean dragging;
+    private SimulationEngine.BoundaryMode boundaryMode = SimulationEngine.BoundaryMode.WRAP;
     
     // Camera/viewport controls
     private double cameraX = 0.5;
     private double cameraY = 0.5;
     private double zoom = 1.0;
-    private Point lastPanPoint = null;
-    
-    // Boundary mode
-    private BoundaryMode boundaryMode = BoundaryMode.WRAP;
+    private final Point lastPanPoint = new Point();
+    private boolean panning;
     
-    // Performance optimization: buffered image
-    private BufferedImage buffer;
-    private Graphics2D bufferGraphics;
+    // Particles are rasterized into an image that is blitted once per frame
+    private final ParticleRenderer renderer = new ParticleRenderer();
+    private int drawnParticles;
+    private final int[] speciesRGB;
     
-    // FPS tracking
+    // Painted frames per second
     private long lastFrameTime = System.nanoTime();
     private int frameCount = 0;
     private double fps = 60.0;
-    
-    enum BoundaryMode {
-        WRAP,
-        CLOSED,
-        INFINITE
-    }
 
-    void randomizeEverything() {
-        matrix = makeRandomMatrix();
-
-        int newM = 3 + rand.nextInt(M - 2);
-        List<Integer> indices = new ArrayList<>();
-        for (int i = 0; i < M; i++) indices.add(i);
-        Collections.shuffle(indices, rand);
+    // Per-phase timing overlay
+    private boolean showStats = false;
 
-        int[] speciesMapping = new int[newM];
-        for (int i = 0; i < newM; i++) speciesMapping[i] = indices.get(i);
+    // Whether settled regions may sleep, mirrored to the engine by toggleSleeping
+    private boolean sleeping;
 
-        particleCount = 0;
+    // Nothing below is allocated per frame: the text lines are formatted into reused buffers
+    // and only when what they show changes (the stats overlay at most every
+    // STATS_REFRESH_NANOS), the stats backdrop is shaded into the rasterized frame, and the
+    // Flight Recorder event is reused, begin() restarting its timing.
+    private static final Color BORDER_COLOR = new Color(60, 60, 60);
+    private static final int STATS_SHADE = 160;
+    private static final long STATS_REFRESH_NANOS = 250_000_000L;
+    private final RenderEvent renderEvent = new RenderEvent();
+    private final TextLine countLine = new TextLine();
+    private int countLineParticles = -1;
+    private double countLineBytes;
+    private final TextLine statusLine = new TextLine();
+    private double statusZoom;
+    private String statusMode;
+    private double statusFps;
+    private double statusStepsPerSecond;
+    private boolean statusRecording;
+    private final TextLine[] statsLines = new TextLine[7];
+    private long statsRefreshed = -1;
+    private final TextLine playbackLine = new TextLine();
 
-        int count = 5000 + rand.nextInt(15000);
-        for (int i = 0; i < count && particleCount < MAX_PARTICLES; i++) {
-            int species = speciesMapping[rand.nextInt(newM)];
-            colors[particleCount] = species;
+    // Unit circle for the placement preview, drawn as line segments: Graphics2D.drawOval builds
+    // a shape and a span iterator on every call
+    private static final int CIRCLE_SEGMENTS = 64;
+    private static final double[] CIRCLE_COS = new double[CIRCLE_SEGMENTS + 1];
+    private static final double[] CIRCLE_SIN = new double[CIRCLE_SEGMENTS + 1];
 
-            positionsX[particleCount] = rand.nextFloat();
-            positionsY[particleCount] = rand.nextFloat();
-            velocitiesX[particleCount] = (rand.nextFloat() - 0.5f) * 0.01f;
-            velocitiesY[particleCount] = (rand.nextFloat() - 0.5f) * 0.01f;
-            particleCount++;
+    static {
+        for (int i = 0; i <= CIRCLE_SEGMENTS; i++) {
+            CIRCLE_COS[i] = Math.cos(2 * Math.PI * i / CIRCLE_SEGMENTS);
+            CIRCLE_SIN[i] = Math.sin(2 * Math.PI * i / CIRCLE_SEGMENTS);
         }
     }
 
-    private static final Color[] defaultSpeciesColors = new Color[] {
-            Color.RED,
-            Color.ORANGE,
-            Color.YELLOW,
-            Color.GREEN,
-            Color.CYAN,
-            Color.MAGENTA
-    };
+    void randomizeEverything() {
+        loop.submit(SimulationEngine::randomizeEverything);
+    }
+
+    public SimulationPanel(int speciesCount) {
+        this(new SimulationLoop(new SimulationEngine(new Random().nextLong(), speciesCount)), speciesCount);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        loop.submit(engine -> engine.setThreads(threads));
+
+        loop.getMetrics().register();
+        loop.start();
 
-    public SimulationPanel() {
+        // Repaint at display rate; stepping happens on the simulation thread
+        Timer timer = new Timer(16, e -> repaint());
+        timer.start();
+    }
+
+    // Paints the snapshots of a loop that the caller drives, e.g. with SimulationLoop.cycle,
+    // without starting it or the repaint timer. AllocationBudget paints frames with it.
+    SimulationPanel(SimulationLoop loop, int speciesCount) {
         setPreferredSize(new Dimension(900, 700));
         setBackground(Color.BLACK);
 
-        frictionFactor = Math.pow(0.5, DT / FRICTION_HALF_LIFE);
-        matrix = makeRandomMatrix();
+        this.speciesCount = speciesCount;
+        this.loop = loop;
+
+        for (int i = 0; i < statsLines.length; i++) {
+            statsLines[i] = new TextLine();
+        }
 
-        particleColors = new Color[M];
-        for (int i = 0; i < M; i++) {
-            particleColors[i] = defaultSpeciesColors[i];
+        speciesRGB = ParticleRenderer.speciesPalette(speciesCount);
+        particleColors = new Color[speciesCount];
+        for (int i = 0; i < speciesCount; i++) {
+            particleColors[i] = new Color(speciesRGB[i]);
         }
 
         MouseAdapter mouseHandler = new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
                 if (e.getButton() == MouseEvent.BUTTON3) {
-                    lastPanPoint = e.getPoint();
+                    lastPanPoint.setLocation(e.getX(), e.getY());
+                    panning = true;
                 } else {
-                    dragStart = e.getPoint();
-                    dragEnd = e.getPoint();
+                    dragStart.setLocation(e.getX(), e.getY());
+                    dragEnd.setLocation(e.getX(), e.getY());
+                    dragging = true;
                 }
             }
             
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (lastPanPoint != null) {
+                if (panning) {
                     int dx = e.getX() - lastPanPoint.x;
                     int dy = e.getY() - lastPanPoint.y;
                     
                     cameraX -= (double) dx / (getWidth() * zoom);
                     cameraY -= (double) dy / (getHeight() * zoom);
                     
-                    lastPanPoint = e.getPoint();
-                } else if (dragStart != null) {
-                    dragEnd = e.getPoint();
+                    lastPanPoint.setLocation(e.getX(), e.getY());
+                } else if (dragging) {
+                    dragEnd.setLocation(e.getX(), e.getY());
                 }
                 repaint();
             }
             
             @Override
             public void mouseReleased(MouseEvent e) {
-                if (lastPanPoint != null) {
-                    lastPanPoint = null;
-                } else if (dragStart != null && dragEnd != null) {
-                    addParticlesInShape(dragStart, dragEnd);
-                    dragStart = null;
-                    dragEnd = null;
+                if (panning) {
+                    panning = false;
+                } else if (dragging) {
+                    if (placementShape.equals("Erase")) {
+                        eraseParticlesInCircle(dragStart, dragEnd);
+                    } else {
+                        addParticlesInShape(dragStart, dragEnd);
+                    }
+                    dragging = false;
                 }
                 repaint();
             }
             
             @Override
             public void mouseWheelMoved(MouseWheelEvent e) {
-                Point2D.Double mouseWorld = screenToWorld(e.getX(), e.getY());
+                double mouseX = screenToWorldX(e.getX());
+                double mouseY = screenToWorldY(e.getY());
                 
                 double zoomFactor = e.getPreciseWheelRotation() > 0 ? 0.9 : 1.1;
                 zoom *= zoomFactor;
                 zoom = Math.max(0.1, Math.min(10.0, zoom));
                 
-                Point2D.Double mouseWorldAfter = screenToWorld(e.getX(), e.getY());
-                
-                cameraX += mouseWorld.x - mouseWorldAfter.x;
-                cameraY += mouseWorld.y - mouseWorldAfter.y;
+                cameraX += mouseX - screenToWorldX(e.getX());
+                cameraY += mouseY - screenToWorldY(e.getY());
                 
                 repaint();
             }
@@ -409,48 +656,171 @@ class SimulationPanel extends JPanel {
         addMouseListener(mouseHandler);
         addMouseMotionListener(mouseHandler);
         addMouseWheelListener(mouseHandler);
+    }
+    
+    private double screenToWorldX(int screenX) {
+        return cameraX + (screenX - getWidth() / 2.0) / (getWidth() * zoom);
+    }
+
+    private double screenToWorldY(int screenY) {
+        return cameraY + (screenY - getHeight() / 2.0) / (getHeight() * zoom);
+    }
 
-        Timer timer = new Timer(16, e -> {
-            if (!paused) {
-                updateParticles();
+    private int worldToScreenX(double worldX) {
+        return (int) ((worldX - cameraX) * getWidth() * zoom + getWidth() / 2.0);
+    }
+
+    private int worldToScreenY(double worldY) {
+        return (int) ((worldY - cameraY) * getHeight() * zoom + getHeight() / 2.0);
+    }
+
+    void randomizeMatrix() {
+        loop.submit(SimulationEngine::randomizeMatrix);
+    }
+
+    // Captures the state between two steps and writes it from a pool thread.
+    CompletableFuture<Void> saveState(Path path) {
+        return loop.capture(new SimulationState()).thenAcceptAsync(state -> {
+            try {
+                SnapshotFile.write(state, path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            repaint();
         });
-        timer.start();
     }
-    
-    private Point2D.Double screenToWorld(int screenX, int screenY) {
-        double worldX = cameraX + (screenX - getWidth() / 2.0) / (getWidth() * zoom);
-        double worldY = cameraY + (screenY - getHeight() / 2.0) / (getHeight() * zoom);
-        return new Point2D.Double(worldX, worldY);
+
+    // Replaces the running simulation with a loaded state and returns the new mode's label.
+    // The domain keeps following the panel's shape, so the saved aspect is replaced on the next paint.
+    String loadState(SimulationState state) {
+        loop.submit(state::applyTo);
+        aspect = 0;
+        boundaryMode = state.boundaryMode;
+        return modeLabel(boundaryMode);
     }
-    
-    private Point worldToScreen(double worldX, double worldY) {
-        int screenX = (int) ((worldX - cameraX) * getWidth() * zoom + getWidth() / 2.0);
-        int screenY = (int) ((worldY - cameraY) * getHeight() * zoom + getHeight() / 2.0);
-        return new Point(screenX, screenY);
+
+    boolean isRecording() {
+        return recorder != null;
+    }
+
+    // Records every step until stopRecording(); one keyframe every two seconds at 60 steps/s.
+    void startRecording(Path path) throws IOException {
+        stopRecording();
+        recorder = new TrajectoryRecorder(path, 1, 120, 64);
+        loop.setStepObserver(recorder::onStep);
     }
 
-    private double[][] makeRandomMatrix() {
-        double[][] mat = new double[M][M];
-        for (int i = 0; i < M; i++) {
-            for (int j = 0; j < M; j++) {
-                mat[i][j] = (rand.nextDouble() * 1.0) - 0.5;
+    void stopRecording() throws IOException {
+        if (recorder == null) return;
+        loop.setStepObserver(null);
+        // Commands run between steps, so once this one has run the recorder is no longer in use
+        CompletableFuture<Void> idle = new CompletableFuture<>();
+        loop.submit(engine -> idle.complete(null));
+        idle.join();
+        TrajectoryRecorder finished = recorder;
+        recorder = null;
+        finished.close();
+    }
+
+    void startPlayback(TrajectoryReader reader) {
+        stopPlayback();
+        playback = reader;
+        playbackRunning = true;
+        seekPlayback(0);
+    }
+
+    void stopPlayback() {
+        if (playback == null) return;
+        try {
+            playback.close();
+        } catch (IOException e) {
+            System.err.println("Could not close recording: " + e.getMessage());
+        }
+        playback = null;
+        repaint();
+    }
+
+    boolean isPlaybackRunning() {
+        return playbackRunning;
+    }
+
+    void setPlaybackRunning(boolean running) {
+        playbackRunning = running;
+    }
+
+    void seekPlayback(int frame) {
+        if (playback == null) return;
+        try {
+            playback.seek(frame);
+        } catch (IOException e) {
+            System.err.println("Playback failed: " + e.getMessage());
+            stopPlayback();
+        }
+        repaint();
+    }
+
+    // Called on the EDT with the frame number whenever playback advances.
+    void setPlaybackListener(IntConsumer listener) {
+        playbackListener = listener;
+    }
+
+    // Advances playback by one frame per paint; stops on the last frame.
+    private void advancePlayback() {
+        if (!playbackRunning) return;
+        try {
+            if (!playback.next()) {
+                playbackRunning = false;
+                return;
             }
+        } catch (IOException e) {
+            System.err.println("Playback failed: " + e.getMessage());
+            playbackRunning = false;
+            return;
+        }
+        if (playbackListener != null) {
+            playbackListener.accept(playback.getFrame());
         }
-        return mat;
     }
 
-    void randomizeMatrix() {
-        matrix = makeRandomMatrix();
+    void startAutosave(Path path, long intervalMillis) {
+        if (autosaver != null) {
+            autosaver.stop();
+        }
+        autosaver = new Autosaver(loop, path, intervalMillis);
+        autosaver.start();
     }
 
+    int getSpeciesCount() {
+        return speciesCount;
+    }
+
+    // Copy of the matrix as of the latest published frame
     double[][] getMatrix() {
-        return matrix;
+        FrameSnapshot snapshot = loop.acquire();
+        try {
+            int m = snapshot.speciesCount;
+            double[][] copy = new double[m][m];
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < m; j++) {
+                    copy[i][j] = snapshot.matrix[i * m + j];
+                }
+            }
+            return copy;
+        } finally {
+            loop.release();
+        }
     }
 
     void setMatrixValue(int i, int j, double value) {
-        matrix[i][j] = Math.max(-1, Math.min(1, value));
+        loop.submit(engine -> engine.setMatrixValue(i, j, value));
+    }
+
+    // Called on the EDT whenever a painted frame shows a changed matrix.
+    void setMatrixListener(Runnable listener) {
+        matrixListener = listener;
+    }
+
+    void setStepsPerSecond(double stepsPerSecond) {
+        loop.setStepsPerSecond(stepsPerSecond);
     }
 
     void setSelectedSpecies(int species) {
@@ -466,51 +836,50 @@ class SimulationPanel extends JPanel {
     }
     
     boolean togglePause() {
-        paused = !paused;
-        return paused;
+        loop.setPaused(!loop.isPaused());
+        return loop.isPaused();
     }
     
     String cycleBoundaryMode() {
         switch (boundaryMode) {
             case WRAP:
-                boundaryMode = BoundaryMode.CLOSED;
-                return "Closed";
+                boundaryMode = SimulationEngine.BoundaryMode.CLOSED;
+                break;
             case CLOSED:
-                boundaryMode = BoundaryMode.INFINITE;
-                return "Infinite";
+                boundaryMode = SimulationEngine.BoundaryMode.INFINITE;
+                break;
+            default:
+                boundaryMode = SimulationEngine.BoundaryMode.WRAP;
+        }
+        SimulationEngine.BoundaryMode mode = boundaryMode;
+        loop.submit(engine -> engine.setBoundaryMode(mode));
+        return modeLabel(mode);
+    }
+
+    private static String modeLabel(SimulationEngine.BoundaryMode mode) {
+        switch (mode) {
+            case CLOSED:
+                return "Closed";
             case INFINITE:
-                boundaryMode = BoundaryMode.WRAP;
-                return "Wrap";
+                return "Infinite";
             default:
                 return "Wrap";
         }
     }
 
     void clearParticles() {
-        particleCount = 0;
+        loop.submit(SimulationEngine::clearParticles);
     }
     
     void generateRandomParticles(int count) {
-        clearParticles();
-        count = Math.min(count, MAX_PARTICLES);
-        for (int i = 0; i < count; i++) {
-            colors[i] = rand.nextInt(M);
-            positionsX[i] = rand.nextFloat();
-            positionsY[i] = rand.nextFloat();
-            velocitiesX[i] = 0;
-            velocitiesY[i] = 0;
-        }
-        particleCount = count;
+        loop.submit(engine -> engine.generateRandomParticles(count));
     }
 
     private void addParticlesInShape(Point start, Point end) {
-        Point2D.Double worldStart = screenToWorld(start.x, start.y);
-        Point2D.Double worldEnd = screenToWorld(end.x, end.y);
-        
-        double x1 = worldStart.x;
-        double y1 = worldStart.y;
-        double x2 = worldEnd.x;
-        double y2 = worldEnd.y;
+        double x1 = screenToWorldX(start.x);
+        double y1 = screenToWorldY(start.y);
+        double x2 = screenToWorldX(end.x);
+        double y2 = screenToWorldY(end.y);
         
         double centerX = (x1 + x2) / 2;
         double centerY = (y1 + y2) / 2;
@@ -518,9 +887,11 @@ class SimulationPanel extends JPanel {
         double height = Math.abs(y2 - y1);
         double radius = Math.hypot(width, height) / 2;
         
-        int toAdd = Math.min(placeCount, MAX_PARTICLES - particleCount);
-        
-        for (int i = 0; i < toAdd; i++) {
+        int species = selectedSpecies;
+        int count = placeCount;
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        for (int i = 0; i < count; i++) {
             double px, py;
             
             switch (placementShape) {
@@ -554,215 +925,205 @@ class SimulationPanel extends JPanel {
                     py = centerY;
             }
             
-            colors[particleCount] = selectedSpecies;
-            positionsX[particleCount] = (float) px;
-            positionsY[particleCount] = (float) py;
-            velocitiesX[particleCount] = 0;
-            velocitiesY[particleCount] = 0;
-            particleCount++;
+            xs[i] = (float) px;
+            ys[i] = (float) py;
         }
+
+        loop.submit(engine -> {
+            for (int i = 0; i < count; i++) {
+                if (!engine.addParticle(species, xs[i], ys[i])) break;
+            }
+        });
     }
 
-    private double force(double r, double a) {
-        if (r < BETA) {
-            return r / BETA - 1;
-        } else if (r < 1) {
-            return a * (1 - Math.abs(2 * r - 1 - BETA) / (1 - BETA));
-        }
-        return 0;
+    // Removes the particles inside the dragged circle. The engine measures aspect-scaled
+    // distance, in which the panel's height is one unit, so the radius converts at that height.
+    // Storage is given back once less than half of it is in use.
+    private void eraseParticlesInCircle(Point start, Point end) {
+        double centerX = screenToWorldX((start.x + end.x) / 2);
+        double centerY = screenToWorldY((start.y + end.y) / 2);
+        double radius = Math.hypot(end.x - start.x, end.y - start.y) / 2 / (getHeight() * zoom);
+        loop.submit(engine -> {
+            engine.removeParticlesNear(centerX, centerY, radius);
+            if (engine.getParticleCount() < engine.getParticleCapacity() / 2) {
+                engine.trimToSize();
+            }
+        });
     }
 
-    private void updateParticles() {
-        if (particleCount == 0) return;
-        
-        int width = getWidth();
-        int height = getHeight();
-        if (width == 0 || height == 0) return;
+    // Lets settled regions sleep; see SimulationEngine.setSleeping.
+    boolean toggleSleeping() {
+        sleeping = !sleeping;
+        boolean enabled = sleeping;
+        loop.submit(engine -> engine.setSleeping(enabled));
+        return sleeping;
+    }
 
-        double aspect = (double) width / height;
-        double gridSize = R_MAX;
+    void toggleStats() {
+        showStats = !showStats;
+        repaint();
+    }
 
-        // Spatial grid for optimized neighbor search
-        Map<Long, List<Integer>> grid = new HashMap<>(particleCount / 4);
-        
-        if (boundaryMode == BoundaryMode.WRAP) {
-            int cols = (int) Math.ceil(1.0 / gridSize);
-            int rows = cols;
-            
-            for (int i = 0; i < particleCount; i++) {
-                int gx = (int) Math.floor(positionsX[i] / gridSize);
-                int gy = (int) Math.floor(positionsY[i] / gridSize);
-                gx = ((gx % cols) + cols) % cols;
-                gy = ((gy % rows) + rows) % rows;
-                long key = ((long) gx << 32) | (gy & 0xFFFFFFFFL);
-                grid.computeIfAbsent(key, k -> new ArrayList<>(8)).add(i);
-            }
-            
-            // Calculate forces
-            for (int i = 0; i < particleCount; i++) {
-                double fx = 0, fy = 0;
-                int gx = (int) Math.floor(positionsX[i] / gridSize);
-                int gy = (int) Math.floor(positionsY[i] / gridSize);
-                gx = ((gx % cols) + cols) % cols;
-                gy = ((gy % rows) + rows) % rows;
-
-                for (int dx = -1; dx <= 1; dx++) {
-                    for (int dy = -1; dy <= 1; dy++) {
-                        int nx = ((gx + dx) % cols + cols) % cols;
-                        int ny = ((gy + dy) % rows + rows) % rows;
-                        long key = ((long) nx << 32) | (ny & 0xFFFFFFFFL);
-                        List<Integer> cell = grid.get(key);
-                        if (cell == null) continue;
-
-                        for (int j : cell) {
-                            if (i == j) continue;
-
-                            double rx = positionsX[j] - positionsX[i];
-                            double ry = positionsY[j] - positionsY[i];
-
-                            if (rx > 0.5)  rx -= 1.0;
-                            if (rx < -0.5) rx += 1.0;
-                            if (ry > 0.5)  ry -= 1.0;
-                            if (ry < -0.5) ry += 1.0;
-
-                            double dxAspect = rx * aspect;
-                            double dyAspect = ry;
-                            double r = Math.hypot(dxAspect, dyAspect);
-
-                            if (r > 0 && r < R_MAX) {
-                                double f = force(r / R_MAX, matrix[colors[i]][colors[j]]);
-                                double invR = 1.0 / r;
-                                fx += dxAspect * invR * f;
-                                fy += dyAspect * invR * f;
-                            }
-                        }
-                    }
-                }
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        RenderEvent event = renderEvent;
+        event.begin();
+        long start = System.nanoTime();
+        int particles = paintFrame(g2d);
+        long elapsed = System.nanoTime() - start;
+        event.end();
+        if (event.shouldCommit()) {
+            event.particles = particles;
+            event.drawn = drawnParticles;
+            event.commit();
+        }
 
-                velocitiesX[i] = (float) (velocitiesX[i] * frictionFactor + fx * DT / aspect);
-                velocitiesY[i] = (float) (velocitiesY[i] * frictionFactor + fy * DT);
-            }
-        } else {
-            // Closed or Infinite mode
-            for (int i = 0; i < particleCount; i++) {
-                int gx = (int) Math.floor(positionsX[i] / gridSize);
-                int gy = (int) Math.floor(positionsY[i] / gridSize);
-                long key = ((long) gx << 32) | (gy & 0xFFFFFFFFL);
-                grid.computeIfAbsent(key, k -> new ArrayList<>(8)).add(i);
-            }
-
-            for (int i = 0; i < particleCount; i++) {
-                double fx = 0, fy = 0;
-                int gx = (int) Math.floor(positionsX[i] / gridSize);
-                int gy = (int) Math.floor(positionsY[i] / gridSize);
-
-                for (int dx = -1; dx <= 1; dx++) {
-                    for (int dy = -1; dy <= 1; dy++) {
-                        int nx = gx + dx;
-                        int ny = gy + dy;
-                        long key = ((long) nx << 32) | (ny & 0xFFFFFFFFL);
-                        List<Integer> cell = grid.get(key);
-                        if (cell == null) continue;
-
-                        for (int j : cell) {
-                            if (i == j) continue;
-
-                            double rx = positionsX[j] - positionsX[i];
-                            double ry = positionsY[j] - positionsY[i];
-
-                            double dxAspect = rx * aspect;
-                            double dyAspect = ry;
-                            double r = Math.hypot(dxAspect, dyAspect);
-
-                            if (r > 0 && r < R_MAX) {
-                                double f = force(r / R_MAX, matrix[colors[i]][colors[j]]);
-                                double invR = 1.0 / r;
-                                fx += dxAspect * invR * f;
-                                fy += dyAspect * invR * f;
-                            }
-                        }
-                    }
-                }
+        SimulationMetrics metrics = loop.getMetrics();
+        metrics.recordRender(elapsed);
+        if (showStats) {
+            paintStats(g2d, metrics);
+        }
+    }
 
-                velocitiesX[i] = (float) (velocitiesX[i] * frictionFactor + fx * DT / aspect);
-                velocitiesY[i] = (float) (velocitiesY[i] * frictionFactor + fy * DT);
+    private void paintStats(Graphics2D g2d, SimulationMetrics metrics) {
+        TextLine[] lines = statsLines;
+        long now = System.nanoTime();
+        if (statsRefreshed < 0 || now - statsRefreshed >= STATS_REFRESH_NANOS) {
+            statsRefreshed = now;
+            phaseLine(lines[0], "Grid", metrics.getGrid());
+            phaseLine(lines[1], "Force", metrics.getForce());
+            phaseLine(lines[2], "Integrate", metrics.getIntegrate());
+            phaseLine(lines[3], "Step", metrics.getStep());
+            phaseLine(lines[4], "Render", metrics.getRender());
+            lines[5].clear().append("Pairs: ").appendGrouped(metrics.getCandidatePairs())
+                    .append(" candidate | ").appendGrouped(metrics.getInteractingPairs())
+                    .append(" interacting (").append(metrics.getInteractingFraction() * 100, 1).append("%)");
+            lines[6].clear().append("Max cell occupancy: ").append(metrics.getMaxCellOccupancy());
+            if (sleeping) {
+                lines[6].append(" | Asleep: ").append(metrics.getSleepingCellFraction() * 100, 1).append("% of cells");
             }
         }
+        // The backdrop was shaded into the frame by blitFrame
+        int y = statsTop();
+        g2d.setColor(Color.WHITE);
+        for (TextLine line : lines) {
+            line.draw(g2d, 10, y);
+            y += 18;
+        }
+    }
 
-        // Update positions
-        for (int i = 0; i < particleCount; i++) {
-            positionsX[i] += velocitiesX[i] * DT;
-            positionsY[i] += velocitiesY[i] * DT;
-            
-            if (boundaryMode == BoundaryMode.WRAP) {
-                positionsX[i] = (float) ((positionsX[i] % 1 + 1) % 1);
-                positionsY[i] = (float) ((positionsY[i] % 1 + 1) % 1);
-            } else if (boundaryMode == BoundaryMode.CLOSED) {
-                if (positionsX[i] < 0) {
-                    positionsX[i] = 0;
-                    velocitiesX[i] *= -0.5f;
-                } else if (positionsX[i] > 1) {
-                    positionsX[i] = 1;
-                    velocitiesX[i] *= -0.5f;
-                }
-                
-                if (positionsY[i] < 0) {
-                    positionsY[i] = 0;
-                    velocitiesY[i] *= -0.5f;
-                } else if (positionsY[i] > 1) {
-                    positionsY[i] = 1;
-                    velocitiesY[i] *= -0.5f;
-                }
-            }
+    // Baseline of the first stats line
+    private int statsTop() {
+        return getHeight() - 12 - 18 * (statsLines.length - 1);
+    }
+
+    private static void phaseLine(TextLine line, String name, RollingStats stats) {
+        line.clear().field().append(name).padRight(9)
+                .append(" p50 ").field().append(stats.percentile(50) / 1e6, 2).alignRight(6)
+                .append("  p95 ").field().append(stats.percentile(95) / 1e6, 2).alignRight(6)
+                .append("  p99 ").field().append(stats.percentile(99) / 1e6, 2).alignRight(6)
+                .append(" ms");
+    }
+
+    // Copies the rasterized frame to the panel, shading the stats backdrop into it first.
+    private void blitFrame(Graphics2D g2d) {
+        if (showStats) {
+            renderer.shade(4, statsTop() - 16, 420, 18 * statsLines.length + 8, STATS_SHADE);
         }
-        
-        // FPS calculation
-        frameCount++;
-        long currentTime = System.nanoTime();
-        if (currentTime - lastFrameTime >= 1_000_000_000L) {
-            fps = frameCount * 1_000_000_000.0 / (currentTime - lastFrameTime);
-            frameCount = 0;
-            lastFrameTime = currentTime;
+        g2d.drawImage(renderer.getImage(), 0, 0, null);
+    }
+
+    private static void drawCircle(Graphics2D g2d, int cx, int cy, int r) {
+        int x = cx + r;
+        int y = cy;
+        for (int i = 1; i <= CIRCLE_SEGMENTS; i++) {
+            int nx = cx + (int) Math.round(r * CIRCLE_COS[i]);
+            int ny = cy + (int) Math.round(r * CIRCLE_SIN[i]);
+            g2d.drawLine(x, y, nx, ny);
+            x = nx;
+            y = ny;
         }
     }
 
+    // Paints one frame and returns the number of particles drawn.
+    private int paintFrame(Graphics2D g2d) {
 
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        Graphics2D g2d = (Graphics2D) g;
-        
         // Disable anti-aliasing for better performance
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
 
         int width = getWidth();
         int height = getHeight();
+        if (width <= 0 || height <= 0) return 0;
 
-        // Draw boundary in closed mode
-        if (boundaryMode == BoundaryMode.CLOSED) {
-            Point topLeft = worldToScreen(0, 0);
-            Point bottomRight = worldToScreen(1, 1);
-            g2d.setColor(new Color(60, 60, 60));
-            g2d.drawRect(topLeft.x, topLeft.y, 
-                        bottomRight.x - topLeft.x, 
-                        bottomRight.y - topLeft.y);
+        // The domain follows the panel's shape
+        double panelAspect = (double) width / height;
+        if (panelAspect != aspect) {
+            aspect = panelAspect;
+            loop.submit(engine -> engine.setAspect(panelAspect));
+        }
+
+        if (playback != null) {
+            advancePlayback();
+            renderer.begin(width, height, getBackground().getRGB() & 0xFFFFFF);
+            drawnParticles = renderer.drawParticles(playback.getPositionsX(), playback.getPositionsY(), playback.getSpecies(),
+                    playback.getCount(), speciesRGB, cameraX, cameraY, zoom);
+            blitFrame(g2d);
+            g2d.setColor(Color.WHITE);
+            playbackLine.clear().append("Playback: frame ").append(playback.getFrame() + 1)
+                    .append(" / ").append(playback.getFrameCount())
+                    .append(" | step ").append(playback.getStep())
+                    .append(" | Particles: ").append(playback.getCount())
+                    .draw(g2d, 10, 20);
+            return playback.getCount();
         }
 
         // Draw particles
-        int size = Math.max(1, (int) (2 * zoom));
-        for (int i = 0; i < particleCount; i++) {
-            Point screenPos = worldToScreen(positionsX[i], positionsY[i]);
-            
-            if (screenPos.x >= -10 && screenPos.x <= width + 10 &&
-                screenPos.y >= -10 && screenPos.y <= height + 10) {
-                g2d.setColor(particleColors[colors[i]]);
-                g2d.fillRect(screenPos.x, screenPos.y, size, size);
+        FrameSnapshot snapshot = loop.acquire();
+        int particleCount;
+        long matrixVersion;
+        double stepsPerSecond;
+        double bytesPerParticle;
+        try {
+            renderer.begin(width, height, getBackground().getRGB() & 0xFFFFFF);
+            drawnParticles = renderer.drawParticles(snapshot.positionsX, snapshot.positionsY, snapshot.colors,
+                    snapshot.groups, snapshot.groupEnd, snapshot.groupBounds, speciesRGB, cameraX, cameraY, zoom);
+            particleCount = snapshot.count;
+            matrixVersion = snapshot.matrixVersion;
+            stepsPerSecond = snapshot.stepsPerSecond;
+            bytesPerParticle = snapshot.bytesPerParticle;
+        } finally {
+            loop.release();
+        }
+        blitFrame(g2d);
+
+        if (matrixVersion != shownMatrixVersion) {
+            shownMatrixVersion = matrixVersion;
+            if (matrixListener != null) {
+                matrixListener.run();
             }
         }
+
+        // FPS calculation
+        frameCount++;
+        long currentTime = System.nanoTime();
+        if (currentTime - lastFrameTime >= 1_000_000_000L) {
+            fps = frameCount * 1_000_000_000.0 / (currentTime - lastFrameTime);
+            frameCount = 0;
+            lastFrameTime = currentTime;
+        }
+
+        // Draw boundary in closed mode
+        if (boundaryMode == SimulationEngine.BoundaryMode.CLOSED) {
+            int left = worldToScreenX(0);
+            int top = worldToScreenY(0);
+            g2d.setColor(BORDER_COLOR);
+            g2d.drawRect(left, top, worldToScreenX(1) - left, worldToScreenY(1) - top);
+        }
         
         // Draw drag preview
-        if (dragStart != null && dragEnd != null) {
-            g2d.setColor(particleColors[selectedSpecies]);
+        if (dragging) {
+            g2d.setColor(placementShape.equals("Erase") ? Color.WHITE : particleColors[selectedSpecies]);
             int x1 = dragStart.x;
             int y1 = dragStart.y;
             int x2 = dragEnd.x;
@@ -770,10 +1131,11 @@ class SimulationPanel extends JPanel {
             
             switch (placementShape) {
                 case "Circle":
+                case "Erase":
                     int cx = (x1 + x2) / 2;
                     int cy = (y1 + y2) / 2;
                     int r = (int) Math.hypot(x2 - x1, y2 - y1) / 2;
-                    g2d.drawOval(cx - r, cy - r, r * 2, r * 2);
+                    drawCircle(g2d, cx, cy, r);
                     break;
                 case "Square":
                     g2d.drawRect(Math.min(x1, x2), Math.min(y1, y2), 
@@ -786,29 +1148,58 @@ class SimulationPanel extends JPanel {
                     int rcx = (x1 + x2) / 2;
                     int rcy = (y1 + y2) / 2;
                     int rr = (int) Math.hypot(x2 - x1, y2 - y1) / 2;
-                    g2d.drawOval(rcx - rr, rcy - rr, rr * 2, rr * 2);
-                    g2d.drawOval(rcx - (int)(rr*0.7), rcy - (int)(rr*0.7), 
-                               (int)(rr*1.4), (int)(rr*1.4));
+                    drawCircle(g2d, rcx, rcy, rr);
+                    drawCircle(g2d, rcx, rcy, (int) (rr * 0.7));
                     break;
             }
         }
         
         // Draw info text
         g2d.setColor(Color.WHITE);
-        g2d.drawString("Particles: " + particleCount, 10, 20);
-        String modeStr = boundaryMode == BoundaryMode.WRAP ? "Wrap" : 
-                        (boundaryMode == BoundaryMode.CLOSED ? "Closed" : "Infinite");
-        g2d.drawString(String.format("Zoom: %.2fx | Mode: %s | FPS: %.1f", zoom, modeStr, fps), 10, 40);
+        if (particleCount != countLineParticles || bytesPerParticle != countLineBytes) {
+            countLineParticles = particleCount;
+            countLineBytes = bytesPerParticle;
+            countLine.clear().append("Particles: ").append(particleCount)
+                    .append(" | Memory: ").append(bytesPerParticle, 0).append(" B/particle");
+        }
+        countLine.draw(g2d, 10, 20);
+        String modeStr = modeLabel(boundaryMode);
+        boolean recording = recorder != null;
+        if (statusLine.isEmpty() || zoom != statusZoom || !modeStr.equals(statusMode) || fps != statusFps
+                || stepsPerSecond != statusStepsPerSecond || recording != statusRecording) {
+            statusZoom = zoom;
+            statusMode = modeStr;
+            statusFps = fps;
+            statusStepsPerSecond = stepsPerSecond;
+            statusRecording = recording;
+            statusLine.clear().append("Zoom: ").append(zoom, 2).append("x | Mode: ").append(modeStr)
+                    .append(" | FPS: ").append(fps, 1).append(" | Steps/s: ").append(stepsPerSecond, 1)
+                    .append(recording ? " | Recording" : "");
+        }
+        statusLine.draw(g2d, 10, 40);
+        return particleCount;
     }
 }
 
 class MatrixPanel extends JPanel {
+    // Above this many species the text-field grid no longer fits; use a heat map instead
+    private static final int TEXT_FIELD_LIMIT = 8;
+
     private final SimulationPanel simPanel;
-    private final JTextField[][] textFields;
+    private final int speciesCount;
+    private JTextField[][] textFields;
+
+    // Heat map editor state
+    private double[][] values;
+    private JPanel heatMap;
+    private JTextField cellField;
+    private JLabel cellLabel;
+    private int selectedRow = 0;
+    private int selectedCol = 0;
 
     public MatrixPanel(SimulationPanel simPanel) {
         this.simPanel = simPanel;
-        this.textFields = new JTextField[SimulationPanel.M][SimulationPanel.M];
+        this.speciesCount = simPanel.getSpeciesCount();
         
         setBackground(new Color(40, 40, 40));
         setBorder(BorderFactory.createTitledBorder(
@@ -817,11 +1208,21 @@ class MatrixPanel extends JPanel {
             0, 0, null, Color.WHITE));
         
         setLayout(new GridBagLayout());
+        if (speciesCount <= TEXT_FIELD_LIMIT) {
+            createTextFields();
+        } else {
+            createHeatMap();
+        }
+    }
+
+    private void createTextFields() {
+        textFields = new JTextField[speciesCount][speciesCount];
+        double[][] matrix = simPanel.getMatrix();
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(2, 2, 2, 2);
         
         // Column headers
-        for (int j = 0; j < SimulationPanel.M; j++) {
+        for (int j = 0; j < speciesCount; j++) {
             gbc.gridx = j + 1;
             gbc.gridy = 0;
             JLabel header = new JLabel(String.valueOf(j));
@@ -834,7 +1235,7 @@ class MatrixPanel extends JPanel {
         }
         
         // Row headers and text fields
-        for (int i = 0; i < SimulationPanel.M; i++) {
+        for (int i = 0; i < speciesCount; i++) {
             gbc.gridx = 0;
             gbc.gridy = i + 1;
             JLabel rowHeader = new JLabel(String.valueOf(i));
@@ -845,20 +1246,20 @@ class MatrixPanel extends JPanel {
             rowHeader.setForeground(Color.BLACK);
             add(rowHeader, gbc);
             
-            for (int j = 0; j < SimulationPanel.M; j++) {
+            for (int j = 0; j < speciesCount; j++) {
                 final int row = i;
                 final int col = j;
                 
                 gbc.gridx = j + 1;
-                JTextField field = new JTextField(String.format("%.2f", simPanel.getMatrix()[i][j]));
+                JTextField field = new JTextField(String.format("%.2f", matrix[i][j]));
                 field.setPreferredSize(new Dimension(60, 25));
                 field.setHorizontalAlignment(JTextField.CENTER);
                 
                 field.addActionListener(e -> {
                     try {
-                        double value = Double.parseDouble(field.getText());
+                        double value = Math.max(-1, Math.min(1, Double.parseDouble(field.getText())));
                         simPanel.setMatrixValue(row, col, value);
-                        field.setText(String.format("%.2f", simPanel.getMatrix()[row][col]));
+                        field.setText(String.format("%.2f", value));
                     } catch (NumberFormatException ex) {
                         field.setText(String.format("%.2f", simPanel.getMatrix()[row][col]));
                     }
@@ -869,11 +1270,93 @@ class MatrixPanel extends JPanel {
             }
         }
     }
+
+    // One coloured cell per entry (green attracts, red repels); click a cell to edit it below.
+    private void createHeatMap() {
+        values = simPanel.getMatrix();
+        int cell = Math.max(4, Math.min(24, 320 / (speciesCount + 1)));
+        int side = cell * (speciesCount + 1);
+
+        heatMap = new JPanel() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                for (int i = 0; i < speciesCount; i++) {
+                    g.setColor(simPanel.particleColors[i]);
+                    g.fillRect((i + 1) * cell, 0, cell, cell);
+                    g.fillRect(0, (i + 1) * cell, cell, cell);
+                    for (int j = 0; j < speciesCount; j++) {
+                        double v = values[i][j];
+                        int level = (int) (Math.min(1, Math.abs(v)) * 255);
+                        g.setColor(v >= 0 ? new Color(0, level, 0) : new Color(level, 0, 0));
+                        g.fillRect((j + 1) * cell, (i + 1) * cell, cell, cell);
+                    }
+                }
+                g.setColor(Color.WHITE);
+                g.drawRect((selectedCol + 1) * cell, (selectedRow + 1) * cell, cell - 1, cell - 1);
+            }
+        };
+        heatMap.setPreferredSize(new Dimension(side, side));
+        heatMap.setBackground(new Color(40, 40, 40));
+        heatMap.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int col = e.getX() / cell - 1;
+                int row = e.getY() / cell - 1;
+                if (row >= 0 && row < speciesCount && col >= 0 && col < speciesCount) {
+                    selectedRow = row;
+                    selectedCol = col;
+                    showSelectedCell();
+                    heatMap.repaint();
+                }
+            }
+        });
+
+        cellLabel = new JLabel();
+        cellLabel.setForeground(Color.WHITE);
+        cellField = new JTextField(6);
+        cellField.setHorizontalAlignment(JTextField.CENTER);
+        cellField.addActionListener(e -> {
+            try {
+                double value = Math.max(-1, Math.min(1, Double.parseDouble(cellField.getText())));
+                values[selectedRow][selectedCol] = value;
+                simPanel.setMatrixValue(selectedRow, selectedCol, value);
+                heatMap.repaint();
+            } catch (NumberFormatException ex) {
+                // Restored below
+            }
+            showSelectedCell();
+        });
+
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(2, 2, 2, 2);
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        gbc.gridwidth = 2;
+        add(heatMap, gbc);
+        gbc.gridy = 1;
+        gbc.gridwidth = 1;
+        add(cellLabel, gbc);
+        gbc.gridx = 1;
+        add(cellField, gbc);
+        showSelectedCell();
+    }
+
+    private void showSelectedCell() {
+        cellLabel.setText(selectedRow + " \u2190 " + selectedCol + ":");
+        cellField.setText(String.format("%.2f", values[selectedRow][selectedCol]));
+    }
     
     void updateFields() {
         double[][] matrix = simPanel.getMatrix();
-        for (int i = 0; i < SimulationPanel.M; i++) {
-            for (int j = 0; j < SimulationPanel.M; j++) {
+        if (textFields == null) {
+            values = matrix;
+            showSelectedCell();
+            heatMap.repaint();
+            return;
+        }
+        for (int i = 0; i < speciesCount; i++) {
+            for (int j = 0; j < speciesCount; j++) {
                 textFields[i][j].setText(String.format("%.2f", matrix[i][j]));
             }
         }
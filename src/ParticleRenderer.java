@@ -0,0 +1,282 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+// Draws particles straight into the int[] raster of a TYPE_INT_RGB image. The world-to-pixel
+// transform is inlined and nothing is allocated per frame; the image is only recreated when
+// the target size changes.
+//
+// Particles come in groups with a bounding box each (one per grid cell, see FrameSnapshot), and
+// groups outside the viewport are skipped whole, so a zoomed-in frame costs what is on screen.
+// Zoomed out below SPLAT_ZOOM, where many particles share a pixel, particles are splatted into
+// per-pixel counts and colour sums instead: each pixel shows the mean colour of its particles,
+// brightened with the log of its count.
+class ParticleRenderer {
+    static final double SPLAT_ZOOM = 0.5;
+
+    // Colour sums are packed into one long, CHANNEL_BITS per channel; a pixel stops adding
+    // colour after SPLAT_COLOUR_LIMIT particles so the channels cannot overflow.
+    private static final int CHANNEL_BITS = 21;
+    private static final long CHANNEL_MASK = (1L << CHANNEL_BITS) - 1;
+    private static final int SPLAT_COLOUR_LIMIT = (1 << CHANNEL_BITS) / 256;
+    // Brightness of a pixel holding a single particle when the densest pixel holds many
+    private static final float MIN_GAIN = 0.4f;
+
+    private BufferedImage image;
+    private int[] pixels;
+    private int width;
+    private int height;
+    private int background;
+
+    // Splat accumulators, cleared as they are resolved
+    private int[] density = new int[0];
+    private long[] colourSum = new long[0];
+    private float[] gain = new float[0];
+
+    // A single group covering everything, for callers without cell groups
+    private final int[] wholeEnd = new int[1];
+    private final float[] wholeBounds = {
+            Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY
+    };
+
+    private static final Color[] DEFAULT_SPECIES_COLORS = {
+            Color.RED,
+            Color.ORANGE,
+            Color.YELLOW,
+            Color.GREEN,
+            Color.CYAN,
+            Color.MAGENTA
+    };
+
+    // 0xRRGGBB colour of each species. Beyond the defaults, hues are spread by the golden angle
+    // so neighbours stay distinct.
+    static int[] speciesPalette(int speciesCount) {
+        int[] palette = new int[speciesCount];
+        for (int i = 0; i < speciesCount; i++) {
+            Color c;
+            if (i < DEFAULT_SPECIES_COLORS.length) {
+                c = DEFAULT_SPECIES_COLORS[i];
+            } else {
+                float hue = (i * 0.618034f) % 1f;
+                float brightness = 0.75f + 0.25f * ((i / 3) % 2);
+                c = Color.getHSBColor(hue, 0.85f, brightness);
+            }
+            palette[i] = c.getRGB() & 0xFFFFFF;
+        }
+        return palette;
+    }
+
+    BufferedImage getImage() {
+        return image;
+    }
+
+    // Makes sure the backing image is width x height and clears it to the background colour.
+    void begin(int width, int height, int background) {
+        if (image == null || width != this.width || height != this.height) {
+            this.width = width;
+            this.height = height;
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        this.background = background;
+        Arrays.fill(pixels, background);
+    }
+
+    int drawParticles(float[] xs, float[] ys, byte[] species, int count, int[] palette,
+                      double cameraX, double cameraY, double zoom) {
+        wholeEnd[0] = count;
+        return drawParticles(xs, ys, species, count == 0 ? 0 : 1, wholeEnd, wholeBounds, palette,
+                cameraX, cameraY, zoom);
+    }
+
+    // Same mapping as SimulationPanel.worldToScreen: the unit square stretched over the image,
+    // centred on (cameraX, cameraY) and scaled by zoom. Each particle is a size x size square.
+    // Returns the number of particles in groups that reached the screen.
+    int drawParticles(float[] xs, float[] ys, byte[] species, int groups, int[] groupEnd, float[] groupBounds,
+                      int[] palette, double cameraX, double cameraY, double zoom) {
+        double scaleX = width * zoom;
+        double scaleY = height * zoom;
+        double offsetX = width / 2.0 - cameraX * scaleX;
+        double offsetY = height / 2.0 - cameraY * scaleY;
+        int size = Math.max(1, (int) (2 * zoom));
+
+        if (zoom < SPLAT_ZOOM) {
+            return splat(xs, ys, species, groups, groupEnd, groupBounds, palette, scaleX, scaleY, offsetX, offsetY);
+        }
+
+        int drawn = 0;
+        int start = 0;
+        for (int g = 0; g < groups; g++) {
+            int end = groupEnd[g];
+            if (visible(groupBounds, g, scaleX, scaleY, offsetX, offsetY, size)) {
+                drawn += end - start;
+                if (size == 1) {
+                    drawPoints(xs, ys, species, start, end, palette, scaleX, scaleY, offsetX, offsetY);
+                } else {
+                    drawSquares(xs, ys, species, start, end, palette, scaleX, scaleY, offsetX, offsetY, size);
+                }
+            }
+            start = end;
+        }
+        return drawn;
+    }
+
+    private void drawPoints(float[] xs, float[] ys, byte[] species, int from, int to, int[] palette,
+                            double scaleX, double scaleY, double offsetX, double offsetY) {
+        int w = width;
+        int h = height;
+        int[] px = pixels;
+        for (int i = from; i < to; i++) {
+            int sx = (int) (xs[i] * scaleX + offsetX);
+            int sy = (int) (ys[i] * scaleY + offsetY);
+            if (sx >= 0 && sx < w && sy >= 0 && sy < h) {
+                px[sy * w + sx] = palette[species[i]];
+            }
+        }
+    }
+
+    private void drawSquares(float[] xs, float[] ys, byte[] species, int from, int to, int[] palette,
+                             double scaleX, double scaleY, double offsetX, double offsetY, int size) {
+        int w = width;
+        int h = height;
+        int[] px = pixels;
+        for (int i = from; i < to; i++) {
+            int sx = (int) (xs[i] * scaleX + offsetX);
+            int sy = (int) (ys[i] * scaleY + offsetY);
+            if (sx >= w || sy >= h || sx + size <= 0 || sy + size <= 0) continue;
+
+            int x0 = Math.max(0, sx);
+            int y0 = Math.max(0, sy);
+            int x1 = Math.min(w, sx + size);
+            int y1 = Math.min(h, sy + size);
+            int rgb = palette[species[i]];
+            for (int y = y0; y < y1; y++) {
+                int rowStart = y * w;
+                for (int x = x0; x < x1; x++) {
+                    px[rowStart + x] = rgb;
+                }
+            }
+        }
+    }
+
+    // Conservative: a group passes if any particle in its box could touch a pixel. The pixel
+    // of a coordinate is found by truncation, which rounds (-1, 0) up to column 0.
+    private boolean visible(float[] bounds, int g, double scaleX, double scaleY, double offsetX, double offsetY,
+                            int size) {
+        int at = 4 * g;
+        return bounds[at] * scaleX + offsetX < width
+                && bounds[at + 2] * scaleX + offsetX > -size - 1
+                && bounds[at + 1] * scaleY + offsetY < height
+                && bounds[at + 3] * scaleY + offsetY > -size - 1;
+    }
+
+    private int splat(float[] xs, float[] ys, byte[] species, int groups, int[] groupEnd, float[] groupBounds,
+                      int[] palette, double scaleX, double scaleY, double offsetX, double offsetY) {
+        int w = width;
+        int h = height;
+        int area = w * h;
+        if (density.length < area) {
+            density = new int[area];
+            colourSum = new long[area];
+        }
+        int[] counts = density;
+        long[] sums = colourSum;
+
+        int drawn = 0;
+        int peak = 0;
+        // World box of the visible groups, so the resolve pass can skip untouched pixels
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        int start = 0;
+        for (int g = 0; g < groups; g++) {
+            int end = groupEnd[g];
+            if (!visible(groupBounds, g, scaleX, scaleY, offsetX, offsetY, 1)) {
+                start = end;
+                continue;
+            }
+            drawn += end - start;
+            int at = 4 * g;
+            minX = Math.min(minX, groupBounds[at]);
+            minY = Math.min(minY, groupBounds[at + 1]);
+            maxX = Math.max(maxX, groupBounds[at + 2]);
+            maxY = Math.max(maxY, groupBounds[at + 3]);
+            for (int i = start; i < end; i++) {
+                int sx = (int) (xs[i] * scaleX + offsetX);
+                int sy = (int) (ys[i] * scaleY + offsetY);
+                if (sx < 0 || sx >= w || sy < 0 || sy >= h) continue;
+                int p = sy * w + sx;
+                int c = ++counts[p];
+                if (c > peak) peak = c;
+                if (c <= SPLAT_COLOUR_LIMIT) {
+                    int rgb = palette[species[i]];
+                    sums[p] += ((long) (rgb >>> 16 & 0xFF) << 2 * CHANNEL_BITS)
+                            | ((long) (rgb >>> 8 & 0xFF) << CHANNEL_BITS)
+                            | (rgb & 0xFF);
+                }
+            }
+            start = end;
+        }
+        if (peak == 0) return drawn;
+
+        // gain[c] for c particles: MIN_GAIN .. 1 on a log scale up to the densest pixel
+        if (gain.length < peak + 1) {
+            gain = new float[Math.max(peak + 1, gain.length * 3 / 2)];
+        }
+        double logPeak = Math.log1p(peak);
+        for (int c = 1; c <= peak; c++) {
+            gain[c] = peak == 1 ? 1 : (float) (MIN_GAIN + (1 - MIN_GAIN) * Math.log1p(c) / logPeak);
+        }
+
+        int[] px = pixels;
+        int bgR = background >>> 16 & 0xFF;
+        int bgG = background >>> 8 & 0xFF;
+        int bgB = background & 0xFF;
+        int x0 = clamp(minX * scaleX + offsetX, w);
+        int x1 = clamp(maxX * scaleX + offsetX, w) + 1;
+        int y0 = clamp(minY * scaleY + offsetY, h);
+        int y1 = clamp(maxY * scaleY + offsetY, h) + 1;
+        for (int y = y0; y < y1; y++) {
+            int rowStart = y * w;
+            for (int p = rowStart + x0; p < rowStart + x1; p++) {
+                int c = counts[p];
+                if (c == 0) continue;
+                long sum = sums[p];
+                int n = Math.min(c, SPLAT_COLOUR_LIMIT);
+                float k = gain[c];
+                int r = bgR + (int) (((sum >>> 2 * CHANNEL_BITS & CHANNEL_MASK) / n - bgR) * k);
+                int gr = bgG + (int) (((sum >>> CHANNEL_BITS & CHANNEL_MASK) / n - bgG) * k);
+                int b = bgB + (int) (((sum & CHANNEL_MASK) / n - bgB) * k);
+                px[p] = r << 16 | gr << 8 | b;
+                counts[p] = 0;
+                sums[p] = 0;
+            }
+        }
+        return drawn;
+    }
+
+    // Darkens a rectangle, clipped to the image, as black drawn over it at the given opacity
+    // (0-255) would. Graphics2D.fillRect with a translucent colour allocates mask buffers per call.
+    void shade(int x, int y, int w, int h, int opacity) {
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w);
+        int y1 = Math.min(height, y + h);
+        int keep = 255 - opacity;
+        for (int py = y0; py < y1; py++) {
+            int row = py * width;
+            for (int px = x0; px < x1; px++) {
+                int rgb = pixels[row + px];
+                int r = ((rgb >> 16) & 0xFF) * keep / 255;
+                int g = ((rgb >> 8) & 0xFF) * keep / 255;
+                int b = (rgb & 0xFF) * keep / 255;
+                pixels[row + px] = r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    // Pixel column or row of a screen coordinate, clamped to [0, limit)
+    private static int clamp(double v, int limit) {
+        return (int) Math.max(0, Math.min(limit - 1, v));
+    }
+}
@@ -0,0 +1,128 @@
+// Particle state (position, velocity, species) stored as structure-of-arrays that grows on
+// demand. Removal moves the last particle into the freed slot, so the live particles always
+// occupy indices [0, size()) and no holes are left behind.
+//
+// Indexed get/set are safe to call concurrently for distinct indices; add, remove and resizing
+// are not. Only one subclass is normally loaded per run, so the accessors stay monomorphic and
+// inline in the engine's loops.
+abstract class ParticleStore {
+    private static final int MIN_CAPACITY = 1024;
+
+    // Per particle: x, y, vx, vy as float and one species byte
+    static final int BYTES_PER_PARTICLE = 4 * 4 + 1;
+
+    private int size;
+
+    static ParticleStore create(boolean offHeap) {
+        return offHeap ? new DirectParticleStore() : new HeapParticleStore();
+    }
+
+    int size() {
+        return size;
+    }
+
+    abstract int capacity();
+
+    // Largest capacity the backend can address
+    abstract int maxCapacity();
+
+    abstract boolean isOffHeap();
+
+    abstract float x(int i);
+
+    abstract float y(int i);
+
+    abstract float vx(int i);
+
+    abstract float vy(int i);
+
+    abstract int species(int i);
+
+    abstract void setPosition(int i, float x, float y);
+
+    abstract void setVelocity(int i, float vx, float vy);
+
+    abstract void setSpecies(int i, int species);
+
+    // Copies the first n positions / species into the given arrays.
+    abstract void copyPositions(float[] xs, float[] ys, int n);
+
+    abstract void copySpecies(byte[] dst, int n);
+
+    abstract void copyVelocities(float[] vxs, float[] vys, int n);
+
+    // Bulk-writes the first n entries of the given columns at indices [0, n).
+    protected abstract void putColumns(float[] xs, float[] ys, float[] vxs, float[] vys, byte[] species, int n);
+
+    // Reallocates to exactly the given capacity, keeping the first size() particles.
+    protected abstract void reallocate(int capacity);
+
+    // Bytes reserved by the backing storage, live or not.
+    long reservedBytes() {
+        return (long) capacity() * BYTES_PER_PARTICLE;
+    }
+
+    // Returns false when the store is already at maxCapacity().
+    boolean add(int species, float x, float y, float vx, float vy) {
+        if (size == capacity()) {
+            if (size == maxCapacity()) return false;
+            reallocate((int) Math.min(maxCapacity(), Math.max(MIN_CAPACITY, size + (long) size / 2)));
+        }
+        int i = size++;
+        setSpecies(i, species);
+        setPosition(i, x, y);
+        setVelocity(i, vx, vy);
+        return true;
+    }
+
+    // Removes particle i by moving the last particle into its slot.
+    void remove(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("particle " + i + " of " + size);
+        }
+        int last = --size;
+        if (i != last) {
+            setSpecies(i, species(last));
+            setPosition(i, x(last), y(last));
+            setVelocity(i, vx(last), vy(last));
+        }
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // Replaces the contents with the first n entries of the given columns.
+    void load(float[] xs, float[] ys, float[] vxs, float[] vys, byte[] species, int n) {
+        size = 0;
+        ensureCapacity(n);
+        putColumns(xs, ys, vxs, vys, species, n);
+        size = n;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > maxCapacity()) {
+            throw new IllegalArgumentException("capacity " + capacity + " exceeds " + maxCapacity());
+        }
+        if (capacity > capacity()) {
+            reallocate(capacity);
+        }
+    }
+
+    // Gives back memory after many removals.
+    void trimToSize() {
+        int target = Math.max(MIN_CAPACITY, size);
+        if (target < capacity()) {
+            reallocate(target);
+        }
+    }
+
+    // Copies every particle of this store into another one, replacing its contents.
+    void copyTo(ParticleStore target) {
+        target.clear();
+        target.ensureCapacity(Math.min(target.maxCapacity(), Math.max(MIN_CAPACITY, size)));
+        for (int i = 0; i < size; i++) {
+            target.add(species(i), x(i), y(i), vx(i), vy(i));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder event spanning one paintComponent call of SimulationPanel.
+@Name("particlelife.Render")
+@Label("Render Frame")
+@Category("Particle Life")
+@StackTrace(false)
+class RenderEvent extends Event {
+    @Label("Particles")
+    int particles;
+
+    // Particles in cell groups that survived viewport culling
+    @Label("Drawn")
+    int drawn;
+}
@@ -0,0 +1,37 @@
+import java.util.Arrays;
+
+// Fixed-size window over the most recent samples, for rolling percentiles. Thread-safe; one
+// writer and occasional readers are the expected use. Nothing is allocated after construction.
+class RollingStats {
+    private final long[] samples;
+    private final long[] scratch;
+    private int next;
+    private int size;
+
+    RollingStats(int window) {
+        samples = new long[window];
+        scratch = new long[window];
+    }
+
+    synchronized void add(long value) {
+        samples[next] = value;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) size++;
+    }
+
+    // Nearest-rank percentile over the window, p in [0, 100]; 0 when empty.
+    synchronized long percentile(double p) {
+        if (size == 0) return 0;
+        System.arraycopy(samples, 0, scratch, 0, size);
+        Arrays.sort(scratch, 0, size);
+        int rank = (int) Math.ceil(p / 100.0 * size) - 1;
+        return scratch[Math.max(0, Math.min(size - 1, rank))];
+    }
+
+    synchronized double mean() {
+        if (size == 0) return 0;
+        long sum = 0;
+        for (int i = 0; i < size; i++) sum += samples[i];
+        return (double) sum / size;
+    }
+}
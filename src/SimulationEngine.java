@@ -0,0 +1,1928 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless particle life physics. Owns all particle state and never touches AWT,
+// so it can be stepped by the Swing panel or by command-line tools alike.
+class SimulationEngine {
+    static final double DT = 0.02;
+    static final double FRICTION_HALF_LIFE = 0.04;
+    static final double R_MAX = 0.1;
+    static final int DEFAULT_SPECIES = 6;
+    static final int MAX_SPECIES = 127;
+    static final double BETA = 0.3;
+    static final double R_MAX_SQ = R_MAX * R_MAX;
+
+    enum BoundaryMode {
+        WRAP,
+        CLOSED,
+        INFINITE
+    }
+
+    enum Integrator {
+        EULER,
+        VERLET
+    }
+    // Interaction matrix, row-major: matrix[i * speciesCount + j] is how species i reacts to j
+    private int speciesCount;
+    private float[] matrix;
+    // Incremented on every matrix change so observers on other threads can tell it moved
+    private long matrixVersion = 0;
+
+    // Grows on demand; see setOffHeap for the backend
+    private ParticleStore store = ParticleStore.create(false);
+
+    private final long seed;
+    private final Random rand;
+    private BoundaryMode boundaryMode = BoundaryMode.WRAP;
+
+    // Width / height of the simulated domain. Distances along x are scaled by this.
+    private double aspect = 1.0;
+
+    // Parallel execution; pool is null when running single-threaded
+    private static final int MIN_CHUNK = 256;
+    private int threads = 1;
+    private ForkJoinPool pool;
+    // Tasks of forEachRange, kept between calls so a parallel step allocates nothing. They form
+    // a binary tree by halving: node i splits its range between nodes 2i + 1 and 2i + 2.
+    private RangeTask[] rangeTasks = new RangeTask[0];
+    private final RangeBody forcePass = this::computeForces;
+    private final RangeBody integratePass = this::integrate;
+    private final RangeBody stripPass = this::forceStrips;
+
+    // Force lookup from ForceKernel.TABLE instead of the analytic ForceKernel.analytic()
+    private boolean tabulatedKernel = true;
+
+    // Half-shell traversal state
+    private boolean halfShell = true;
+    private int[] stripStart = new int[0];
+    // Store indices of particles that left their cell, see copyByCell
+    private int[] strays = new int[0];
+    private int stripPhase;
+
+    // Verlet neighbour lists: every particle keeps the cell-sorted positions of its half-shell
+    // neighbours within R_MAX + skin in listNeighbours[listStart[k] .. listStart[k + 1]). The lists and the
+    // sort order are kept until some particle has moved more than skin / 2 since they were built,
+    // so no pair can have come within R_MAX unnoticed.
+    static final double DEFAULT_SKIN = 0.3 * R_MAX;
+    private boolean neighbourLists = false;
+    private double skin = DEFAULT_SKIN;
+    private int[] listStart = new int[1];
+    private int[] listNeighbours = new int[0];
+    private double[] referenceX = new double[0];
+    private double[] referenceY = new double[0];
+    // Conditions the current lists were built under; -1 when there are none
+    private int listParticles = -1;
+    private double listAspect;
+    private double listSkin;
+    private BoundaryMode listMode;
+    private long listBuilds = 0;
+    private long listSteps = 0;
+    private final RangeBody listCountPass = (from, to) -> scanNeighbours(from, to, LIST_COUNT);
+    private final RangeBody listFillPass = (from, to) -> scanNeighbours(from, to, LIST_FILL);
+
+    // Sleeping cells: a cell whose particles, and those of its eight neighbours, have all been
+    // slower than the sleep speed for SLEEP_DELAY steps is asleep. Its particles are frozen and
+    // only stepped every sleepInterval steps, when they catch up on all the steps they skipped
+    // under the force of that step. In between, each lags by at most sleepTolerance.
+    static final int SLEEP_DELAY = 8;
+    static final double DEFAULT_SLEEP_TOLERANCE = 0.005 * R_MAX;
+    static final int DEFAULT_SLEEP_INTERVAL = 4;
+    private boolean sleeping = false;
+    private double sleepTolerance = DEFAULT_SLEEP_TOLERANCE;
+    private int sleepInterval = DEFAULT_SLEEP_INTERVAL;
+    // Consecutive slow steps per particle, by store index, saturating at SLEEP_DELAY
+    private byte[] quietSteps = new byte[0];
+    private boolean wakeRequested = true;
+    private boolean[] cellQuiet = new boolean[0];
+    private boolean[] cellAsleep = new boolean[0];
+    // Cells skipped this step, or null when every cell is stepped. Read by the force passes.
+    boolean[] frozenCells;
+    // Cells taking sleepInterval steps at once this step, or null
+    private boolean[] catchUpCells;
+    private double quietSpeedSq;
+
+    // Adaptive subdivision: after each grid build, cells holding at least subdivisionThreshold
+    // particles are split into sub-cells of about SUBCELL_PARTICLES particles, their occupied
+    // neighbours as finely, and the scalar half-shell pass skips the sub-cell pairs that are
+    // R_MAX or more apart. Collapsed clusters pile thousands of particles into a few cells,
+    // where the plain 3x3 scan is quadratic.
+    static final int DEFAULT_SUBDIVISION_THRESHOLD = 128;
+    static final int SUBCELL_PARTICLES = 32;
+    private boolean subdivision = false;
+    private int subdivisionThreshold = DEFAULT_SUBDIVISION_THRESHOLD;
+    // Candidate pairs up to the start of each grid row, for balancing the strips
+    private long[] rowPairs = new long[1];
+
+    // Time integration. EULER is semi-implicit Euler: velocities are damped by the friction
+    // factor of the step, then kicked by the force. VERLET is velocity Verlet with the friction
+    // integrated exactly over the step (velocity decays as exp(-FRICTION_RATE t) under a force
+    // that varies linearly from this step's to the next), so it stays accurate when the damping
+    // per step is large. Positions take the force of the step start; the stored velocity gets
+    // the second half of its kick, from the next step's force, at the start of the next step.
+    // With an adaptive time step, each step's length follows the peak acceleration of the
+    // previous one: dt = tolerance * sqrt(BETA * R_MAX / peak), growing by at most
+    // MAX_TIME_STEP_GROWTH per step and kept within [MIN_TIME_STEP, MAX_TIME_STEP].
+    static final double FRICTION_RATE = Math.log(2) / FRICTION_HALF_LIFE;
+    static final double MIN_TIME_STEP = DT / 16;
+    static final double MAX_TIME_STEP = DT * 8;
+    static final double MAX_TIME_STEP_GROWTH = 1.25;
+    static final double DEFAULT_TIME_STEP_TOLERANCE = 1.6;
+    private Integrator integrator = Integrator.EULER;
+    private double timeStep = DT;
+    private boolean adaptiveTimeStep = false;
+    private double timeStepTolerance = DEFAULT_TIME_STEP_TOLERANCE;
+    private double simulatedTime = 0;
+    // Coefficients of the current step, read by the integration pass: its length h, the
+    // friction factor exp(-FRICTION_RATE h), the velocity gain of a constant force and the
+    // displacement of a constant force
+    private double stepLength = DT;
+    private double stepFriction;
+    private double stepGain;
+    private double stepDrift;
+    // Velocity gain of the change in force over the last step, for the Verlet correction
+    private double lastCorrection;
+    // Verlet: accelerations of the last step by store index; invalid after particles change
+    private double[] lastAccelerationX = new double[0];
+    private double[] lastAccelerationY = new double[0];
+    private boolean haveLastAcceleration = false;
+    // Largest squared aspect-scaled acceleration of the step, as raw double bits so ranges can
+    // combine it without locking; bits of non-negative doubles order like the doubles
+    private final AtomicLong peakAcceleration = new AtomicLong();
+
+    // Optional vectorized half-shell pass, see VectorForcePass
+    private ForcePass vectorPass;
+
+    // Fixed-size buffers of the neighbour searches, one set per thread since the passes run on
+    // pool threads too. Kept across steps so that a steady-state step allocates nothing.
+    private static final class Scratch {
+        final int[] around = new int[9];
+        final int[] forward = new int[4];
+        final int[] slots = new int[4];
+        final int[] ranges = new int[PAIR_RANGES];
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    // Pool thread that creates its scratch when it starts rather than on the first range it
+    // steals, which on a busy machine can be any step
+    private static final class Worker extends ForkJoinWorkerThread {
+        Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            SCRATCH.get();
+        }
+    }
+
+    // Cell-sorted copies of the particle state, refreshed with the grid every step, so the
+    // candidates of a cell are contiguous. Forces are accumulated in the same order and
+    // consumed and cleared by the integration pass. They grow with the particle store.
+    // Package-private for ForcePass implementations.
+    final CellGrid grid = new CellGrid();
+    double[] sortedX = new double[0];
+    double[] sortedY = new double[0];
+    int[] sortedSpecies = new int[0];
+    double[] forceX = new double[0];
+    double[] forceY = new double[0];
+    float[] matrixTransposed;
+
+    // Statistics
+    private long stepCount = 0;
+    private long pairEvaluations = 0;
+    private final StepStats stats = new StepStats();
+    // Pairs closer than R_MAX, added once per range by the force passes. Not a LongAdder: that
+    // allocates its cells the first time two ranges collide, and a few adds per step barely contend.
+    private final AtomicLong interactions = new AtomicLong();
+    // Reused for every step; begin() restarts its timing, so no event is allocated per step
+    private final StepEvent event = new StepEvent();
+
+    SimulationEngine() {
+        this(new Random().nextLong(), DEFAULT_SPECIES);
+    }
+
+    SimulationEngine(long seed) {
+        this(seed, DEFAULT_SPECIES);
+    }
+
+    SimulationEngine(long seed, int speciesCount) {
+        this.seed = seed;
+        this.rand = new Random(seed);
+        setSpeciesCount(speciesCount);
+    }
+
+    private float[] makeRandomMatrix() {
+        int m = speciesCount;
+        float[] mat = new float[m * m];
+        for (int i = 0; i < m * m; i++) {
+            mat[i] = (float) ((rand.nextDouble() * 1.0) - 0.5);
+        }
+        return mat;
+    }
+
+    int getSpeciesCount() {
+        return speciesCount;
+    }
+
+    // Changes the number of species. Draws a fresh random matrix and reassigns particles whose
+    // species no longer exists.
+    void setSpeciesCount(int count) {
+        if (count < 1 || count > MAX_SPECIES) {
+            throw new IllegalArgumentException("species count must be in [1, " + MAX_SPECIES + "]: " + count);
+        }
+        speciesCount = count;
+        matrix = makeRandomMatrix();
+        matrixTransposed = new float[count * count];
+        matrixVersion++;
+        wakeAll();
+        for (int i = 0; i < store.size(); i++) {
+            if (store.species(i) >= count) store.setSpecies(i, store.species(i) % count);
+        }
+    }
+
+    // Replaces the species count and matrix at once, e.g. when restoring a saved state.
+    void setMatrix(int speciesCount, float[] values) {
+        if (values.length != speciesCount * speciesCount) {
+            throw new IllegalArgumentException("matrix needs " + speciesCount * speciesCount + " entries: " + values.length);
+        }
+        setSpeciesCount(speciesCount);
+        System.arraycopy(values, 0, matrix, 0, values.length);
+    }
+
+    void randomizeMatrix() {
+        matrix = makeRandomMatrix();
+        matrixVersion++;
+        wakeAll();
+    }
+
+    // Flat row-major matrix; see getMatrixValue for the layout.
+    float[] getMatrix() {
+        return matrix;
+    }
+
+    double getMatrixValue(int i, int j) {
+        return matrix[i * speciesCount + j];
+    }
+
+    long getMatrixVersion() {
+        return matrixVersion;
+    }
+
+    void setMatrixValue(int i, int j, double value) {
+        matrix[i * speciesCount + j] = (float) Math.max(-1, Math.min(1, value));
+        matrixVersion++;
+        wakeAll();
+    }
+
+    void randomizeEverything() {
+        matrix = makeRandomMatrix();
+        matrixVersion++;
+
+        int m = speciesCount;
+        int newM = m > 3 ? 3 + rand.nextInt(m - 2) : m;
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < m; i++) indices.add(i);
+        Collections.shuffle(indices, rand);
+
+        int[] speciesMapping = new int[newM];
+        for (int i = 0; i < newM; i++) speciesMapping[i] = indices.get(i);
+
+        store.clear();
+
+        int count = 5000 + rand.nextInt(15000);
+        store.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int species = speciesMapping[rand.nextInt(newM)];
+            float x = rand.nextFloat();
+            float y = rand.nextFloat();
+            float vx = (rand.nextFloat() - 0.5f) * 0.01f;
+            float vy = (rand.nextFloat() - 0.5f) * 0.01f;
+            store.add(species, x, y, vx, vy);
+        }
+        particlesChanged();
+    }
+
+    void clearParticles() {
+        store.clear();
+        particlesChanged();
+    }
+
+    void generateRandomParticles(int count) {
+        clearParticles();
+        count = Math.min(count, store.maxCapacity());
+        store.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int species = rand.nextInt(speciesCount);
+            float x = rand.nextFloat();
+            float y = rand.nextFloat();
+            store.add(species, x, y, 0, 0);
+        }
+    }
+
+    // Returns false only when the store cannot grow any further.
+    boolean addParticle(int species, double x, double y) {
+        particlesChanged();
+        return store.add(species, (float) x, (float) y, 0, 0);
+    }
+
+    // Removes particle i. The last particle takes over index i.
+    void removeParticle(int i) {
+        store.remove(i);
+        particlesChanged();
+    }
+
+    // Removes every particle within radius of (x, y), measured in aspect-scaled distance like
+    // the forces and, in WRAP mode, across the edges. Returns the count.
+    int removeParticlesNear(double x, double y, double radius) {
+        double r2 = radius * radius;
+        boolean wrap = boundaryMode == BoundaryMode.WRAP;
+        int removed = 0;
+        for (int i = store.size() - 1; i >= 0; i--) {
+            double dx = store.x(i) - x;
+            double dy = store.y(i) - y;
+            if (wrap) {
+                dx -= Math.rint(dx);
+                dy -= Math.rint(dy);
+            }
+            dx *= aspect;
+            if (dx * dx + dy * dy <= r2) {
+                store.remove(i);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            particlesChanged();
+        }
+        return removed;
+    }
+
+    int getParticleCapacity() {
+        return store.capacity();
+    }
+
+    // Releases storage left over from removals.
+    void trimToSize() {
+        store.trimToSize();
+    }
+
+    // Adding or removing particles renumbers the store: a removed particle's index goes to the
+    // last one. The last grid build and neighbour lists map sorted slots to the old indices, so
+    // both are dropped even when the count happens to be unchanged.
+    private void particlesChanged() {
+        grid.particles = -1;
+        listParticles = -1;
+        wakeAll();
+    }
+
+    int getParticleCount() {
+        return store.size();
+    }
+
+    float getX(int i) {
+        return store.x(i);
+    }
+
+    float getY(int i) {
+        return store.y(i);
+    }
+
+    float getVelocityX(int i) {
+        return store.vx(i);
+    }
+
+    float getVelocityY(int i) {
+        return store.vy(i);
+    }
+
+    int getSpecies(int i) {
+        return store.species(i);
+    }
+
+    // Copies the first getParticleCount() positions and species into the given arrays.
+    void copyPositions(float[] xs, float[] ys) {
+        store.copyPositions(xs, ys, store.size());
+    }
+
+    void copySpecies(byte[] dst) {
+        store.copySpecies(dst, store.size());
+    }
+
+    // Rebuilds the grid if particles were added or removed since the last build, so that
+    // copyByCell can group a state that has not been stepped since, e.g. while paused.
+    void ensureCellIndex() {
+        int n = store.size();
+        if (n == 0 || grid.particles == n) return;
+        buildGrid(R_MAX);
+        // Lists index the sorted order the grid just replaced
+        listParticles = -1;
+    }
+
+    // Upper bound on the groups copyByCell writes.
+    int cellGroupBound() {
+        int n = store.size();
+        return grid.particles == n ? Math.min(grid.cellCount(), n) + 1 : Math.min(1, n);
+    }
+
+    // Copies positions and species grouped by the cells of the last grid build, skipping empty
+    // cells. Group g ends at groupEnd[g]; groupBounds[4g .. 4g + 3] holds its minX, minY, maxX,
+    // maxY, measured from the copied positions, so they hold even though particles have moved
+    // since the build. Particles that have moved more than a cell since, which in WRAP mode
+    // includes any that crossed the edge, go into one last group so they cannot stretch the
+    // bounds of their cell. If particles were added or removed since the build, everything is
+    // one group in store order. Returns the number of groups.
+    int copyByCell(float[] xs, float[] ys, byte[] species, int[] groupEnd, float[] groupBounds) {
+        int n = store.size();
+        if (n == 0) return 0;
+        if (grid.particles != n) {
+            store.copyPositions(xs, ys, n);
+            store.copySpecies(species, n);
+            groupEnd[0] = n;
+            measureGroup(xs, ys, 0, n, groupBounds, 0);
+            return 1;
+        }
+        if (strays.length < n) {
+            strays = new int[store.capacity()];
+        }
+
+        int cells = grid.cellCount();
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] sortedIndex = grid.sortedIndex;
+        double[] builtX = sortedX;
+        double[] builtY = sortedY;
+        double maxDx = grid.cellWidth;
+        double maxDy = grid.cellHeight;
+        int k = 0;
+        int strayCount = 0;
+        int groups = 0;
+        for (int c = 0; c < cells; c++) {
+            int count = cellCount[c];
+            if (count == 0) continue;
+            int first = k;
+            int end = cellStart[c] + count;
+            for (int s = cellStart[c]; s < end; s++) {
+                int i = sortedIndex[s];
+                float x = store.x(i);
+                float y = store.y(i);
+                if (Math.abs(x - builtX[s]) > maxDx || Math.abs(y - builtY[s]) > maxDy) {
+                    strays[strayCount++] = i;
+                    continue;
+                }
+                xs[k] = x;
+                ys[k] = y;
+                species[k] = (byte) store.species(i);
+                k++;
+            }
+            if (k == first) continue;
+            measureGroup(xs, ys, first, k, groupBounds, 4 * groups);
+            groupEnd[groups++] = k;
+        }
+        if (strayCount > 0) {
+            int first = k;
+            for (int j = 0; j < strayCount; j++) {
+                int i = strays[j];
+                xs[k] = store.x(i);
+                ys[k] = store.y(i);
+                species[k] = (byte) store.species(i);
+                k++;
+            }
+            measureGroup(xs, ys, first, k, groupBounds, 4 * groups);
+            groupEnd[groups++] = k;
+        }
+        return groups;
+    }
+
+    private static void measureGroup(float[] xs, float[] ys, int from, int to, float[] bounds, int at) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int k = from; k < to; k++) {
+            float x = xs[k];
+            float y = ys[k];
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        bounds[at] = minX;
+        bounds[at + 1] = minY;
+        bounds[at + 2] = maxX;
+        bounds[at + 3] = maxY;
+    }
+
+    void copyVelocities(float[] vxs, float[] vys) {
+        store.copyVelocities(vxs, vys, store.size());
+    }
+
+    // Replaces all particles with the first n entries of the given columns.
+    void setParticles(float[] xs, float[] ys, float[] vxs, float[] vys, byte[] species, int n) {
+        for (int i = 0; i < n; i++) {
+            if (species[i] < 0 || species[i] >= speciesCount) {
+                throw new IllegalArgumentException("particle " + i + " has species " + species[i]);
+            }
+        }
+        store.load(xs, ys, vxs, vys, species, n);
+        particlesChanged();
+    }
+
+    boolean isOffHeap() {
+        return store.isOffHeap();
+    }
+
+    // Moves the particles to direct (off-heap) buffers or back onto the Java heap.
+    void setOffHeap(boolean offHeap) {
+        if (offHeap == store.isOffHeap()) return;
+        ParticleStore target = ParticleStore.create(offHeap);
+        store.copyTo(target);
+        store = target;
+    }
+
+    // Bytes held by the particle store, on or off the heap.
+    long getStorageBytes() {
+        return store.reservedBytes();
+    }
+
+    // Bytes of per-step working arrays: sorted copies, forces, the grid's index arrays and any
+    // neighbour lists.
+    long getWorkingBytes() {
+        return (long) sortedX.length * (8 + 8 + 4 + 8 + 8) + grid.indexBytes()
+                + 4L * (listStart.length + listNeighbours.length) + 8L * (referenceX.length + referenceY.length + rowPairs.length);
+    }
+
+    // Storage plus working memory per live particle; 0 when there are none.
+    double getBytesPerParticle() {
+        int n = store.size();
+        return n == 0 ? 0 : (double) (getStorageBytes() + getWorkingBytes()) / n;
+    }
+
+    BoundaryMode getBoundaryMode() {
+        return boundaryMode;
+    }
+
+    void setBoundaryMode(BoundaryMode mode) {
+        boundaryMode = mode;
+        wakeAll();
+    }
+
+    double getAspect() {
+        return aspect;
+    }
+
+    void setAspect(double aspect) {
+        if (!(aspect > 0) || Double.isInfinite(aspect)) {
+            throw new IllegalArgumentException("aspect must be positive: " + aspect);
+        }
+        this.aspect = aspect;
+        wakeAll();
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (threads == this.threads) return;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.threads = threads;
+        pool = threads > 1 ? new ForkJoinPool(threads, Worker::new, null, false) : null;
+    }
+
+    boolean isHalfShell() {
+        return halfShell;
+    }
+
+    void setHalfShell(boolean halfShell) {
+        this.halfShell = halfShell;
+    }
+
+    boolean isNeighbourLists() {
+        return neighbourLists;
+    }
+
+    // Replaces the per-step grid search with Verlet neighbour lists. Pays off when particles
+    // move little per step; the lists are traversed like the half-shell pass, and the vector
+    // pass is not used while it is on.
+    void setNeighbourLists(boolean enabled) {
+        neighbourLists = enabled;
+        listParticles = -1;
+    }
+
+    double getNeighbourSkin() {
+        return skin;
+    }
+
+    // Extra list radius beyond R_MAX, in aspect-scaled units. Larger skins rebuild less often
+    // but make every list longer.
+    void setNeighbourSkin(double skin) {
+        if (!(skin >= 0) || skin > 1) {
+            throw new IllegalArgumentException("skin must be in [0, 1]: " + skin);
+        }
+        this.skin = skin;
+    }
+
+    // Neighbour list builds, and steps taken with lists enabled, since construction.
+    long getNeighbourListBuilds() {
+        return listBuilds;
+    }
+
+    long getNeighbourListSteps() {
+        return listSteps;
+    }
+
+    // Mean list length after the last build; 0 without lists.
+    double getMeanNeighbourListLength() {
+        return listParticles <= 0 ? 0 : (double) listStart[listParticles] / listParticles;
+    }
+
+    boolean isSleeping() {
+        return sleeping;
+    }
+
+    // Lets settled cells sleep; see SLEEP_DELAY. Ignored while neighbour lists are on.
+    void setSleeping(boolean sleeping) {
+        this.sleeping = sleeping;
+        wakeAll();
+    }
+
+    double getSleepTolerance() {
+        return sleepTolerance;
+    }
+
+    // Error bound: the farthest, in aspect-scaled units, that a sleeping particle may drift
+    // between two of its updates. Sets the sleep speed to tolerance / ((interval - 1) * DT).
+    void setSleepTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("sleep tolerance must be non-negative: " + tolerance);
+        }
+        sleepTolerance = tolerance;
+        wakeAll();
+    }
+
+    int getSleepInterval() {
+        return sleepInterval;
+    }
+
+    // Sleeping cells are stepped once every interval steps.
+    void setSleepInterval(int interval) {
+        if (interval < 2) {
+            throw new IllegalArgumentException("sleep interval must be at least 2: " + interval);
+        }
+        sleepInterval = interval;
+        wakeAll();
+    }
+
+    // Forgets all activity history, so no cell sleeps for the next SLEEP_DELAY steps. Also drops
+    // the Verlet integrator's last accelerations, which may belong to particles that are gone.
+    private void wakeAll() {
+        wakeRequested = true;
+        haveLastAcceleration = false;
+    }
+
+    Integrator getIntegrator() {
+        return integrator;
+    }
+
+    void setIntegrator(Integrator integrator) {
+        this.integrator = integrator;
+        haveLastAcceleration = false;
+    }
+
+    // Length of the next step; fixed unless the time step is adaptive.
+    double getTimeStep() {
+        return timeStep;
+    }
+
+    // Any length up to MAX_TIME_STEP; MIN_TIME_STEP only bounds the adaptive controller.
+    void setTimeStep(double dt) {
+        if (!(dt > 0 && dt <= MAX_TIME_STEP)) {
+            throw new IllegalArgumentException("time step must be in (0, " + MAX_TIME_STEP + "]: " + dt);
+        }
+        timeStep = dt;
+    }
+
+    boolean isAdaptiveTimeStep() {
+        return adaptiveTimeStep;
+    }
+
+    // Sleeping cells assume a fixed step and are ignored while this is on.
+    void setAdaptiveTimeStep(boolean adaptive) {
+        adaptiveTimeStep = adaptive;
+    }
+
+    double getTimeStepTolerance() {
+        return timeStepTolerance;
+    }
+
+    void setTimeStepTolerance(double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("time step tolerance must be positive: " + tolerance);
+        }
+        timeStepTolerance = tolerance;
+    }
+
+    // Sum of the lengths of all steps taken since construction or setSimulatedTime.
+    double getSimulatedTime() {
+        return simulatedTime;
+    }
+
+    void setSimulatedTime(double time) {
+        simulatedTime = time;
+    }
+
+    boolean isSubdivision() {
+        return subdivision;
+    }
+
+    // Splits crowded cells for the scalar half-shell pass; ignored while neighbour lists or the
+    // vector pass are on.
+    void setSubdivision(boolean subdivision) {
+        this.subdivision = subdivision;
+    }
+
+    int getSubdivisionThreshold() {
+        return subdivisionThreshold;
+    }
+
+    void setSubdivisionThreshold(int threshold) {
+        if (threshold < 4 * SUBCELL_PARTICLES) {
+            throw new IllegalArgumentException("subdivision threshold must be at least "
+                    + 4 * SUBCELL_PARTICLES + ": " + threshold);
+        }
+        subdivisionThreshold = threshold;
+    }
+
+    boolean isTabulatedKernel() {
+        return tabulatedKernel;
+    }
+
+    void setTabulatedKernel(boolean tabulated) {
+        tabulatedKernel = tabulated;
+    }
+
+    // Whether VectorForcePass is installed. It only runs on steps that take the half-shell
+    // pass without neighbour lists; StepStats.vectorized tells whether the last step did.
+    boolean isVectorized() {
+        return vectorPass != null;
+    }
+
+    // Switches the half-shell pass to VectorForcePass. Returns false, leaving the scalar
+    // pass in place, when the jdk.incubator.vector module or the class is not available.
+    boolean setVectorized(boolean vectorized) {
+        vectorPass = vectorized ? loadVectorPass() : null;
+        return vectorPass != null || !vectorized;
+    }
+
+    static boolean isVectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    private static ForcePass loadVectorPass() {
+        if (!isVectorApiAvailable()) return null;
+        try {
+            return (ForcePass) Class.forName("VectorForcePass").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    long getStepCount() {
+        return stepCount;
+    }
+
+    void setStepCount(long stepCount) {
+        this.stepCount = stepCount;
+    }
+
+    // Seed the engine's random generator was created with.
+    long getSeed() {
+        return seed;
+    }
+
+    // Number of candidate (i, j) pairs examined by the neighbour search since construction.
+    long getPairEvaluations() {
+        return pairEvaluations;
+    }
+
+    // Phase timings and counters of the last step. Only valid on the stepping thread.
+    StepStats getStepStats() {
+        return stats;
+    }
+
+    // Called by force passes with the number of candidate pairs they found within R_MAX.
+    void addInteractions(long pairs) {
+        interactions.addAndGet(pairs);
+    }
+
+    void step(int steps) {
+        for (int s = 0; s < steps; s++) {
+            stepOnce();
+        }
+    }
+
+    private void stepOnce() {
+        StepEvent event = this.event;
+        event.begin();
+        stepCount++;
+        int particleCount = store.size();
+        stats.step = stepCount;
+        stats.particles = particleCount;
+        stats.timeStep = timeStep;
+        if (particleCount == 0) {
+            stats.gridNanos = stats.forceNanos = stats.integrateNanos = 0;
+            stats.candidatePairs = stats.interactingPairs = 0;
+            stats.maxCellOccupancy = 0;
+            stats.occupiedCells = stats.asleepCells = 0;
+            stats.dividedCells = 0;
+            stats.vectorized = false;
+            stats.peakAcceleration = 0;
+            simulatedTime += timeStep;
+            stats.simulatedTime = simulatedTime;
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        if (neighbourLists) {
+            updateNeighbourLists();
+        } else {
+            buildGrid(R_MAX);
+        }
+        transposeMatrix();
+        updateSleep(particleCount);
+        long t1 = System.nanoTime();
+
+        interactions.set(0);
+        long pairs;
+        boolean halfShellPass = neighbourLists || useHalfShell();
+        if (halfShellPass) {
+            pairs = computeForcesHalfShell();
+        } else {
+            pairs = forEachRange(particleCount, MIN_CHUNK, forcePass);
+        }
+        long t2 = System.nanoTime();
+        prepareIntegration();
+        forEachRange(particleCount, MIN_CHUNK, integratePass);
+        finishIntegration();
+        long t3 = System.nanoTime();
+
+        pairEvaluations += pairs;
+
+        stats.gridNanos = t1 - t0;
+        stats.forceNanos = t2 - t1;
+        stats.integrateNanos = t3 - t2;
+        stats.candidatePairs = pairs;
+        stats.interactingPairs = interactions.get();
+        stats.maxCellOccupancy = grid.maxOccupancy();
+        stats.dividedCells = grid.dividedCells;
+        stats.vectorized = halfShellPass && !neighbourLists && vectorPass != null;
+        stats.totalDividedCells += stats.dividedCells;
+        if (stats.vectorized) stats.totalVectorizedSteps++;
+        stats.totalAsleepCells += stats.asleepCells;
+        stats.totalOccupiedCells += stats.occupiedCells;
+        stats.totalGridNanos += stats.gridNanos;
+        stats.totalForceNanos += stats.forceNanos;
+        stats.totalIntegrateNanos += stats.integrateNanos;
+        stats.totalInteractingPairs += stats.interactingPairs;
+        stats.simulatedTime = simulatedTime;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.step = stepCount;
+            event.particles = particleCount;
+            event.gridNanos = stats.gridNanos;
+            event.forceNanos = stats.forceNanos;
+            event.integrateNanos = stats.integrateNanos;
+            event.candidatePairs = pairs;
+            event.interactingPairs = stats.interactingPairs;
+            event.maxCellOccupancy = stats.maxCellOccupancy;
+            event.memoryBytes = getStorageBytes() + getWorkingBytes();
+            event.commit();
+        }
+    }
+
+    private void prepareIntegration() {
+        double h = timeStep;
+        stepLength = h;
+        stepFriction = Math.pow(0.5, h / FRICTION_HALF_LIFE);
+        stepGain = (1 - stepFriction) / FRICTION_RATE;
+        stepDrift = (h - stepGain) / FRICTION_RATE;
+        if (integrator == Integrator.VERLET && lastAccelerationX.length < store.capacity()) {
+            lastAccelerationX = Arrays.copyOf(lastAccelerationX, store.capacity());
+            lastAccelerationY = Arrays.copyOf(lastAccelerationY, store.capacity());
+            haveLastAcceleration = false;
+        }
+        peakAcceleration.set(0);
+    }
+
+    // Books the step's time and, with an adaptive step, picks the length of the next one.
+    private void finishIntegration() {
+        double h = stepLength;
+        simulatedTime += h;
+        if (integrator == Integrator.VERLET) {
+            // Gain of a force rising linearly from 0 to 1 over the step
+            double rate = FRICTION_RATE;
+            lastCorrection = stepGain - (1 - stepFriction * (1 + rate * h)) / (rate * rate * h);
+            haveLastAcceleration = true;
+        }
+        double peak = Math.sqrt(Double.longBitsToDouble(peakAcceleration.get()));
+        stats.peakAcceleration = peak;
+        if (adaptiveTimeStep) {
+            double next = peak > 0 ? timeStepTolerance * Math.sqrt(BETA * R_MAX / peak) : MAX_TIME_STEP;
+            next = Math.min(next, h * MAX_TIME_STEP_GROWTH);
+            timeStep = Math.max(MIN_TIME_STEP, Math.min(MAX_TIME_STEP, next));
+        }
+    }
+
+    // The half-shell pass runs strips in two phases, so with few grid rows it has less
+    // parallelism than the full pass. Use it only while it still keeps every thread busy.
+    private boolean useHalfShell() {
+        if (!halfShell) return false;
+        if (pool == null) return true;
+        return 2 * Math.min(threads, grid.rows / 2) >= threads;
+    }
+
+    // Sorts the particles into cells at least range wide in aspect-scaled distance.
+    private void buildGrid(double range) {
+        ParticleStore store = this.store;
+        int particleCount = store.size();
+        if (sortedX.length < particleCount) {
+            int capacity = store.capacity();
+            sortedX = new double[capacity];
+            sortedY = new double[capacity];
+            sortedSpecies = new int[capacity];
+            forceX = new double[capacity];
+            forceY = new double[capacity];
+        }
+
+        // Cells must span range in aspect-scaled distance, i.e. range / aspect along x
+        double cellWidth = range / aspect;
+        double cellHeight = range;
+
+        if (boundaryMode == BoundaryMode.WRAP) {
+            grid.layoutWrap(cellWidth, cellHeight);
+        } else if (boundaryMode == BoundaryMode.CLOSED) {
+            grid.layoutBounded(0, 0, 1, 1, cellWidth, cellHeight, particleCount);
+        } else {
+            // Only occupied cells are stored, so cells stay R_MAX wide however far the swarm spreads
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < particleCount; i++) {
+                float x = store.x(i);
+                float y = store.y(i);
+                if (x < minX) minX = x;
+                if (y < minY) minY = y;
+            }
+            grid.layoutSparse(minX, minY, cellWidth, cellHeight);
+        }
+        grid.build(store, particleCount);
+        if (subdivision && !neighbourLists && vectorPass == null && useHalfShell()) {
+            grid.subdivide(store, subdivisionThreshold, SUBCELL_PARTICLES, SCRATCH.get().around);
+            if (grid.dividedCells > 0) {
+                grid.prepareStencils(aspect, R_MAX);
+            }
+        }
+
+        int[] sortedIndex = grid.sortedIndex;
+        for (int k = 0; k < particleCount; k++) {
+            int i = sortedIndex[k];
+            sortedX[k] = store.x(i);
+            sortedY[k] = store.y(i);
+            sortedSpecies[k] = store.species(i);
+        }
+    }
+
+    private void transposeMatrix() {
+        int m = speciesCount;
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                matrixTransposed[j * m + i] = matrix[i * m + j];
+            }
+        }
+    }
+
+    // Sleeping is ignored with neighbour lists, Verlet or an adaptive time step. updateSleep and
+    // integrate must agree on it, or integrate tracks quiet steps in an array never sized.
+    private boolean sleepActive() {
+        return sleeping && !neighbourLists && integrator == Integrator.EULER && !adaptiveTimeStep;
+    }
+
+    // Decides which cells sleep this step and, off the sleepers' update steps, publishes them
+    // in frozenCells. Counts occupied and sleeping cells into stats.
+    private void updateSleep(int n) {
+        frozenCells = null;
+        catchUpCells = null;
+        stats.occupiedCells = 0;
+        stats.asleepCells = 0;
+        if (!sleepActive()) return;
+
+        if (quietSteps.length < store.capacity()) {
+            quietSteps = Arrays.copyOf(quietSteps, store.capacity());
+        }
+        if (wakeRequested) {
+            Arrays.fill(quietSteps, (byte) 0);
+            wakeRequested = false;
+        }
+        double quietSpeed = sleepTolerance / ((sleepInterval - 1) * timeStep);
+        quietSpeedSq = quietSpeed * quietSpeed;
+
+        int cells = grid.cellCount();
+        if (cellQuiet.length < cells) {
+            cellQuiet = new boolean[Math.max(cells, cellQuiet.length + (cellQuiet.length >> 1))];
+            cellAsleep = new boolean[cellQuiet.length];
+        }
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] sortedIndex = grid.sortedIndex;
+        for (int c = 0; c < cells; c++) {
+            boolean quiet = true;
+            int end = cellStart[c] + cellCount[c];
+            for (int k = cellStart[c]; k < end && quiet; k++) {
+                quiet = quietSteps[sortedIndex[k]] >= SLEEP_DELAY;
+            }
+            cellQuiet[c] = quiet;
+        }
+
+        int[] around = SCRATCH.get().around;
+        int occupied = 0;
+        int asleep = 0;
+        for (int c = 0; c < cells; c++) {
+            boolean sleeps = false;
+            if (cellCount[c] > 0) {
+                occupied++;
+                if (cellQuiet[c]) {
+                    sleeps = true;
+                    int count = grid.neighbourhood(c, around);
+                    for (int j = 0; j < count && sleeps; j++) {
+                        sleeps = cellQuiet[around[j]];
+                    }
+                }
+            }
+            cellAsleep[c] = sleeps;
+            if (sleeps) asleep++;
+        }
+        stats.occupiedCells = occupied;
+        stats.asleepCells = asleep;
+        if (asleep > 0) {
+            if (stepCount % sleepInterval != 0) {
+                frozenCells = cellAsleep;
+            } else {
+                catchUpCells = cellAsleep;
+            }
+        }
+    }
+
+    // Keeps the lists if they were built under the current settings and nobody has moved more
+    // than skin / 2 since; the sorted copies are refreshed from the store either way.
+    private void updateNeighbourLists() {
+        int n = store.size();
+        listSteps++;
+        if (n == listParticles && aspect == listAspect && boundaryMode == listMode && skin == listSkin
+                && refreshSorted(n)) {
+            return;
+        }
+
+        buildGrid(R_MAX + skin);
+        if (referenceX.length < n) {
+            referenceX = new double[sortedX.length];
+            referenceY = new double[sortedX.length];
+        }
+        System.arraycopy(sortedX, 0, referenceX, 0, n);
+        System.arraycopy(sortedY, 0, referenceY, 0, n);
+        if (listStart.length < n + 1) {
+            listStart = new int[sortedX.length + 1];
+        }
+
+        listStart[0] = 0;
+        if (pool == null) {
+            scanNeighbours(0, n, LIST_APPEND);
+        } else {
+            // Count, then fill each particle's slice of the flat array, both in parallel
+            forEachRange(n, MIN_CHUNK, listCountPass);
+            for (int k = 0; k < n; k++) {
+                listStart[k + 1] += listStart[k];
+            }
+            int total = listStart[n];
+            if (listNeighbours.length < total) {
+                listNeighbours = new int[Math.max(total, listNeighbours.length + (listNeighbours.length >> 1))];
+            }
+            forEachRange(n, MIN_CHUNK, listFillPass);
+        }
+
+        listParticles = n;
+        listAspect = aspect;
+        listMode = boundaryMode;
+        listSkin = skin;
+        listBuilds++;
+    }
+
+    // Copies the store into the sorted arrays in the order of the last build. Returns false as
+    // soon as a particle has moved more than skin / 2 from where the lists were built.
+    private boolean refreshSorted(int n) {
+        ParticleStore store = this.store;
+        int[] sortedIndex = grid.sortedIndex;
+        boolean wrap = boundaryMode == BoundaryMode.WRAP;
+        double aspect = this.aspect;
+        double limitSq = skin * skin / 4;
+        for (int k = 0; k < n; k++) {
+            int i = sortedIndex[k];
+            double x = store.x(i);
+            double y = store.y(i);
+            double rx = x - referenceX[k];
+            double ry = y - referenceY[k];
+            if (wrap) {
+                if (rx > 0.5)  rx -= 1.0;
+                if (rx < -0.5) rx += 1.0;
+                if (ry > 0.5)  ry -= 1.0;
+                if (ry < -0.5) ry += 1.0;
+            }
+            rx *= aspect;
+            if (rx * rx + ry * ry > limitSq) return false;
+            sortedX[k] = x;
+            sortedY[k] = y;
+            sortedSpecies[k] = store.species(i);
+        }
+        return true;
+    }
+
+    // Collects the neighbours within R_MAX + skin of the particles at sorted positions
+    // [from, to). Lists are half lists in half-shell order: the rest of the own cell, then the
+    // forward cells, so every pair appears once.
+    //   LIST_COUNT   stores each count in listStart[k + 1], to be summed up afterwards
+    //   LIST_FILL    writes each list from listStart[k], as summed up
+    //   LIST_APPEND  single pass over all particles, setting listStart and growing the array
+    private static final int LIST_COUNT = 0;
+    private static final int LIST_FILL = 1;
+    private static final int LIST_APPEND = 2;
+
+    private long scanNeighbours(int from, int to, int mode) {
+        double aspect = this.aspect;
+        boolean wrap = grid.wrap;
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] sortedIndex = grid.sortedIndex;
+        int[] cellOf = grid.cellOf;
+        int[] forward = SCRATCH.get().forward;
+        int forwardCell = -1;
+        int forwardCount = 0;
+        int[] list = listNeighbours;
+        double[] sx = sortedX;
+        double[] sy = sortedY;
+        double range = R_MAX + skin;
+        double rangeSq = range * range;
+        int end = 0;
+
+        for (int k = from; k < to; k++) {
+            int cell = cellOf[sortedIndex[k]];
+            int cellEnd = cellStart[cell] + cellCount[cell];
+            if (cell != forwardCell) {
+                forwardCount = grid.forwardNeighbours(cell, forward);
+                forwardCell = cell;
+            }
+            if (mode == LIST_APPEND) {
+                // Grow for the worst case: every candidate within range
+                int bound = cellEnd - k - 1;
+                for (int f = 0; f < forwardCount; f++) {
+                    bound += cellCount[forward[f]];
+                }
+                if (list.length < end + bound) {
+                    list = Arrays.copyOf(list, Math.max(end + bound, list.length + (list.length >> 1)));
+                    listNeighbours = list;
+                }
+                listStart[k] = end;
+            }
+            double px = sx[k];
+            double py = sy[k];
+            int out = mode == LIST_FILL ? listStart[k] : end;
+            int count = 0;
+
+            int s = k + 1;
+            int sEnd = cellEnd;
+            for (int f = -1; f < forwardCount; f++) {
+                if (f >= 0) {
+                    s = cellStart[forward[f]];
+                    sEnd = s + cellCount[forward[f]];
+                }
+                for (; s < sEnd; s++) {
+                    double rx = sx[s] - px;
+                    double ry = sy[s] - py;
+                    if (wrap) {
+                        if (rx > 0.5)  rx -= 1.0;
+                        if (rx < -0.5) rx += 1.0;
+                        if (ry > 0.5)  ry -= 1.0;
+                        if (ry < -0.5) ry += 1.0;
+                    }
+                    rx *= aspect;
+                    if (rx * rx + ry * ry < rangeSq) {
+                        if (mode != LIST_COUNT) list[out + count] = s;
+                        count++;
+                    }
+                }
+            }
+            if (mode == LIST_COUNT) {
+                listStart[k + 1] = count;
+            } else if (mode == LIST_APPEND) {
+                end += count;
+            }
+        }
+        if (mode == LIST_APPEND) {
+            listStart[to] = end;
+        }
+        return 0;
+    }
+
+    // forceRows over the neighbour lists: same kernel, pair order and reaction forces as the
+    // half-shell pass, so right after a build the forces match it exactly. Rows are those of
+    // the grid the lists were built on. Returns the number of list entries examined.
+    private long listForceRows(int rowFrom, int rowTo) {
+        double aspect = this.aspect;
+        boolean wrap = grid.wrap;
+        int[] rowStart = grid.rowStart;
+        int[] cellStart = grid.cellStart;
+        int from = cellStart[rowStart[rowFrom]];
+        int to = cellStart[rowStart[rowTo]];
+        int[] start = listStart;
+        int[] neighbours = listNeighbours;
+        double[] sx = sortedX;
+        double[] sy = sortedY;
+        int[] species = sortedSpecies;
+        int m = speciesCount;
+        float[] matrix = this.matrix;
+        float[] matrixT = matrixTransposed;
+        boolean tabulated = tabulatedKernel;
+        float[] table = ForceKernel.TABLE;
+        double tableScale = ForceKernel.RESOLUTION / R_MAX;
+        long interacting = 0;
+
+        for (int k = from; k < to; k++) {
+            double px = sx[k];
+            double py = sy[k];
+            int rowBase = species[k] * m;
+            double fx = 0, fy = 0;
+            int end = start[k + 1];
+            for (int e = start[k]; e < end; e++) {
+                int s = neighbours[e];
+                double rx = sx[s] - px;
+                double ry = sy[s] - py;
+
+                if (wrap) {
+                    if (rx > 0.5)  rx -= 1.0;
+                    if (rx < -0.5) rx += 1.0;
+                    if (ry > 0.5)  ry -= 1.0;
+                    if (ry < -0.5) ry += 1.0;
+                }
+
+                double dxAspect = rx * aspect;
+                double dyAspect = ry;
+                double r2 = dxAspect * dxAspect + dyAspect * dyAspect;
+
+                if (r2 > 0 && r2 < R_MAX_SQ) {
+                    interacting++;
+                    double r = Math.sqrt(r2);
+                    int cj = species[s];
+                    double invR = 1.0 / r;
+                    double ux = dxAspect * invR;
+                    double uy = dyAspect * invR;
+                    double fi, fj;
+                    if (tabulated) {
+                        double t = r * tableScale;
+                        int o = ((int) t) << 2;
+                        double frac = t - (o >> 2);
+                        double core = table[o] + frac * table[o + 1];
+                        double shape = table[o + 2] + frac * table[o + 3];
+                        fi = core + matrix[rowBase + cj] * shape;
+                        fj = core + matrixT[rowBase + cj] * shape;
+                    } else {
+                        fi = ForceKernel.analytic(r / R_MAX, matrix[rowBase + cj]);
+                        fj = ForceKernel.analytic(r / R_MAX, matrixT[rowBase + cj]);
+                    }
+                    fx += ux * fi;
+                    fy += uy * fi;
+                    forceX[s] -= ux * fj;
+                    forceY[s] -= uy * fj;
+                }
+            }
+            forceX[k] += fx;
+            forceY[k] += fy;
+        }
+        interactions.addAndGet(interacting);
+        return start[to] - start[from];
+    }
+
+    // Full-shell force pass for the particles at cell-sorted positions [from, to). Consecutive
+    // ranges of the sorted order are strips of grid rows. Only writes forces of its own particles,
+    // so disjoint ranges can run concurrently. Returns the number of candidates examined.
+    private long computeForces(int from, int to) {
+        double aspect = this.aspect;
+        boolean wrap = grid.wrap;
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] sortedIndex = grid.sortedIndex;
+        int[] cellOf = grid.cellOf;
+        int[] around = SCRATCH.get().around;
+        int aroundCell = -1;
+        int aroundCount = 0;
+        boolean[] frozen = frozenCells;
+        double[] sx = sortedX;
+        double[] sy = sortedY;
+        int[] species = sortedSpecies;
+        int m = speciesCount;
+        float[] matrix = this.matrix;
+        float[] matrixT = matrixTransposed;
+        boolean tabulated = tabulatedKernel;
+        float[] table = ForceKernel.TABLE;
+        double tableScale = ForceKernel.RESOLUTION / R_MAX;
+        long pairs = 0;
+        long interacting = 0;
+
+        for (int k = from; k < to; k++) {
+            // Particles are sorted by cell, so the neighbourhood changes only between cells
+            int cell = cellOf[sortedIndex[k]];
+            if (frozen != null && frozen[cell]) continue;
+            if (cell != aroundCell) {
+                aroundCount = grid.neighbourhood(cell, around);
+                aroundCell = cell;
+            }
+            double px = sx[k];
+            double py = sy[k];
+            int rowBase = species[k] * m;
+            double fx = 0, fy = 0;
+
+            for (int j = 0; j < aroundCount; j++) {
+                int c = around[j];
+                int start = cellStart[c];
+                int end = start + cellCount[c];
+                pairs += end - start;
+
+                for (int s = start; s < end; s++) {
+                    if (s == k) continue;
+
+                    double rx = sx[s] - px;
+                    double ry = sy[s] - py;
+
+                    if (wrap) {
+                        if (rx > 0.5)  rx -= 1.0;
+                        if (rx < -0.5) rx += 1.0;
+                        if (ry > 0.5)  ry -= 1.0;
+                        if (ry < -0.5) ry += 1.0;
+                    }
+
+                    double dxAspect = rx * aspect;
+                    double dyAspect = ry;
+                    double r2 = dxAspect * dxAspect + dyAspect * dyAspect;
+
+                    // Cull on the squared distance; only survivors pay for the square root
+                    if (r2 > 0 && r2 < R_MAX_SQ) {
+                        interacting++;
+                        double r = Math.sqrt(r2);
+                        double a = matrix[rowBase + species[s]];
+                        double f;
+                        if (tabulated) {
+                            double t = r * tableScale;
+                            int o = ((int) t) << 2;
+                            double frac = t - (o >> 2);
+                            f = table[o] + frac * table[o + 1] + a * (table[o + 2] + frac * table[o + 3]);
+                        } else {
+                            f = ForceKernel.analytic(r / R_MAX, a);
+                        }
+                        double invR = 1.0 / r;
+                        fx += dxAspect * invR * f;
+                        fy += dyAspect * invR * f;
+                    }
+                }
+            }
+
+            forceX[k] = fx;
+            forceY[k] = fy;
+        }
+        interactions.addAndGet(interacting);
+        return pairs - (to - from);
+    }
+
+    // Half-shell pass: every unordered pair of neighbouring particles is visited once, from the
+    // cell that comes first in the forward stencil. The distance and unit vector are shared and
+    // a(ci, cj) acts on i, a(cj, ci) on j. Rows are cut into an even number of strips;
+    // a strip writes forces only to its own rows and the first row of the next strip, so all
+    // even strips can run together, then all odd ones. Strips are balanced by candidate pairs,
+    // which grow with the square of the occupancy, so one dense cluster does not leave a single
+    // strip with most of the work.
+    private long computeForcesHalfShell() {
+        if (pool == null || grid.rows < 2) {
+            return forceRows(0, grid.rows);
+        }
+
+        int rows = grid.rows;
+        int strips = 2 * Math.min(threads, rows / 2);
+        if (stripStart.length < strips + 1) {
+            stripStart = new int[strips + 1];
+        }
+
+        // Balance strips by candidate pairs, keeping at least one row in each
+        countRowPairs();
+        stripStart[0] = 0;
+        for (int s = 1; s < strips; s++) {
+            long target = rowPairs[rows] * s / strips;
+            int row = stripStart[s - 1] + 1;
+            while (row < rows - (strips - s) && rowPairs[row] < target) {
+                row++;
+            }
+            stripStart[s] = row;
+        }
+        stripStart[strips] = rows;
+
+        stripPhase = 0;
+        long pairs = forEachRange(strips / 2, 1, stripPass);
+        stripPhase = 1;
+        pairs += forEachRange(strips / 2, 1, stripPass);
+        return pairs;
+    }
+
+    // Fills rowPairs with the running total of the candidate pairs forceRows will visit. Without
+    // divided cells it counts the square of each awake cell's occupancy instead: the pairs of a
+    // cell and its neighbours grow with it, and that needs no neighbour lookups on the serial
+    // path of every parallel step.
+    private void countRowPairs() {
+        int rows = grid.rows;
+        if (rowPairs.length < rows + 1) {
+            rowPairs = new long[Math.max(rows + 1, rowPairs.length + (rowPairs.length >> 1))];
+        }
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] rowStart = grid.rowStart;
+        boolean[] frozen = frozenCells;
+        long total = 0;
+        rowPairs[0] = 0;
+        if (grid.dividedCells == 0) {
+            for (int row = 0; row < rows; row++) {
+                int rowEnd = rowStart[row + 1];
+                for (int cell = rowStart[row]; cell < rowEnd; cell++) {
+                    if (frozen != null && frozen[cell]) continue;
+                    long count = cellCount[cell];
+                    total += count * count;
+                }
+                rowPairs[row + 1] = total;
+            }
+            return;
+        }
+        Scratch scratch = SCRATCH.get();
+        int[] forward = scratch.forward;
+        int[] slots = scratch.slots;
+        int[] ranges = scratch.ranges;
+        for (int row = 0; row < rows; row++) {
+            int rowEnd = rowStart[row + 1];
+            for (int cell = rowStart[row]; cell < rowEnd; cell++) {
+                if (cellCount[cell] == 0) continue;
+                int forwardCount = grid.forwardNeighbours(cell, forward, slots);
+                boolean asleep = frozen != null && frozen[cell];
+                int split = grid.subK[cell];
+                for (int g = 0; g < split * split; g++) {
+                    int from = split == 1 ? cellStart[cell] : grid.subStart[grid.subBase[cell] + g];
+                    long size = (split == 1 ? cellStart[cell] + cellCount[cell] : grid.subStart[grid.subBase[cell] + g + 1]) - from;
+                    if (size == 0) continue;
+                    int rangeCount = pairRanges(cell, split, g, forwardCount, forward, slots, asleep, frozen, ranges);
+                    long partners = 0;
+                    for (int r = 0; r < rangeCount; r++) {
+                        partners += ranges[2 * r + 1] - ranges[2 * r];
+                    }
+                    total += size * partners + (asleep ? 0 : size * (size - 1) / 2);
+                }
+            }
+            rowPairs[row + 1] = total;
+        }
+    }
+
+    // Longest range list pairRanges can produce: the other sub-cells of a fully divided cell and
+    // all sub-cells of its four forward neighbours
+    private static final int PAIR_RANGES = 2 * 5 * CellGrid.MAX_SUBDIVISION * CellGrid.MAX_SUBDIVISION;
+
+    // Writes the cell-sorted ranges that sub-cell g of a cell split x split ways pairs with,
+    // besides itself, as from, to pairs: the later sub-cells of its own cell, then the sub-cells
+    // of its forward neighbours, in the order forwardNeighbours reports them. Sub-cells that the
+    // grid's stencils rule out as R_MAX or more apart are left out, as are the own cell when it
+    // is asleep and frozen forward cells. An undivided cell is its own single sub-cell. Returns
+    // the range count.
+    private int pairRanges(int cell, int split, int g, int forwardCount, int[] forward, int[] slots,
+                           boolean asleep, boolean[] frozen, int[] ranges) {
+        CellGrid grid = this.grid;
+        int[] subK = grid.subK;
+        int[] subBase = grid.subBase;
+        int[] subStart = grid.subStart;
+        int[] stencilStart = grid.stencilStart;
+        int[] stencilCells = grid.stencilCells;
+        boolean divided = grid.dividedCells > 0;
+        int n = 0;
+        if (split > 1 && !asleep) {
+            int base = subBase[cell];
+            int s = grid.stencil(split, split, CellGrid.OWN_SLOT) + g;
+            for (int e = stencilStart[s]; e < stencilStart[s + 1]; e++) {
+                int b = base + stencilCells[e];
+                n = addRange(ranges, n, subStart[b], subStart[b + 1]);
+            }
+        }
+        for (int f = 0; f < forwardCount; f++) {
+            int c = forward[f];
+            if (asleep && frozen[c]) continue;
+            int other = divided ? subK[c] : 1;
+            if (split == 1 && other == 1) {
+                // Cells are at least R_MAX wide, so neighbouring cells are always in range
+                n = addRange(ranges, n, grid.cellStart[c], grid.cellStart[c] + grid.cellCount[c]);
+                continue;
+            }
+            int s = grid.stencil(split, other, slots[f]) + g;
+            for (int e = stencilStart[s]; e < stencilStart[s + 1]; e++) {
+                if (other == 1) {
+                    n = addRange(ranges, n, grid.cellStart[c], grid.cellStart[c] + grid.cellCount[c]);
+                } else {
+                    int b = subBase[c] + stencilCells[e];
+                    n = addRange(ranges, n, subStart[b], subStart[b + 1]);
+                }
+            }
+        }
+        return n;
+    }
+
+    // Appends [from, to) to ranges, extending the last range when it ends at from.
+    private static int addRange(int[] ranges, int n, int from, int to) {
+        if (from == to) return n;
+        if (n > 0 && ranges[2 * n - 1] == from) {
+            ranges[2 * n - 1] = to;
+            return n;
+        }
+        ranges[2 * n] = from;
+        ranges[2 * n + 1] = to;
+        return n + 1;
+    }
+
+    private long forceStrips(int from, int to) {
+        long pairs = 0;
+        for (int t = from; t < to; t++) {
+            int strip = 2 * t + stripPhase;
+            pairs += forceRows(stripStart[strip], stripStart[strip + 1]);
+        }
+        return pairs;
+    }
+
+    private long forceRows(int rowFrom, int rowTo) {
+        if (neighbourLists) {
+            return listForceRows(rowFrom, rowTo);
+        }
+        if (vectorPass != null) {
+            return vectorPass.forceRows(this, rowFrom, rowTo);
+        }
+
+        double aspect = this.aspect;
+        boolean wrap = grid.wrap;
+        int[] cellStart = grid.cellStart;
+        int[] cellCount = grid.cellCount;
+        int[] rowStart = grid.rowStart;
+        Scratch scratch = SCRATCH.get();
+        int[] forward = scratch.forward;
+        int[] slots = scratch.slots;
+        int[] ranges = scratch.ranges;
+        boolean[] frozen = frozenCells;
+        boolean divided = grid.dividedCells > 0;
+        int[] subK = grid.subK;
+        int[] subBase = grid.subBase;
+        int[] subStart = grid.subStart;
+        double[] sx = sortedX;
+        double[] sy = sortedY;
+        int[] species = sortedSpecies;
+        int m = speciesCount;
+        float[] matrix = this.matrix;
+        float[] matrixT = matrixTransposed;
+        boolean tabulated = tabulatedKernel;
+        float[] table = ForceKernel.TABLE;
+        double tableScale = ForceKernel.RESOLUTION / R_MAX;
+        long pairs = 0;
+        long interacting = 0;
+
+        for (int row = rowFrom; row < rowTo; row++) {
+            int rowEnd = rowStart[row + 1];
+            for (int cell = rowStart[row]; cell < rowEnd; cell++) {
+                if (cellCount[cell] == 0) continue;
+                int forwardCount = grid.forwardNeighbours(cell, forward, slots);
+                boolean asleep = frozen != null && frozen[cell];
+                int split = divided ? subK[cell] : 1;
+
+                for (int g = 0; g < split * split; g++) {
+                    int start = split == 1 ? cellStart[cell] : subStart[subBase[cell] + g];
+                    int end = split == 1 ? start + cellCount[cell] : subStart[subBase[cell] + g + 1];
+                    if (start == end) continue;
+                    int rangeCount = pairRanges(cell, split, g, forwardCount, forward, slots, asleep, frozen, ranges);
+
+                    for (int k = start; k < end; k++) {
+                        double px = sx[k];
+                        double py = sy[k];
+                        int rowBase = species[k] * m;
+                        double fx = 0, fy = 0;
+
+                        // Rest of the own sub-cell, then the ranges it pairs with; pairs between
+                        // two frozen cells are skipped
+                        int s = asleep ? end : k + 1;
+                        int sEnd = end;
+                        for (int f = -1; f < rangeCount; f++) {
+                            if (f >= 0) {
+                                s = ranges[2 * f];
+                                sEnd = ranges[2 * f + 1];
+                            }
+                            pairs += sEnd - s;
+
+                            for (; s < sEnd; s++) {
+                                double rx = sx[s] - px;
+                                double ry = sy[s] - py;
+
+                                if (wrap) {
+                                    if (rx > 0.5)  rx -= 1.0;
+                                    if (rx < -0.5) rx += 1.0;
+                                    if (ry > 0.5)  ry -= 1.0;
+                                    if (ry < -0.5) ry += 1.0;
+                                }
+
+                                double dxAspect = rx * aspect;
+                                double dyAspect = ry;
+                                double r2 = dxAspect * dxAspect + dyAspect * dyAspect;
+
+                                if (r2 > 0 && r2 < R_MAX_SQ) {
+                                    interacting++;
+                                    double r = Math.sqrt(r2);
+                                    int cj = species[s];
+                                    double invR = 1.0 / r;
+                                    double ux = dxAspect * invR;
+                                    double uy = dyAspect * invR;
+                                    double fi, fj;
+                                    if (tabulated) {
+                                        // Core and shape are shared by both directions
+                                        double t = r * tableScale;
+                                        int o = ((int) t) << 2;
+                                        double frac = t - (o >> 2);
+                                        double core = table[o] + frac * table[o + 1];
+                                        double shape = table[o + 2] + frac * table[o + 3];
+                                        fi = core + matrix[rowBase + cj] * shape;
+                                        fj = core + matrixT[rowBase + cj] * shape;
+                                    } else {
+                                        fi = ForceKernel.analytic(r / R_MAX, matrix[rowBase + cj]);
+                                        fj = ForceKernel.analytic(r / R_MAX, matrixT[rowBase + cj]);
+                                    }
+                                    fx += ux * fi;
+                                    fy += uy * fi;
+                                    forceX[s] -= ux * fj;
+                                    forceY[s] -= uy * fj;
+                                }
+                            }
+                        }
+
+                        forceX[k] += fx;
+                        forceY[k] += fy;
+                    }
+                }
+            }
+        }
+        interactions.addAndGet(interacting);
+        return pairs;
+    }
+
+    // Position update for the particles at cell-sorted positions [from, to).
+    private long integrate(int from, int to) {
+        double aspect = this.aspect;
+        ParticleStore store = this.store;
+        int[] sortedIndex = grid.sortedIndex;
+        boolean[] frozen = frozenCells;
+        boolean[] catchUp = catchUpCells;
+        int[] cellOf = grid.cellOf;
+        boolean trackQuiet = sleepActive();
+        boolean verlet = integrator == Integrator.VERLET;
+        boolean correct = verlet && haveLastAcceleration;
+        double[] lastX = lastAccelerationX;
+        double[] lastY = lastAccelerationY;
+        double h = stepLength;
+        double f = stepFriction;
+        double gain = stepGain;
+        double drift = stepDrift;
+        double correction = lastCorrection;
+        double peak = 0;
+
+        // Taking K steps under a constant force a: v_K = f^K v + a (1 - f^K) / (1 - f), and
+        // the positions move by h times the sum of v_1 .. v_K
+        int steps = sleepInterval;
+        double fK = Math.pow(f, steps);
+        double sumF = f * (1 - fK) / (1 - f);
+        for (int k = from; k < to; k++) {
+            int i = sortedIndex[k];
+            float vx, vy, x, y;
+            double fx = forceX[k];
+            double fy = forceY[k];
+            double a2 = fx * fx + fy * fy;
+            if (a2 > peak) peak = a2;
+            if (frozen != null && frozen[cellOf[i]]) {
+                forceX[k] = 0;
+                forceY[k] = 0;
+                continue;
+            } else if (catchUp != null && catchUp[cellOf[i]]) {
+                double ax = fx * h / aspect;
+                double ay = fy * h;
+                double vx0 = store.vx(i);
+                double vy0 = store.vy(i);
+                vx = (float) (fK * vx0 + ax * (1 - fK) / (1 - f));
+                vy = (float) (fK * vy0 + ay * (1 - fK) / (1 - f));
+                x = (float) (store.x(i) + h * (vx0 * sumF + ax * (steps - sumF) / (1 - f)));
+                y = (float) (store.y(i) + h * (vy0 * sumF + ay * (steps - sumF) / (1 - f)));
+            } else if (verlet) {
+                double ax = fx / aspect;
+                double ay = fy;
+                double vx0 = store.vx(i);
+                double vy0 = store.vy(i);
+                if (correct) {
+                    vx0 += (ax - lastX[i]) * correction;
+                    vy0 += (ay - lastY[i]) * correction;
+                }
+                lastX[i] = ax;
+                lastY[i] = ay;
+                x = (float) (store.x(i) + vx0 * gain + ax * drift);
+                y = (float) (store.y(i) + vy0 * gain + ay * drift);
+                vx = (float) (vx0 * f + ax * gain);
+                vy = (float) (vy0 * f + ay * gain);
+            } else {
+                vx = (float) (store.vx(i) * f + fx * h / aspect);
+                vy = (float) (store.vy(i) * f + fy * h);
+                x = (float) (store.x(i) + vx * h);
+                y = (float) (store.y(i) + vy * h);
+            }
+            forceX[k] = 0;
+            forceY[k] = 0;
+
+            if (boundaryMode == BoundaryMode.WRAP) {
+                x = (x % 1 + 1) % 1;
+                y = (y % 1 + 1) % 1;
+            } else if (boundaryMode == BoundaryMode.CLOSED) {
+                if (x < 0) {
+                    x = 0;
+                    vx *= -0.5f;
+                } else if (x > 1) {
+                    x = 1;
+                    vx *= -0.5f;
+                }
+
+                if (y < 0) {
+                    y = 0;
+                    vy *= -0.5f;
+                } else if (y > 1) {
+                    y = 1;
+                    vy *= -0.5f;
+                }
+            }
+            store.setPosition(i, x, y);
+            store.setVelocity(i, vx, vy);
+
+            if (trackQuiet) {
+                double speedX = vx * aspect;
+                if (speedX * speedX + vy * vy < quietSpeedSq) {
+                    if (quietSteps[i] < SLEEP_DELAY) quietSteps[i]++;
+                } else {
+                    quietSteps[i] = 0;
+                }
+            }
+        }
+        long bits = Double.doubleToRawLongBits(peak);
+        long seen = peakAcceleration.get();
+        while (bits > seen && !peakAcceleration.compareAndSet(seen, bits)) {
+            seen = peakAcceleration.get();
+        }
+        return 0;
+    }
+
+    // Half-shell force pass over grid rows [rowFrom, rowTo), reading and writing the engine's
+    // cell-sorted arrays. Returns the number of candidates examined.
+    interface ForcePass {
+        long forceRows(SimulationEngine engine, int rowFrom, int rowTo);
+    }
+
+    interface RangeBody {
+        long run(int from, int to);
+    }
+
+    // Runs body over [0, n), split across the pool when more than one thread is configured.
+    // Ranges are never smaller than minChunk. Returns the sum of the per-range results.
+    private long forEachRange(int n, int minChunk, RangeBody body) {
+        if (pool == null || n < 2 * minChunk) {
+            return body.run(0, n);
+        }
+        int grain = Math.max(minChunk, n / (threads * 4));
+        int levels = 0;
+        for (int size = n; size > grain; size = (size + 1) >>> 1) {
+            levels++;
+        }
+        int nodes = (2 << levels) - 1;
+        if (rangeTasks.length < nodes) {
+            int old = rangeTasks.length;
+            rangeTasks = Arrays.copyOf(rangeTasks, nodes);
+            for (int i = old; i < nodes; i++) {
+                rangeTasks[i] = new RangeTask(i == 0 ? null : rangeTasks[(i - 1) / 2]);
+            }
+        }
+        // pool.invoke would block this thread, which is not a worker, on a wait node allocated
+        // per call; the root instead unparks it when the last range completes
+        RangeTask root = rangeTasks[0];
+        root.prepare(rangeTasks, 0, body, 0, n, grain);
+        root.waiter = Thread.currentThread();
+        root.finished = false;
+        root.failure = null;
+        pool.execute(root);
+        while (!root.finished) {
+            LockSupport.park(this);
+        }
+        // The root is marked done just after it signals; reinitializing it before then would
+        // let that stale status cancel the next call
+        while (!root.isDone()) {
+            Thread.yield();
+        }
+        if (root.failure instanceof Error) {
+            throw (Error) root.failure;
+        } else if (root.failure != null) {
+            throw (RuntimeException) root.failure;
+        }
+        return root.result;
+    }
+
+    // One node of the forEachRange tree; node i completes into node (i - 1) / 2. A completer
+    // never waits for its children, where a joining RecursiveTask may park on a wait node
+    // allocated for the purpose, and the result is a plain field rather than a boxed Long.
+    // A range that throws still completes normally, recording the failure at the root, so the
+    // root completes only once every range has returned: a failed step leaves no range running
+    // over the shared arrays, and no task half-completed, when the tree is next reused.
+    @SuppressWarnings("serial")
+    private static final class RangeTask extends CountedCompleter<Void> {
+        private RangeTask[] tree;
+        private int node;
+        private RangeBody body;
+        private int from;
+        private int to;
+        private int grain;
+        long result;
+        // Used by the root only: the thread waiting in forEachRange, and the first failure
+        Thread waiter;
+        volatile boolean finished;
+        volatile Throwable failure;
+
+        RangeTask(RangeTask parent) {
+            super(parent);
+        }
+
+        // A task can only run again after reinitialize(), which clears its completion status.
+        void prepare(RangeTask[] tree, int node, RangeBody body, int from, int to, int grain) {
+            reinitialize();
+            setPendingCount(0);
+            this.tree = tree;
+            this.node = node;
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        public void compute() {
+            if (to - from <= grain) {
+                try {
+                    result = body.run(from, to);
+                } catch (RuntimeException | Error e) {
+                    RangeTask root = tree[0];
+                    if (root.failure == null) {
+                        root.failure = e;
+                    }
+                }
+                tryComplete();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            RangeTask left = tree[2 * node + 1];
+            RangeTask right = tree[2 * node + 2];
+            left.prepare(tree, 2 * node + 1, body, from, mid, grain);
+            right.prepare(tree, 2 * node + 2, body, mid, to, grain);
+            setPendingCount(1);
+            left.fork();
+            right.compute();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (to - from > grain) {
+                result = tree[2 * node + 1].result + tree[2 * node + 2].result;
+            }
+            if (node == 0) {
+                finished = true;
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
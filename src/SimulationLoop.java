@@ -0,0 +1,247 @@
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Steps a SimulationEngine on its own thread with a fixed timestep and an accumulator, so
+// simulation speed no longer depends on how fast the UI paints.
+//
+// Only the loop thread touches the engine. Everyone else talks to it through a lock-free command
+// queue (submit) and reads state from published snapshots (acquire / release). Snapshots rotate
+// through three buffers: the published one, the one a reader holds, and a free one to write
+// next, so neither side ever waits for the other.
+class SimulationLoop {
+    private static final long PUBLISH_NANOS = 1_000_000_000L / 60;
+
+    // Upper bound on steps taken to catch up in one frame; beyond it, time is dropped
+    private static final int MAX_SUBSTEPS = 64;
+
+    private final SimulationEngine engine;
+    private final Queue<Consumer<SimulationEngine>> commands = new ConcurrentLinkedQueue<>();
+
+    private final FrameSnapshot[] buffers = {new FrameSnapshot(), new FrameSnapshot(), new FrameSnapshot()};
+    private final AtomicReference<FrameSnapshot> published = new AtomicReference<>();
+    private volatile FrameSnapshot reading;
+
+    // Simulation steps per wall-clock second; 0 runs as fast as possible
+    private volatile double stepsPerSecond = 60;
+    private volatile boolean paused = false;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    // Called on the simulation thread after every step, e.g. by a TrajectoryRecorder
+    private volatile Consumer<SimulationEngine> stepObserver;
+
+    private final SimulationMetrics metrics = new SimulationMetrics();
+
+    // Measured step rate, updated once per second
+    private double measuredStepsPerSecond;
+    private long rateWindowStart;
+    private long rateWindowSteps;
+
+    SimulationLoop(SimulationEngine engine) {
+        this.engine = engine;
+        FrameSnapshot first = buffers[0];
+        first.copyFrom(engine);
+        published.set(first);
+    }
+
+    void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    // Queues a change to be applied on the simulation thread before the next step.
+    void submit(Consumer<SimulationEngine> command) {
+        commands.add(command);
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Copies the full engine state into the given state between two steps. The copy is done on
+    // the simulation thread; the returned future completes there, so slow work on the result
+    // (such as writing it to disk) should continue on another thread.
+    CompletableFuture<SimulationState> capture(SimulationState into) {
+        CompletableFuture<SimulationState> done = new CompletableFuture<>();
+        submit(engine -> {
+            into.captureFrom(engine);
+            done.complete(into);
+        });
+        return done;
+    }
+
+    // Observer to call after every step, or null. Runs on the simulation thread, so it must be quick.
+    void setStepObserver(Consumer<SimulationEngine> observer) {
+        stepObserver = observer;
+    }
+
+    void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    void setStepsPerSecond(double stepsPerSecond) {
+        this.stepsPerSecond = Math.max(0, stepsPerSecond);
+    }
+
+    double getStepsPerSecond() {
+        return stepsPerSecond;
+    }
+
+    SimulationMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Returns the latest snapshot and pins it until release(). One reader at a time.
+    FrameSnapshot acquire() {
+        while (true) {
+            FrameSnapshot s = published.get();
+            reading = s;
+            if (published.get() == s) {
+                return s;
+            }
+        }
+    }
+
+    void release() {
+        reading = null;
+    }
+
+    private void run() {
+        long last = System.nanoTime();
+        long lastPublish = last;
+        double accumulator = 0;
+        rateWindowStart = last;
+
+        while (running) {
+            boolean changed = drainCommands();
+
+            long now = System.nanoTime();
+            double period = stepsPerSecond > 0 ? 1e9 / stepsPerSecond : 0;
+            accumulator += now - last;
+            last = now;
+
+            int steps = 0;
+            if (paused) {
+                accumulator = 0;
+            } else if (period == 0) {
+                // Free-running: step until it is time to publish again
+                do {
+                    stepOnce();
+                    steps++;
+                } while (System.nanoTime() - lastPublish < PUBLISH_NANOS && commands.isEmpty());
+                accumulator = 0;
+            } else {
+                while (accumulator >= period && steps < MAX_SUBSTEPS) {
+                    stepOnce();
+                    accumulator -= period;
+                    steps++;
+                }
+                if (accumulator >= period) {
+                    // Cannot keep up; run at full speed instead of spiralling
+                    accumulator = 0;
+                }
+            }
+
+            updateRate(steps);
+            if (steps > 0 || changed) {
+                publish();
+                lastPublish = System.nanoTime();
+            }
+
+            long wait;
+            if (paused || period > 0) {
+                double untilStep = paused ? PUBLISH_NANOS : period - accumulator;
+                wait = (long) Math.min(untilStep, PUBLISH_NANOS);
+            } else {
+                wait = 0;
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    // One pass of the loop thread without its clock: runs the queued commands, takes the given
+    // number of steps and publishes. Only for a loop that was never started, which the caller
+    // then drives on its own thread.
+    void cycle(int steps) {
+        boolean changed = drainCommands();
+        for (int i = 0; i < steps; i++) {
+            stepOnce();
+        }
+        updateRate(steps);
+        if (steps > 0 || changed) {
+            publish();
+        }
+    }
+
+    private void stepOnce() {
+        engine.step(1);
+        metrics.recordStep(engine);
+        Consumer<SimulationEngine> observer = stepObserver;
+        if (observer != null) {
+            observer.accept(engine);
+        }
+    }
+
+    private boolean drainCommands() {
+        boolean any = false;
+        Consumer<SimulationEngine> command;
+        while ((command = commands.poll()) != null) {
+            command.accept(engine);
+            any = true;
+        }
+        return any;
+    }
+
+    private void publish() {
+        FrameSnapshot current = published.get();
+        FrameSnapshot held = reading;
+        FrameSnapshot target = null;
+        for (FrameSnapshot b : buffers) {
+            if (b != current && b != held) {
+                target = b;
+                break;
+            }
+        }
+        engine.ensureCellIndex();
+        target.copyFrom(engine);
+        target.stepsPerSecond = measuredStepsPerSecond;
+        published.set(target);
+    }
+
+    private void updateRate(int steps) {
+        rateWindowSteps += steps;
+        long now = System.nanoTime();
+        if (now - rateWindowStart >= 1_000_000_000L) {
+            measuredStepsPerSecond = rateWindowSteps * 1e9 / (now - rateWindowStart);
+            rateWindowSteps = 0;
+            rateWindowStart = now;
+            metrics.setStepsPerSecond(measuredStepsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Rolling phase timings and neighbour-search counters of a running simulation. The stepping
+// thread feeds it after every step, the panel after every paint; the overlay and JMX read it
+// from their own threads.
+class SimulationMetrics implements SimulationMetricsMBean {
+    static final int WINDOW = 256;
+    static final String OBJECT_NAME = "ParticleLife:type=SimulationMetrics";
+
+    private final RollingStats grid = new RollingStats(WINDOW);
+    private final RollingStats force = new RollingStats(WINDOW);
+    private final RollingStats integrate = new RollingStats(WINDOW);
+    private final RollingStats step = new RollingStats(WINDOW);
+    private final RollingStats render = new RollingStats(WINDOW);
+
+    private volatile long stepCount;
+    private volatile int particleCount;
+    private volatile double stepsPerSecond;
+    private volatile long candidatePairs;
+    private volatile long interactingPairs;
+    private volatile int maxCellOccupancy;
+    private volatile long totalCandidatePairs;
+    private volatile long totalInteractingPairs;
+    private volatile double sleepingCellFraction;
+
+    // Called on the stepping thread after each step.
+    void recordStep(SimulationEngine engine) {
+        StepStats stats = engine.getStepStats();
+        grid.add(stats.gridNanos);
+        force.add(stats.forceNanos);
+        integrate.add(stats.integrateNanos);
+        step.add(stats.stepNanos());
+        stepCount = stats.step;
+        particleCount = stats.particles;
+        candidatePairs = stats.candidatePairs;
+        interactingPairs = stats.interactingPairs;
+        maxCellOccupancy = stats.maxCellOccupancy;
+        totalCandidatePairs = engine.getPairEvaluations();
+        totalInteractingPairs = stats.totalInteractingPairs;
+        sleepingCellFraction = stats.occupiedCells == 0 ? 0 : (double) stats.asleepCells / stats.occupiedCells;
+    }
+
+    void recordRender(long nanos) {
+        render.add(nanos);
+    }
+
+    void setStepsPerSecond(double stepsPerSecond) {
+        this.stepsPerSecond = stepsPerSecond;
+    }
+
+    RollingStats getGrid() {
+        return grid;
+    }
+
+    RollingStats getForce() {
+        return force;
+    }
+
+    RollingStats getIntegrate() {
+        return integrate;
+    }
+
+    RollingStats getStep() {
+        return step;
+    }
+
+    RollingStats getRender() {
+        return render;
+    }
+
+    // Registers with the platform MBean server. Returns false if the name is already taken or
+    // JMX refused the bean.
+    boolean register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) return false;
+            server.registerMBean(this, name);
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    @Override
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    @Override
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        return stepsPerSecond;
+    }
+
+    @Override
+    public double getGridBuildMillisP50() {
+        return millis(grid.percentile(50));
+    }
+
+    @Override
+    public double getGridBuildMillisP95() {
+        return millis(grid.percentile(95));
+    }
+
+    @Override
+    public double getForceMillisP50() {
+        return millis(force.percentile(50));
+    }
+
+    @Override
+    public double getForceMillisP95() {
+        return millis(force.percentile(95));
+    }
+
+    @Override
+    public double getIntegrateMillisP50() {
+        return millis(integrate.percentile(50));
+    }
+
+    @Override
+    public double getIntegrateMillisP95() {
+        return millis(integrate.percentile(95));
+    }
+
+    @Override
+    public double getStepMillisP99() {
+        return millis(step.percentile(99));
+    }
+
+    @Override
+    public double getRenderMillisP50() {
+        return millis(render.percentile(50));
+    }
+
+    @Override
+    public double getRenderMillisP95() {
+        return millis(render.percentile(95));
+    }
+
+    @Override
+    public long getCandidatePairs() {
+        return candidatePairs;
+    }
+
+    @Override
+    public long getInteractingPairs() {
+        return interactingPairs;
+    }
+
+    @Override
+    public double getInteractingFraction() {
+        long candidates = candidatePairs;
+        return candidates == 0 ? 0 : (double) interactingPairs / candidates;
+    }
+
+    @Override
+    public int getMaxCellOccupancy() {
+        return maxCellOccupancy;
+    }
+
+    @Override
+    public long getTotalCandidatePairs() {
+        return totalCandidatePairs;
+    }
+
+    @Override
+    public long getTotalInteractingPairs() {
+        return totalInteractingPairs;
+    }
+
+    @Override
+    public double getSleepingCellFraction() {
+        return sleepingCellFraction;
+    }
+}
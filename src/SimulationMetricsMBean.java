@@ -0,0 +1,43 @@
+// JMX view of SimulationMetrics, registered as ParticleLife:type=SimulationMetrics. Times are
+// in milliseconds over the last SimulationMetrics.WINDOW samples.
+public interface SimulationMetricsMBean {
+    long getStepCount();
+
+    int getParticleCount();
+
+    double getStepsPerSecond();
+
+    double getGridBuildMillisP50();
+
+    double getGridBuildMillisP95();
+
+    double getForceMillisP50();
+
+    double getForceMillisP95();
+
+    double getIntegrateMillisP50();
+
+    double getIntegrateMillisP95();
+
+    double getStepMillisP99();
+
+    double getRenderMillisP50();
+
+    double getRenderMillisP95();
+
+    long getCandidatePairs();
+
+    long getInteractingPairs();
+
+    // Interacting / candidate pairs of the last step
+    double getInteractingFraction();
+
+    int getMaxCellOccupancy();
+
+    long getTotalCandidatePairs();
+
+    long getTotalInteractingPairs();
+
+    // Sleeping / occupied cells of the last step; 0 unless sleeping is on
+    double getSleepingCellFraction();
+}
@@ -0,0 +1,58 @@
+// Complete copy of an engine's state: settings, matrix and every particle's position, velocity
+// and species. Used to save and restore runs. Arrays are reused between captures and only grow.
+class SimulationState {
+    long seed;
+    long stepCount;
+    int speciesCount;
+    SimulationEngine.BoundaryMode boundaryMode = SimulationEngine.BoundaryMode.WRAP;
+    double aspect = 1.0;
+    float[] matrix = new float[0];
+
+    int count;
+    float[] positionsX = new float[0];
+    float[] positionsY = new float[0];
+    float[] velocitiesX = new float[0];
+    float[] velocitiesY = new float[0];
+    byte[] colors = new byte[0];
+
+    // Must run on the thread that steps the engine.
+    void captureFrom(SimulationEngine engine) {
+        seed = engine.getSeed();
+        stepCount = engine.getStepCount();
+        speciesCount = engine.getSpeciesCount();
+        boundaryMode = engine.getBoundaryMode();
+        aspect = engine.getAspect();
+        float[] source = engine.getMatrix();
+        if (matrix.length != source.length) {
+            matrix = new float[source.length];
+        }
+        System.arraycopy(source, 0, matrix, 0, source.length);
+
+        int n = engine.getParticleCount();
+        ensureCapacity(n);
+        engine.copyPositions(positionsX, positionsY);
+        engine.copyVelocities(velocitiesX, velocitiesY);
+        engine.copySpecies(colors);
+        count = n;
+    }
+
+    // Must run on the thread that steps the engine. The seed is not applied; it only records
+    // where the saved run started.
+    void applyTo(SimulationEngine engine) {
+        engine.setMatrix(speciesCount, matrix);
+        engine.setBoundaryMode(boundaryMode);
+        engine.setAspect(aspect);
+        engine.setStepCount(stepCount);
+        engine.setParticles(positionsX, positionsY, velocitiesX, velocitiesY, colors, count);
+    }
+
+    void ensureCapacity(int n) {
+        if (positionsX.length < n) {
+            positionsX = new float[n];
+            positionsY = new float[n];
+            velocitiesX = new float[n];
+            velocitiesY = new float[n];
+            colors = new byte[n];
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// Non-blocking channel between two neighbouring SlabWorkers. A message is a 4-byte length and a
+// payload of particle records; exchange() sends one message on every link while receiving one
+// from every link, so two workers sending to each other cannot deadlock on full socket buffers.
+// Buffers are direct, kept between steps and only grow.
+class SlabLink {
+    // id, x, y, vx, vy, species
+    static final int MIGRANT_BYTES = 4 + 4 * 4 + 1;
+    // x, y, species
+    static final int GHOST_BYTES = 2 * 4 + 1;
+
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer out = ByteBuffer.allocateDirect(1 << 16);
+    private ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+    private int records;
+    private boolean received;
+    private long bytesSent;
+
+    SlabLink(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    // Starts a message of up to capacity records of recordBytes each.
+    void begin(int capacity, int recordBytes) {
+        int needed = 4 + capacity * recordBytes;
+        if (out.capacity() < needed) {
+            out = ByteBuffer.allocateDirect(Math.max(needed, out.capacity() * 3 / 2));
+        }
+        out.clear();
+        out.putInt(0);
+        records = 0;
+    }
+
+    void putMigrant(int id, float x, float y, float vx, float vy, byte species) {
+        out.putInt(id).putFloat(x).putFloat(y).putFloat(vx).putFloat(vy).put(species);
+        records++;
+    }
+
+    void putGhost(float x, float y, byte species) {
+        out.putFloat(x).putFloat(y).put(species);
+        records++;
+    }
+
+    int sentRecords() {
+        return records;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    // The message received by the last exchange, positioned at its first record.
+    ByteBuffer received() {
+        return in;
+    }
+
+    // Sends the message begun on each link and waits for one message from each. All links of a
+    // worker share one selector.
+    static void exchange(Selector selector, SlabLink... links) throws IOException {
+        int pending = 0;
+        for (SlabLink link : links) {
+            link.out.putInt(0, link.out.position() - 4);
+            link.out.flip();
+            link.bytesSent += link.out.remaining();
+            link.in.clear();
+            link.in.limit(4);
+            link.received = false;
+            if (link.key == null) {
+                link.key = link.channel.register(selector, 0, link);
+            }
+            link.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            pending++;
+        }
+        while (pending > 0) {
+            selector.select();
+            for (SelectionKey key : selector.selectedKeys()) {
+                SlabLink link = (SlabLink) key.attachment();
+                if (key.isWritable()) {
+                    link.channel.write(link.out);
+                }
+                if (key.isReadable()) {
+                    link.read();
+                }
+                int ops = (link.out.hasRemaining() ? SelectionKey.OP_WRITE : 0) | (link.received ? 0 : SelectionKey.OP_READ);
+                key.interestOps(ops);
+                if (ops == 0) pending--;
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException("neighbour closed the link");
+        }
+        if (in.hasRemaining()) return;
+        if (in.position() == 4 && in.limit() == 4) {
+            // Length read: make room for the payload and keep reading
+            int length = in.getInt(0);
+            if (in.capacity() < 4 + length) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(4 + length, in.capacity() * 3 / 2));
+                grown.putInt(length);
+                in = grown;
+            }
+            in.limit(4 + length);
+            if (length > 0) {
+                if (channel.read(in) < 0) throw new EOFException("neighbour closed the link");
+                if (in.hasRemaining()) return;
+            }
+        }
+        in.flip();
+        in.position(4);
+        received = true;
+    }
+}
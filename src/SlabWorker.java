@@ -0,0 +1,303 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+// One process of a DistributedRunner: owns the particles of the vertical slab
+// [index / workers, (index + 1) / workers) of a WRAP domain and steps them with its own
+// SimulationEngine. Slabs form a ring; each step a worker
+//
+//   1. hands particles that left its slab to the neighbour on that side (migration),
+//   2. sends both neighbours the particles within one interaction range of the shared edge
+//      and receives theirs as ghosts (halo exchange),
+//   3. loads owned particles and ghosts into the engine, steps once and keeps the owned ones.
+//
+// Ghosts only exert forces; whatever the step does to them is thrown away, and fresh copies
+// arrive next step. Positions stay in world coordinates, so the engine's WRAP minimum image
+// joins the slabs across x = 0 as it joins the unit square.
+//
+// Started by the coordinator as: java SlabWorker <coordinator port>
+public class SlabWorker {
+    static final int STEP = 1;
+    static final int GATHER = 2;
+    static final int STOP = 3;
+
+    private final int index;
+    private final int workers;
+    private final double slabMin;
+    private final double slabMax;
+    private final double halo;
+    private final SimulationEngine engine;
+
+    private SlabLink left;
+    private SlabLink right;
+    private Selector selector;
+
+    // Owned particles
+    private int count;
+    private int[] ids = new int[0];
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] vxs = new float[0];
+    private float[] vys = new float[0];
+    private byte[] species = new byte[0];
+
+    // Owned followed by ghosts, as loaded into the engine
+    private float[] allX = new float[0];
+    private float[] allY = new float[0];
+    private float[] allVx = new float[0];
+    private float[] allVy = new float[0];
+    private byte[] allSpecies = new byte[0];
+
+    private long computeNanos;
+    private long exchangeNanos;
+    private long ghosts;
+
+    private SlabWorker(int index, int workers, double aspect, SimulationEngine engine) {
+        this.index = index;
+        this.workers = workers;
+        this.slabMin = (double) index / workers;
+        this.slabMax = (double) (index + 1) / workers;
+        // Interaction range along x in world units, as in the engine's grid
+        this.halo = SimulationEngine.R_MAX / aspect;
+        this.engine = engine;
+    }
+
+    public static void main(String[] args) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        ServerSocketChannel peers = ServerSocketChannel.open();
+        peers.bind(new InetSocketAddress(loopback, 0));
+
+        SocketChannel control = SocketChannel.open(new InetSocketAddress(loopback, Integer.parseInt(args[0])));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(control), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(control), 1 << 16));
+        out.writeInt(((InetSocketAddress) peers.getLocalAddress()).getPort());
+        out.flush();
+
+        int index = in.readInt();
+        int workers = in.readInt();
+        long seed = in.readLong();
+        int speciesCount = in.readInt();
+        double aspect = in.readDouble();
+        int threads = in.readInt();
+        float[] matrix = new float[speciesCount * speciesCount];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = in.readFloat();
+        }
+        int rightPort = in.readInt();
+
+        SimulationEngine engine = new SimulationEngine(seed, speciesCount);
+        engine.setMatrix(speciesCount, matrix);
+        engine.setBoundaryMode(SimulationEngine.BoundaryMode.WRAP);
+        engine.setAspect(aspect);
+        engine.setThreads(threads);
+
+        SlabWorker worker = new SlabWorker(index, workers, aspect, engine);
+        worker.readParticles(in);
+        if (workers > 1) {
+            // Connecting completes against the listen backlog, so every worker can connect to its
+            // right neighbour before any of them accepts from the left.
+            worker.right = new SlabLink(SocketChannel.open(new InetSocketAddress(loopback, rightPort)));
+            worker.left = new SlabLink(peers.accept());
+            worker.selector = Selector.open();
+        }
+        peers.close();
+        out.writeInt(worker.count);
+        out.flush();
+
+        try {
+            while (true) {
+                int command = in.readInt();
+                if (command == STEP) {
+                    int steps = in.readInt();
+                    worker.step(steps);
+                    out.writeInt(worker.count);
+                    out.writeLong(worker.computeNanos);
+                    out.writeLong(worker.exchangeNanos);
+                    out.writeLong(worker.ghosts);
+                    out.writeLong(worker.bytesSent());
+                } else if (command == GATHER) {
+                    worker.writeParticles(out);
+                } else {
+                    break;
+                }
+                out.flush();
+            }
+        } finally {
+            control.close();
+        }
+    }
+
+    private void readParticles(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        ensureOwned(n);
+        for (int i = 0; i < n; i++) {
+            ids[i] = in.readInt();
+            xs[i] = in.readFloat();
+            ys[i] = in.readFloat();
+            vxs[i] = in.readFloat();
+            vys[i] = in.readFloat();
+            species[i] = in.readByte();
+        }
+        count = n;
+    }
+
+    private void writeParticles(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(ids[i]);
+            out.writeFloat(xs[i]);
+            out.writeFloat(ys[i]);
+            out.writeFloat(vxs[i]);
+            out.writeFloat(vys[i]);
+            out.writeByte(species[i]);
+        }
+    }
+
+    private long bytesSent() {
+        return left == null ? 0 : left.getBytesSent() + right.getBytesSent();
+    }
+
+    private void step(int steps) throws IOException {
+        for (int s = 0; s < steps; s++) {
+            int ghostCount = 0;
+            if (workers > 1) {
+                long t0 = System.nanoTime();
+                migrate();
+                ghostCount = exchangeHalo();
+                exchangeNanos += System.nanoTime() - t0;
+            }
+
+            long t1 = System.nanoTime();
+            int n = count;
+            System.arraycopy(xs, 0, allX, 0, n);
+            System.arraycopy(ys, 0, allY, 0, n);
+            System.arraycopy(vxs, 0, allVx, 0, n);
+            System.arraycopy(vys, 0, allVy, 0, n);
+            System.arraycopy(species, 0, allSpecies, 0, n);
+            engine.setParticles(allX, allY, allVx, allVy, allSpecies, n + ghostCount);
+            engine.step(1);
+            engine.copyPositions(allX, allY);
+            engine.copyVelocities(allVx, allVy);
+            System.arraycopy(allX, 0, xs, 0, n);
+            System.arraycopy(allY, 0, ys, 0, n);
+            System.arraycopy(allVx, 0, vxs, 0, n);
+            System.arraycopy(allVy, 0, vys, 0, n);
+            computeNanos += System.nanoTime() - t1;
+            ghosts += ghostCount;
+        }
+    }
+
+    private int slabOf(float x) {
+        return Math.min(workers - 1, (int) (x * workers));
+    }
+
+    // Sends owned particles now in another slab towards it, the shorter way round the ring, and
+    // takes in those sent here. A particle that jumped further than a neighbour's slab is passed
+    // on again next step.
+    private void migrate() throws IOException {
+        left.begin(count, SlabLink.MIGRANT_BYTES);
+        right.begin(count, SlabLink.MIGRANT_BYTES);
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int slab = slabOf(xs[i]);
+            if (slab == index) {
+                ids[kept] = ids[i];
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                vxs[kept] = vxs[i];
+                vys[kept] = vys[i];
+                species[kept] = species[i];
+                kept++;
+                continue;
+            }
+            int ahead = (slab - index + workers) % workers;
+            SlabLink link = ahead <= workers / 2 ? right : left;
+            link.putMigrant(ids[i], xs[i], ys[i], vxs[i], vys[i], species[i]);
+        }
+        count = kept;
+        SlabLink.exchange(selector, left, right);
+        takeMigrants(left.received());
+        takeMigrants(right.received());
+    }
+
+    private void takeMigrants(ByteBuffer buf) {
+        int n = buf.remaining() / SlabLink.MIGRANT_BYTES;
+        ensureOwned(count + n);
+        for (int k = 0; k < n; k++) {
+            int i = count++;
+            ids[i] = buf.getInt();
+            xs[i] = buf.getFloat();
+            ys[i] = buf.getFloat();
+            vxs[i] = buf.getFloat();
+            vys[i] = buf.getFloat();
+            species[i] = buf.get();
+        }
+    }
+
+    // Sends each neighbour the owned particles within halo of the edge it shares and appends
+    // what they send after the owned particles. Returns the number of ghosts.
+    private int exchangeHalo() throws IOException {
+        left.begin(count, SlabLink.GHOST_BYTES);
+        right.begin(count, SlabLink.GHOST_BYTES);
+        for (int i = 0; i < count; i++) {
+            float x = xs[i];
+            if (x - slabMin < halo) left.putGhost(x, ys[i], species[i]);
+            if (slabMax - x < halo) right.putGhost(x, ys[i], species[i]);
+        }
+        SlabLink.exchange(selector, left, right);
+        ByteBuffer fromLeft = left.received();
+        ByteBuffer fromRight = right.received();
+        int ghostCount = (fromLeft.remaining() + fromRight.remaining()) / SlabLink.GHOST_BYTES;
+        ensureAll(count + ghostCount);
+        int k = count;
+        k = takeGhosts(fromLeft, k);
+        takeGhosts(fromRight, k);
+        return ghostCount;
+    }
+
+    private int takeGhosts(ByteBuffer buf, int at) {
+        while (buf.hasRemaining()) {
+            allX[at] = buf.getFloat();
+            allY[at] = buf.getFloat();
+            allVx[at] = 0;
+            allVy[at] = 0;
+            allSpecies[at] = buf.get();
+            at++;
+        }
+        return at;
+    }
+
+    private void ensureOwned(int n) {
+        if (ids.length < n) {
+            int capacity = Math.max(n, ids.length * 3 / 2);
+            ids = Arrays.copyOf(ids, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            vxs = Arrays.copyOf(vxs, capacity);
+            vys = Arrays.copyOf(vys, capacity);
+            species = Arrays.copyOf(species, capacity);
+        }
+        ensureAll(n);
+    }
+
+    private void ensureAll(int n) {
+        if (allX.length < n) {
+            int capacity = Math.max(n, allX.length * 3 / 2);
+            allX = new float[capacity];
+            allY = new float[capacity];
+            allVx = new float[capacity];
+            allVy = new float[capacity];
+            allSpecies = new byte[capacity];
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Binary snapshot of a SimulationState. Everything is little-endian:
+//
+//   0   int     magic "PLSN"
+//   4   int     format version
+//   8   int     particle count n
+//   12  int     species count m
+//   16  int     boundary mode (BoundaryMode ordinal)
+//   20  int     reserved, 0
+//   24  long    seed
+//   32  long    step count
+//   40  double  aspect
+//   48  float   matrix[m * m], row-major
+//       ...     zero padding to a multiple of 8
+//       float   x[n], y[n], vx[n], vy[n]
+//       byte    species[n]
+//
+// Both directions go through memory-mapped FileChannels, one mapping per column, so the columns
+// move as bulk copies with no per-field parsing. Saves are written to a sibling temporary file
+// and renamed over the target, so a reader never sees a half-written snapshot.
+final class SnapshotFile {
+    static final int MAGIC = 0x4E534C50;
+    static final int VERSION = 1;
+    private static final int FIXED_HEADER = 48;
+
+    private SnapshotFile() {
+    }
+
+    static long headerBytes(int speciesCount) {
+        long bytes = FIXED_HEADER + 4L * speciesCount * speciesCount;
+        return (bytes + 7) & ~7L;
+    }
+
+    static long fileBytes(int speciesCount, int count) {
+        return headerBytes(speciesCount) + (long) count * ParticleStore.BYTES_PER_PARTICLE;
+    }
+
+    static void write(SimulationState state, Path path) throws IOException {
+        int n = state.count;
+        int m = state.speciesCount;
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long header = headerBytes(m);
+            MappedByteBuffer head = map(channel, FileChannel.MapMode.READ_WRITE, 0, header);
+            head.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(n)
+                .putInt(m)
+                .putInt(state.boundaryMode.ordinal())
+                .putInt(0)
+                .putLong(state.seed)
+                .putLong(state.stepCount)
+                .putDouble(state.aspect);
+            head.asFloatBuffer().put(state.matrix, 0, m * m);
+            head.force();
+
+            long offset = header;
+            offset = writeColumn(channel, offset, state.positionsX, n);
+            offset = writeColumn(channel, offset, state.positionsY, n);
+            offset = writeColumn(channel, offset, state.velocitiesX, n);
+            offset = writeColumn(channel, offset, state.velocitiesY, n);
+            if (n > 0) {
+                MappedByteBuffer column = map(channel, FileChannel.MapMode.READ_WRITE, offset, n);
+                column.put(state.colors, 0, n);
+                column.force();
+            }
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Reads a snapshot into state, reusing its arrays. Throws IOException for files that are
+    // not snapshots, have another version or are truncated.
+    static void read(Path path, SimulationState state) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FIXED_HEADER) {
+                throw new IOException(path + ": too short for a snapshot");
+            }
+            ByteBuffer fixed = map(channel, FileChannel.MapMode.READ_ONLY, 0, FIXED_HEADER);
+            if (fixed.getInt() != MAGIC) {
+                throw new IOException(path + ": not a particle life snapshot");
+            }
+            int version = fixed.getInt();
+            if (version != VERSION) {
+                throw new IOException(path + ": unsupported snapshot version " + version);
+            }
+            int n = fixed.getInt();
+            int m = fixed.getInt();
+            int mode = fixed.getInt();
+            fixed.getInt();
+            if (n < 0 || m < 1 || m > SimulationEngine.MAX_SPECIES
+                    || mode < 0 || mode >= SimulationEngine.BoundaryMode.values().length) {
+                throw new IOException(path + ": corrupt snapshot header");
+            }
+            if (size < fileBytes(m, n)) {
+                throw new IOException(path + ": truncated, expected " + fileBytes(m, n) + " bytes");
+            }
+            state.seed = fixed.getLong();
+            state.stepCount = fixed.getLong();
+            state.aspect = fixed.getDouble();
+            state.speciesCount = m;
+            state.boundaryMode = SimulationEngine.BoundaryMode.values()[mode];
+
+            if (state.matrix.length != m * m) {
+                state.matrix = new float[m * m];
+            }
+            map(channel, FileChannel.MapMode.READ_ONLY, FIXED_HEADER, 4L * m * m)
+                .asFloatBuffer().get(state.matrix);
+
+            state.ensureCapacity(n);
+            long offset = headerBytes(m);
+            offset = readColumn(channel, offset, state.positionsX, n);
+            offset = readColumn(channel, offset, state.positionsY, n);
+            offset = readColumn(channel, offset, state.velocitiesX, n);
+            offset = readColumn(channel, offset, state.velocitiesY, n);
+            if (n > 0) {
+                map(channel, FileChannel.MapMode.READ_ONLY, offset, n).get(state.colors, 0, n);
+            }
+            state.count = n;
+        }
+    }
+
+    private static long writeColumn(FileChannel channel, long offset, float[] values, int n) throws IOException {
+        if (n == 0) return offset;
+        MappedByteBuffer column = map(channel, FileChannel.MapMode.READ_WRITE, offset, 4L * n);
+        column.asFloatBuffer().put(values, 0, n);
+        column.force();
+        return offset + 4L * n;
+    }
+
+    private static long readColumn(FileChannel channel, long offset, float[] values, int n) throws IOException {
+        if (n == 0) return offset;
+        map(channel, FileChannel.MapMode.READ_ONLY, offset, 4L * n).asFloatBuffer().get(values, 0, n);
+        return offset + 4L * n;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long bytes)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, offset, bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+}
@@ -0,0 +1,49 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder event for one SimulationEngine step. Disabled unless a recording enables it,
+// e.g. java -XX:StartFlightRecording:filename=run.jfr,settings=profile ...
+@Name("particlelife.Step")
+@Label("Simulation Step")
+@Category("Particle Life")
+@Description("One engine step with its phase durations and neighbour-search counters")
+@StackTrace(false)
+class StepEvent extends Event {
+    @Label("Step")
+    long step;
+
+    @Label("Particles")
+    int particles;
+
+    @Label("Grid Build")
+    @Timespan(Timespan.NANOSECONDS)
+    long gridNanos;
+
+    @Label("Force Pass")
+    @Timespan(Timespan.NANOSECONDS)
+    long forceNanos;
+
+    @Label("Integration")
+    @Timespan(Timespan.NANOSECONDS)
+    long integrateNanos;
+
+    @Label("Candidate Pairs")
+    long candidatePairs;
+
+    @Label("Interacting Pairs")
+    @Description("Candidate pairs closer than R_MAX")
+    long interactingPairs;
+
+    @Label("Max Cell Occupancy")
+    int maxCellOccupancy;
+
+    @Label("Particle Memory")
+    @DataAmount
+    long memoryBytes;
+}
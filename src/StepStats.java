@@ -0,0 +1,42 @@
+// Instrumentation of the most recent SimulationEngine step, plus running totals. Written by the
+// stepping thread only; other threads should read it through SimulationMetrics.
+class StepStats {
+    long step;
+    int particles;
+
+    // Phase durations of the last step
+    long gridNanos;
+    long forceNanos;
+    long integrateNanos;
+
+    // Candidate pairs from the neighbour search, and those closer than R_MAX
+    long candidatePairs;
+    long interactingPairs;
+    int maxCellOccupancy;
+
+    // Cells holding particles, and those of them asleep; both 0 unless sleeping is on
+    int occupiedCells;
+    int asleepCells;
+    // Cells split into sub-cells; 0 unless subdivision is on
+    int dividedCells;
+    // Whether the forces came from VectorForcePass rather than a scalar pass
+    boolean vectorized;
+
+    // Length of the step, simulated time after it, and the largest aspect-scaled acceleration
+    double timeStep;
+    double simulatedTime;
+    double peakAcceleration;
+
+    long totalGridNanos;
+    long totalForceNanos;
+    long totalIntegrateNanos;
+    long totalInteractingPairs;
+    long totalOccupiedCells;
+    long totalAsleepCells;
+    long totalDividedCells;
+    long totalVectorizedSteps;
+
+    long stepNanos() {
+        return gridNanos + forceNanos + integrateNanos;
+    }
+}
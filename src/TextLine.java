@@ -0,0 +1,134 @@
+import java.awt.Graphics;
+import java.util.Arrays;
+
+// A line of overlay text formatted into a reused char buffer and drawn with drawChars, so a line
+// that changes every frame costs no String or Formatter. Covers the few conversions the panel
+// uses; numbers always use '.' for the decimal point and ',' for grouping, whatever the locale.
+final class TextLine {
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private char[] chars = new char[64];
+    private int length;
+    // Start of the field being padded by padRight or alignRight
+    private int fieldStart;
+
+    TextLine clear() {
+        length = 0;
+        return this;
+    }
+
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    TextLine append(String s) {
+        ensure(s.length());
+        s.getChars(0, s.length(), chars, length);
+        length += s.length();
+        return this;
+    }
+
+    TextLine append(char c) {
+        ensure(1);
+        chars[length++] = c;
+        return this;
+    }
+
+    // %d
+    TextLine append(long v) {
+        return appendLong(v, false);
+    }
+
+    // %,d
+    TextLine appendGrouped(long v) {
+        return appendLong(v, true);
+    }
+
+    // %.Nf with N = decimals, at most 6
+    TextLine append(double v, int decimals) {
+        if (Double.isNaN(v)) return append("NaN");
+        if (Double.isInfinite(v)) return append(v > 0 ? "Infinity" : "-Infinity");
+        if (v < 0 || (v == 0 && 1 / v < 0)) {
+            append('-');
+            v = -v;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(v * scale);
+        appendLong(scaled / scale, false);
+        if (decimals > 0) {
+            append('.');
+            long fraction = scaled % scale;
+            for (long p = scale / 10; p > 1 && fraction < p; p /= 10) {
+                append('0');
+            }
+            appendLong(fraction, false);
+        }
+        return this;
+    }
+
+    // Marks where a padded field starts; padRight or alignRight then pads it to a width.
+    TextLine field() {
+        fieldStart = length;
+        return this;
+    }
+
+    // %-Ns: spaces after the field
+    TextLine padRight(int width) {
+        int pad = width - (length - fieldStart);
+        for (int i = 0; i < pad; i++) {
+            append(' ');
+        }
+        return this;
+    }
+
+    // %Ns: spaces before the field
+    TextLine alignRight(int width) {
+        int pad = width - (length - fieldStart);
+        if (pad > 0) {
+            ensure(pad);
+            System.arraycopy(chars, fieldStart, chars, fieldStart + pad, length - fieldStart);
+            Arrays.fill(chars, fieldStart, fieldStart + pad, ' ');
+            length += pad;
+        }
+        return this;
+    }
+
+    void draw(Graphics g, int x, int y) {
+        g.drawChars(chars, 0, length, x, y);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private TextLine appendLong(long v, boolean grouped) {
+        if (v == Long.MIN_VALUE) return append(Long.toString(v));
+        if (v < 0) {
+            append('-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long rest = v / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int size = grouped ? digits + (digits - 1) / 3 : digits;
+        ensure(size);
+        int pos = length + size;
+        for (int d = 0; d < digits; d++) {
+            if (grouped && d > 0 && d % 3 == 0) {
+                chars[--pos] = ',';
+            }
+            chars[--pos] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        length += size;
+        return this;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(length + extra, chars.length * 2));
+        }
+    }
+}
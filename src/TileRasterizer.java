@@ -0,0 +1,295 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Renders particles into an image of any size, independent of the window, for the
+// VideoRenderer. The image is cut into TILE x TILE tiles that are rendered in parallel; each
+// particle is first binned into every tile its footprint touches, so a tile only looks at its
+// own particles and no two threads write the same pixel.
+//
+// Particles are discs of the given radius in output pixels, in the same world-to-pixel mapping
+// as ParticleRenderer. With supersampling S each tile is rasterized at S x S samples per pixel
+// and averaged down, which antialiases the edges. Glow adds a Gaussian halo around every
+// particle on top; halos add up, so dense clusters bloom and saturate towards white.
+class TileRasterizer {
+    static final int TILE = 128;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final int supersample;
+    private final float radius;
+    private final int glowRadius;
+    // (2 glowRadius + 1)^2 weights, glow strength included
+    private final float[] glowKernel;
+    // Parallel execution; pool is null when running single-threaded
+    private final ForkJoinPool pool;
+
+    // Per-frame bins, filled by the calling thread before the tiles run
+    private int[] tileStart;
+    private int[] binned = new int[0];
+    private float[] pixelX = new float[0];
+    private float[] pixelY = new float[0];
+
+    // Per-worker tile buffers
+    private final ThreadLocal<int[]> samples;
+    private final ThreadLocal<float[]> halo;
+
+    TileRasterizer(int width, int height, int supersample, float radius, float glow, int glowRadius, int threads) {
+        if (width < 1 || height < 1 || supersample < 1 || threads < 1 || !(radius > 0) || glow < 0 || glowRadius < 0) {
+            throw new IllegalArgumentException("invalid raster settings");
+        }
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE - 1) / TILE;
+        this.tilesY = (height + TILE - 1) / TILE;
+        this.supersample = supersample;
+        // A disc wider than half a sample diagonal always covers at least one sample
+        this.radius = Math.max(radius, 0.71f / supersample);
+        this.glowRadius = glow > 0 ? glowRadius : 0;
+        this.glowKernel = gaussian(this.glowRadius, glow);
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        int side = TILE * supersample;
+        samples = ThreadLocal.withInitial(() -> new int[side * side]);
+        halo = ThreadLocal.withInitial(() -> new float[3 * TILE * TILE]);
+        tileStart = new int[tilesX * tilesY + 1];
+    }
+
+    int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    // Renders one frame into out, a width x height array of 0xRRGGBB pixels, over a black
+    // background.
+    void render(float[] xs, float[] ys, byte[] species, int count, int[] palette,
+                double cameraX, double cameraY, double zoom, int[] out) {
+        double scaleX = width * zoom;
+        double scaleY = height * zoom;
+        double offsetX = width / 2.0 - cameraX * scaleX;
+        double offsetY = height / 2.0 - cameraY * scaleY;
+        bin(xs, ys, count, scaleX, scaleY, offsetX, offsetY);
+
+        int tiles = tilesX * tilesY;
+        if (pool == null) {
+            renderTiles(0, tiles, species, palette, out);
+        } else {
+            pool.invoke(new TileTask(this, 0, tiles, species, palette, out));
+        }
+    }
+
+    // Counting sort of particles by the tiles their footprint overlaps, in particle order
+    private void bin(float[] xs, float[] ys, int count, double scaleX, double scaleY, double offsetX, double offsetY) {
+        if (pixelX.length < count) {
+            pixelX = new float[count];
+            pixelY = new float[count];
+        }
+        int[] start = tileStart;
+        Arrays.fill(start, 0);
+        float reach = Math.max(radius, glowRadius) + 1;
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            float fx = (float) (xs[i] * scaleX + offsetX);
+            float fy = (float) (ys[i] * scaleY + offsetY);
+            pixelX[i] = fx;
+            pixelY[i] = fy;
+            if (fx + reach < 0 || fy + reach < 0 || fx - reach >= width || fy - reach >= height) continue;
+            int tx0 = Math.max(0, (int) ((fx - reach) / TILE));
+            int tx1 = Math.min(tilesX - 1, (int) ((fx + reach) / TILE));
+            int ty0 = Math.max(0, (int) ((fy - reach) / TILE));
+            int ty1 = Math.min(tilesY - 1, (int) ((fy + reach) / TILE));
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    start[ty * tilesX + tx + 1]++;
+                    total++;
+                }
+            }
+        }
+        for (int t = 1; t < start.length; t++) {
+            start[t] += start[t - 1];
+        }
+        if (binned.length < total) {
+            binned = new int[Math.max(total, binned.length * 3 / 2)];
+        }
+        // Fill using start[t] as the cursor of tile t, which leaves it at the start of tile t + 1
+        for (int i = 0; i < count; i++) {
+            float fx = pixelX[i];
+            float fy = pixelY[i];
+            if (fx + reach < 0 || fy + reach < 0 || fx - reach >= width || fy - reach >= height) continue;
+            int tx0 = Math.max(0, (int) ((fx - reach) / TILE));
+            int tx1 = Math.min(tilesX - 1, (int) ((fx + reach) / TILE));
+            int ty0 = Math.max(0, (int) ((fy - reach) / TILE));
+            int ty1 = Math.min(tilesY - 1, (int) ((fy + reach) / TILE));
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    binned[start[ty * tilesX + tx]++] = i;
+                }
+            }
+        }
+        // Shift the cursors back by one tile
+        for (int t = start.length - 1; t > 0; t--) {
+            start[t] = start[t - 1];
+        }
+        start[0] = 0;
+    }
+
+    private void renderTiles(int from, int to, byte[] species, int[] palette, int[] out) {
+        int[] sampleBuf = samples.get();
+        float[] haloBuf = halo.get();
+        for (int t = from; t < to; t++) {
+            renderTile(t, species, palette, out, sampleBuf, haloBuf);
+        }
+    }
+
+    private void renderTile(int t, byte[] species, int[] palette, int[] out, int[] sampleBuf, float[] haloBuf) {
+        int x0 = (t % tilesX) * TILE;
+        int y0 = (t / tilesX) * TILE;
+        int w = Math.min(TILE, width - x0);
+        int h = Math.min(TILE, height - y0);
+        int s = supersample;
+        int sw = w * s;
+        int sh = h * s;
+        int first = tileStart[t];
+        int last = tileStart[t + 1];
+
+        // Discs, at sample resolution; -1 marks an empty sample. Later particles paint over
+        // earlier ones, as on screen.
+        Arrays.fill(sampleBuf, 0, sw * sh, -1);
+        float r = radius * s;
+        float r2 = r * r;
+        for (int k = first; k < last; k++) {
+            int i = binned[k];
+            float cx = (pixelX[i] - x0) * s;
+            float cy = (pixelY[i] - y0) * s;
+            int rgb = palette[species[i]];
+            int sy0 = Math.max(0, (int) Math.ceil(cy - r - 0.5f));
+            int sy1 = Math.min(sh - 1, (int) Math.floor(cy + r - 0.5f));
+            for (int sy = sy0; sy <= sy1; sy++) {
+                float dy = sy + 0.5f - cy;
+                float half = (float) Math.sqrt(Math.max(0, r2 - dy * dy));
+                int sx0 = Math.max(0, (int) Math.ceil(cx - half - 0.5f));
+                int sx1 = Math.min(sw - 1, (int) Math.floor(cx + half - 0.5f));
+                int row = sy * sw;
+                for (int sx = sx0; sx <= sx1; sx++) {
+                    sampleBuf[row + sx] = rgb;
+                }
+            }
+        }
+
+        // Halos, at pixel resolution, centred on the particle's pixel
+        int g = glowRadius;
+        if (g > 0) {
+            Arrays.fill(haloBuf, 0, 3 * w * h, 0f);
+            int kw = 2 * g + 1;
+            for (int k = first; k < last; k++) {
+                int i = binned[k];
+                int px = (int) Math.floor(pixelX[i]) - x0;
+                int py = (int) Math.floor(pixelY[i]) - y0;
+                int rgb = palette[species[i]];
+                float red = (rgb >>> 16 & 0xFF) / 255f;
+                float green = (rgb >>> 8 & 0xFF) / 255f;
+                float blue = (rgb & 0xFF) / 255f;
+                int yFrom = Math.max(0, py - g);
+                int yTo = Math.min(h - 1, py + g);
+                int xFrom = Math.max(0, px - g);
+                int xTo = Math.min(w - 1, px + g);
+                for (int y = yFrom; y <= yTo; y++) {
+                    int kRow = (y - py + g) * kw + g - px;
+                    int at = 3 * y * w;
+                    for (int x = xFrom; x <= xTo; x++) {
+                        float weight = glowKernel[kRow + x];
+                        int p = at + 3 * x;
+                        haloBuf[p] += red * weight;
+                        haloBuf[p + 1] += green * weight;
+                        haloBuf[p + 2] += blue * weight;
+                    }
+                }
+            }
+        }
+
+        // Resolve: average the samples of each pixel, add the halo and clamp
+        float norm = 1f / (s * s);
+        for (int y = 0; y < h; y++) {
+            int outRow = (y0 + y) * width + x0;
+            for (int x = 0; x < w; x++) {
+                int red = 0, green = 0, blue = 0;
+                for (int sy = y * s; sy < (y + 1) * s; sy++) {
+                    int row = sy * sw;
+                    for (int sx = x * s; sx < (x + 1) * s; sx++) {
+                        int rgb = sampleBuf[row + sx];
+                        if (rgb < 0) continue;
+                        red += rgb >>> 16 & 0xFF;
+                        green += rgb >>> 8 & 0xFF;
+                        blue += rgb & 0xFF;
+                    }
+                }
+                float fr = red * norm;
+                float fg = green * norm;
+                float fb = blue * norm;
+                if (g > 0) {
+                    int p = 3 * (y * w + x);
+                    fr += 255 * haloBuf[p];
+                    fg += 255 * haloBuf[p + 1];
+                    fb += 255 * haloBuf[p + 2];
+                }
+                out[outRow + x] = (Math.min(255, (int) (fr + 0.5f)) << 16)
+                        | (Math.min(255, (int) (fg + 0.5f)) << 8)
+                        | Math.min(255, (int) (fb + 0.5f));
+            }
+        }
+    }
+
+    // Gaussian with sigma a third of the radius, so it has faded to about 1% at the edge
+    private static float[] gaussian(int radius, float strength) {
+        int kw = 2 * radius + 1;
+        float[] kernel = new float[kw * kw];
+        if (radius == 0) return kernel;
+        double sigma = radius / 3.0;
+        for (int y = -radius; y <= radius; y++) {
+            for (int x = -radius; x <= radius; x++) {
+                double d2 = x * x + y * y;
+                kernel[(y + radius) * kw + x + radius] = d2 > radius * radius ? 0
+                        : (float) (strength * Math.exp(-d2 / (2 * sigma * sigma)));
+            }
+        }
+        return kernel;
+    }
+
+    @SuppressWarnings("serial")
+    private static final class TileTask extends RecursiveAction {
+        private final TileRasterizer rasterizer;
+        private final int from;
+        private final int to;
+        private final byte[] species;
+        private final int[] palette;
+        private final int[] out;
+
+        TileTask(TileRasterizer rasterizer, int from, int to, byte[] species, int[] palette, int[] out) {
+            this.rasterizer = rasterizer;
+            this.from = from;
+            this.to = to;
+            this.species = species;
+            this.palette = palette;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 4) {
+                rasterizer.renderTiles(from, to, species, palette, out);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            TileTask left = new TileTask(rasterizer, from, mid, species, palette, out);
+            left.fork();
+            new TileTask(rasterizer, mid, to, species, palette, out).compute();
+            left.join();
+        }
+    }
+}
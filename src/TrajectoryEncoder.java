@@ -0,0 +1,138 @@
+import java.nio.ByteBuffer;
+
+// Quantizes engine frames and encodes them as TrajectoryFile keyframes and deltas. Deltas are
+// taken against the last frame encoded, whichever kind it was. Shared by the TrajectoryRecorder
+// and the FrameServer; not thread-safe, so it belongs to whoever steps the engine.
+class TrajectoryEncoder {
+    private boolean started;
+    private int count;
+    private SimulationEngine.BoundaryMode mode;
+    private float originX, originY, spanX, spanY;
+    private char[] lastX = new char[0];
+    private char[] lastY = new char[0];
+    private byte[] lastSpecies = new byte[0];
+
+    // The captured frame
+    private long step;
+    private int n;
+    private SimulationEngine.BoundaryMode captureMode;
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private byte[] species = new byte[0];
+
+    // Copies the engine's current positions and species as the frame to encode next.
+    void capture(SimulationEngine engine) {
+        n = engine.getParticleCount();
+        if (xs.length < n) {
+            xs = new float[n];
+            ys = new float[n];
+            species = new byte[n];
+        }
+        engine.copyPositions(xs, ys);
+        engine.copySpecies(species);
+        step = engine.getStepCount();
+        captureMode = engine.getBoundaryMode();
+    }
+
+    int getCount() {
+        return n;
+    }
+
+    // Whether the captured frame cannot be expressed as a delta at all: nothing was encoded yet,
+    // or the particle count, boundary mode or species changed. Leaving the INFINITE bounds is
+    // only found while encoding, by encodeDelta() returning false.
+    boolean needsKeyframe() {
+        if (!started || n != count || captureMode != mode) return true;
+        for (int i = 0; i < n; i++) {
+            if (species[i] != lastSpecies[i]) return true;
+        }
+        return false;
+    }
+
+    // Encodes the captured frame as a keyframe. With keepBounds the quantization bounds of the
+    // previous keyframe are reused, so a keyframe and a delta of the same frame decode to the
+    // same positions; otherwise they are fitted to the frame.
+    void encodeKeyframe(ByteBuffer buf, boolean keepBounds) {
+        if (!keepBounds) {
+            fitBounds();
+        }
+        mode = captureMode;
+        started = true;
+        if (lastX.length < n) {
+            lastX = new char[xs.length];
+            lastY = new char[xs.length];
+            lastSpecies = new byte[xs.length];
+        }
+        count = n;
+
+        buf.put(TrajectoryFile.KEYFRAME);
+        int lengthAt = buf.position();
+        buf.putInt(0);
+        buf.putLong(step);
+        buf.putInt(n).putFloat(originX).putFloat(originY).putFloat(spanX).putFloat(spanY);
+        buf.put(species, 0, n);
+        System.arraycopy(species, 0, lastSpecies, 0, n);
+        for (int i = 0; i < n; i++) {
+            char q = (char) TrajectoryFile.quantize(xs[i], originX, spanX);
+            lastX[i] = q;
+            buf.putChar(q);
+        }
+        for (int i = 0; i < n; i++) {
+            char q = (char) TrajectoryFile.quantize(ys[i], originY, spanY);
+            lastY[i] = q;
+            buf.putChar(q);
+        }
+        buf.putInt(lengthAt, buf.position() - lengthAt - 4);
+    }
+
+    // Encodes the captured frame as a delta. Returns false, writing nothing and leaving the
+    // previous frame untouched, when a particle left the bounds.
+    boolean encodeDelta(ByteBuffer buf) {
+        if (mode == SimulationEngine.BoundaryMode.INFINITE) {
+            for (int i = 0; i < n; i++) {
+                float x = xs[i];
+                float y = ys[i];
+                if (x < originX || x >= originX + spanX || y < originY || y >= originY + spanY) {
+                    return false;
+                }
+            }
+        }
+        buf.put(TrajectoryFile.DELTA);
+        int lengthAt = buf.position();
+        buf.putInt(0);
+        buf.putLong(step);
+        for (int i = 0; i < n; i++) {
+            int qx = TrajectoryFile.quantize(xs[i], originX, spanX);
+            int qy = TrajectoryFile.quantize(ys[i], originY, spanY);
+            TrajectoryFile.putDelta(buf, (short) (qx - lastX[i]));
+            TrajectoryFile.putDelta(buf, (short) (qy - lastY[i]));
+            lastX[i] = (char) qx;
+            lastY[i] = (char) qy;
+        }
+        buf.putInt(lengthAt, buf.position() - lengthAt - 4);
+        return true;
+    }
+
+    private void fitBounds() {
+        if (captureMode == SimulationEngine.BoundaryMode.INFINITE && n > 0) {
+            // Padded bounding box, so particles can drift a while before forcing a new keyframe
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                minX = Math.min(minX, xs[i]);
+                maxX = Math.max(maxX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            spanX = Math.max(1e-3f, (maxX - minX) * 1.5f);
+            spanY = Math.max(1e-3f, (maxY - minY) * 1.5f);
+            originX = (minX + maxX - spanX) / 2;
+            originY = (minY + maxY - spanY) / 2;
+        } else {
+            originX = 0;
+            originY = 0;
+            spanX = 1;
+            spanY = 1;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.nio.ByteBuffer;
+
+// Layout of trajectory recordings written by TrajectoryRecorder and read by TrajectoryReader.
+// Everything is little-endian.
+//
+//   Header (32 bytes)
+//     int     magic "PLTR"
+//     int     format version
+//     int     species count
+//     int     boundary mode (BoundaryMode ordinal) at the start of the recording
+//     int     keyframe interval, in frames
+//     int     steps between recorded frames
+//     double  aspect
+//
+//   Frames, back to back
+//     byte    type, KEYFRAME or DELTA
+//     int     length of the rest of the frame
+//     long    step count
+//     keyframe: int count, float originX, originY, spanX, spanY, byte species[count],
+//               then x[count] and y[count] as unsigned 16-bit fixed point
+//     delta:    per particle, the change of x then y since the previous frame as a
+//               zigzag varint (usually one byte each)
+//
+//   Trailer, written on close
+//     per keyframe: int frame number, long step, long file offset
+//     int keyframes, int frames, long trailer offset, int magic "PLTI"
+//
+// Positions are quantized to 65536 steps over the keyframe's bounds, which are the unit square
+// in WRAP and CLOSED mode and the padded bounding box in INFINITE mode; the error is at most
+// half a step (7.6e-6 of the unit domain). Deltas wrap around at 16 bits, so particles crossing
+// a periodic boundary stay small. A keyframe is written every keyframe interval frames and
+// whenever the particle count, species or bounds change.
+final class TrajectoryFile {
+    static final int MAGIC = 0x52544C50;
+    static final int TRAILER_MAGIC = 0x49544C50;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int FRAME_HEADER_BYTES = 1 + 4 + 8;
+    static final int KEYFRAME_FIXED_BYTES = 4 + 4 * 4;
+    static final int TRAILER_ENTRY_BYTES = 4 + 8 + 8;
+    static final int TRAILER_TAIL_BYTES = 4 + 4 + 8 + 4;
+
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+
+    static final int QUANT_STEPS = 1 << 16;
+
+    private TrajectoryFile() {
+    }
+
+    // Largest encoded size of a frame with n particles
+    static int maxFrameBytes(int n) {
+        return FRAME_HEADER_BYTES + Math.max(KEYFRAME_FIXED_BYTES + 5 * n, 6 * n);
+    }
+
+    static void putHeader(ByteBuffer buf, int speciesCount, SimulationEngine.BoundaryMode mode,
+                          int keyframeInterval, int recordEvery, double aspect) {
+        buf.putInt(MAGIC)
+           .putInt(VERSION)
+           .putInt(speciesCount)
+           .putInt(mode.ordinal())
+           .putInt(keyframeInterval)
+           .putInt(recordEvery)
+           .putDouble(aspect);
+    }
+
+    static int quantize(float v, float origin, float span) {
+        int q = (int) ((v - origin) / span * QUANT_STEPS);
+        return q < 0 ? 0 : (q >= QUANT_STEPS ? QUANT_STEPS - 1 : q);
+    }
+
+    // Centre of the quantization step
+    static float dequantize(int q, float origin, float span) {
+        return origin + (q + 0.5f) * (span / QUANT_STEPS);
+    }
+
+    static void putDelta(ByteBuffer buf, int delta) {
+        int z = (delta << 1) ^ (delta >> 31);
+        while ((z & ~0x7F) != 0) {
+            buf.put((byte) ((z & 0x7F) | 0x80));
+            z >>>= 7;
+        }
+        buf.put((byte) z);
+    }
+
+    static int getDelta(ByteBuffer buf) {
+        int z = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buf.get();
+            z |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (z >>> 1) ^ -(z & 1);
+    }
+}
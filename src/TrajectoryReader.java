@@ -0,0 +1,278 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Streams frames back from a TrajectoryFile. Frames are read one at a time from the channel, so
+// memory use does not depend on the length of the recording. Seeking starts from the nearest
+// keyframe at or before the target, taken from the trailer index; recordings that were never
+// closed have no trailer, and the index is rebuilt by skipping through the frame headers.
+class TrajectoryReader implements Closeable {
+    private final FileChannel channel;
+    private final int speciesCount;
+    private final SimulationEngine.BoundaryMode boundaryMode;
+    private final int keyframeInterval;
+    private final int recordEvery;
+    private final double aspect;
+
+    // Keyframe index: frame number and file offset per keyframe
+    private int[] keyFrames = new int[0];
+    private long[] keyOffsets = new long[0];
+    private int keyframeCount;
+    private int frameCount;
+    private long dataEnd;
+
+    private ByteBuffer buf = ByteBuffer.allocate(0);
+    private long position;
+    private int frame = -1;
+
+    // Current frame
+    private long step;
+    private int count;
+    private float originX, originY, spanX, spanY;
+    private char[] qx = new char[0];
+    private char[] qy = new char[0];
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private byte[] species = new byte[0];
+
+    TrajectoryReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, TrajectoryFile.HEADER_BYTES);
+            if (header.getInt() != TrajectoryFile.MAGIC) {
+                throw new IOException(file + ": not a particle life trajectory");
+            }
+            int version = header.getInt();
+            if (version != TrajectoryFile.VERSION) {
+                throw new IOException(file + ": unsupported trajectory version " + version);
+            }
+            speciesCount = header.getInt();
+            int mode = header.getInt();
+            if (mode < 0 || mode >= SimulationEngine.BoundaryMode.values().length) {
+                throw new IOException(file + ": corrupt trajectory header");
+            }
+            boundaryMode = SimulationEngine.BoundaryMode.values()[mode];
+            keyframeInterval = header.getInt();
+            recordEvery = header.getInt();
+            aspect = header.getDouble();
+            if (!readTrailer()) {
+                scanFrames();
+            }
+            position = TrajectoryFile.HEADER_BYTES;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int getSpeciesCount() {
+        return speciesCount;
+    }
+
+    SimulationEngine.BoundaryMode getBoundaryMode() {
+        return boundaryMode;
+    }
+
+    int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    int getRecordEvery() {
+        return recordEvery;
+    }
+
+    double getAspect() {
+        return aspect;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    // Index of the current frame, -1 before the first next()
+    int getFrame() {
+        return frame;
+    }
+
+    long getStep() {
+        return step;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    // Decoded positions and species of the current frame; the first getCount() entries are valid.
+    float[] getPositionsX() {
+        return xs;
+    }
+
+    float[] getPositionsY() {
+        return ys;
+    }
+
+    byte[] getSpecies() {
+        return species;
+    }
+
+    // Decodes the next frame. Returns false at the end of the recording.
+    boolean next() throws IOException {
+        if (frame + 1 >= frameCount || position >= dataEnd) return false;
+        ByteBuffer head = read(position, TrajectoryFile.FRAME_HEADER_BYTES);
+        byte type = head.get();
+        int length = head.getInt();
+        long frameStep = head.getLong();
+        ByteBuffer body = read(position + TrajectoryFile.FRAME_HEADER_BYTES, length - 8);
+        if (type == TrajectoryFile.KEYFRAME) {
+            decodeKeyframe(body);
+        } else if (frame < 0) {
+            throw new IOException("trajectory does not start with a keyframe");
+        } else {
+            decodeDelta(body);
+        }
+        step = frameStep;
+        position += 1 + 4 + length;
+        frame++;
+        return true;
+    }
+
+    // Positions the reader on the given frame, decoding forward from the closest keyframe.
+    void seek(int target) throws IOException {
+        if (target < 0 || target >= frameCount) {
+            throw new IllegalArgumentException("frame " + target + " of " + frameCount);
+        }
+        if (target < frame || frame < 0 || target - frame > keyframeInterval) {
+            int k = Arrays.binarySearch(keyFrames, 0, keyframeCount, target);
+            if (k < 0) k = -k - 2;
+            if (k < 0) {
+                throw new IOException("no keyframe before frame " + target);
+            }
+            position = keyOffsets[k];
+            frame = keyFrames[k] - 1;
+        }
+        while (frame < target && next()) {
+            // Decode forward
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void decodeKeyframe(ByteBuffer body) {
+        int n = body.getInt();
+        originX = body.getFloat();
+        originY = body.getFloat();
+        spanX = body.getFloat();
+        spanY = body.getFloat();
+        if (qx.length < n) {
+            qx = new char[n];
+            qy = new char[n];
+            xs = new float[n];
+            ys = new float[n];
+            species = new byte[n];
+        }
+        body.get(species, 0, n);
+        for (int i = 0; i < n; i++) {
+            qx[i] = body.getChar();
+        }
+        for (int i = 0; i < n; i++) {
+            qy[i] = body.getChar();
+        }
+        count = n;
+        dequantize();
+    }
+
+    private void decodeDelta(ByteBuffer body) {
+        for (int i = 0; i < count; i++) {
+            qx[i] = (char) (qx[i] + TrajectoryFile.getDelta(body));
+            qy[i] = (char) (qy[i] + TrajectoryFile.getDelta(body));
+        }
+        dequantize();
+    }
+
+    private void dequantize() {
+        for (int i = 0; i < count; i++) {
+            xs[i] = TrajectoryFile.dequantize(qx[i], originX, spanX);
+            ys[i] = TrajectoryFile.dequantize(qy[i], originY, spanY);
+        }
+    }
+
+    private boolean readTrailer() throws IOException {
+        long size = channel.size();
+        if (size < TrajectoryFile.HEADER_BYTES + TrajectoryFile.TRAILER_TAIL_BYTES) return false;
+        ByteBuffer tail = read(size - TrajectoryFile.TRAILER_TAIL_BYTES, TrajectoryFile.TRAILER_TAIL_BYTES);
+        int keys = tail.getInt();
+        int frames = tail.getInt();
+        long trailerStart = tail.getLong();
+        if (tail.getInt() != TrajectoryFile.TRAILER_MAGIC || keys < 0 || trailerStart < TrajectoryFile.HEADER_BYTES
+                || trailerStart + (long) keys * TrajectoryFile.TRAILER_ENTRY_BYTES
+                        + TrajectoryFile.TRAILER_TAIL_BYTES != size) {
+            return false;
+        }
+        ByteBuffer entries = read(trailerStart, keys * TrajectoryFile.TRAILER_ENTRY_BYTES);
+        for (int i = 0; i < keys; i++) {
+            int frameNumber = entries.getInt();
+            entries.getLong();
+            addKeyframe(frameNumber, entries.getLong());
+        }
+        frameCount = frames;
+        dataEnd = trailerStart;
+        return true;
+    }
+
+    // Walks the frame headers of a recording without a trailer. A torn last frame is ignored.
+    private void scanFrames() throws IOException {
+        long size = channel.size();
+        long at = TrajectoryFile.HEADER_BYTES;
+        int frames = 0;
+        while (at + TrajectoryFile.FRAME_HEADER_BYTES <= size) {
+            ByteBuffer head = read(at, TrajectoryFile.FRAME_HEADER_BYTES);
+            byte type = head.get();
+            int length = head.getInt();
+            long end = at + 1 + 4 + length;
+            if (length < 8 || end > size || (type != TrajectoryFile.KEYFRAME && type != TrajectoryFile.DELTA)) break;
+            if (type == TrajectoryFile.KEYFRAME) {
+                addKeyframe(frames, at);
+            }
+            frames++;
+            at = end;
+        }
+        frameCount = frames;
+        dataEnd = at;
+    }
+
+    private void addKeyframe(int frameNumber, long offset) {
+        if (keyframeCount == keyFrames.length) {
+            int capacity = Math.max(16, keyframeCount * 2);
+            keyFrames = Arrays.copyOf(keyFrames, capacity);
+            keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+        }
+        keyFrames[keyframeCount] = frameNumber;
+        keyOffsets[keyframeCount] = offset;
+        keyframeCount++;
+    }
+
+    // Reads bytes [offset, offset + length) into the reused buffer.
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (buf.capacity() < length) {
+            buf = ByteBuffer.allocate(Math.max(length, buf.capacity() * 3 / 2));
+        }
+        buf.clear();
+        buf.limit(length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("unexpected end of trajectory at " + (offset + buf.position()));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Records a run as a TrajectoryFile. onStep() is called by whoever steps the engine; it quantizes
+// and encodes the frame into a pooled buffer and hands it to a writer thread. The pool is bounded:
+// when the disk falls behind and no buffer is free the frame is dropped, never waited for, and the
+// next recorded frame becomes a keyframe so the delta chain stays intact.
+class TrajectoryRecorder {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final int recordEvery;
+    private final int keyframeInterval;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile IOException failure;
+
+    // Encoder state, owned by the stepping thread
+    private final TrajectoryEncoder encoder = new TrajectoryEncoder();
+    private boolean headerWritten;
+    private boolean needKeyframe = true;
+    private int framesSinceKeyframe;
+    private long stepsSinceFrame;
+
+    // Writer state
+    private long offset;
+    private volatile int framesWritten;
+    private final List<long[]> keyframes = new ArrayList<>();
+
+    private volatile long framesDropped;
+    private volatile long bytesWritten;
+
+    TrajectoryRecorder(Path file, int recordEvery, int keyframeInterval, int bufferedFrames) throws IOException {
+        if (recordEvery < 1 || keyframeInterval < 1 || bufferedFrames < 1) {
+            throw new IllegalArgumentException("recordEvery, keyframeInterval and bufferedFrames must be positive");
+        }
+        this.recordEvery = recordEvery;
+        this.keyframeInterval = keyframeInterval;
+        free = new ArrayBlockingQueue<>(bufferedFrames + 1);
+        filled = new ArrayBlockingQueue<>(bufferedFrames + 2);
+        for (int i = 0; i <= bufferedFrames; i++) {
+            free.add(ByteBuffer.allocate(0));
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writer = new Thread(this::drain, "trajectory-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    long getFramesWritten() {
+        return framesWritten;
+    }
+
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // Call after every engine step, from the thread that steps it.
+    void onStep(SimulationEngine engine) {
+        if (!headerWritten) {
+            if (!writeHeader(engine)) return;
+            headerWritten = true;
+            stepsSinceFrame = recordEvery;
+        }
+        if (++stepsSinceFrame < recordEvery) return;
+
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            framesDropped++;
+            needKeyframe = true;
+            return;
+        }
+        stepsSinceFrame = 0;
+
+        encoder.capture(engine);
+        int n = encoder.getCount();
+        if (buf.capacity() < TrajectoryFile.maxFrameBytes(n)) {
+            buf = ByteBuffer.allocate(TrajectoryFile.maxFrameBytes(n) * 5 / 4);
+        }
+        buf.clear();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        boolean keyframe = needKeyframe || framesSinceKeyframe + 1 >= keyframeInterval
+                || encoder.needsKeyframe() || !encoder.encodeDelta(buf);
+        if (keyframe) {
+            buf.clear();
+            encoder.encodeKeyframe(buf, false);
+            needKeyframe = false;
+            framesSinceKeyframe = 0;
+        } else {
+            framesSinceKeyframe++;
+        }
+        buf.flip();
+        filled.add(buf);
+    }
+
+    // Flushes queued frames, writes the keyframe index and closes the file.
+    void close() throws IOException {
+        try {
+            filled.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing trajectory", e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private boolean writeHeader(SimulationEngine engine) {
+        ByteBuffer buf = free.poll();
+        if (buf == null) return false;
+        if (buf.capacity() < TrajectoryFile.HEADER_BYTES) {
+            buf = ByteBuffer.allocate(TrajectoryFile.HEADER_BYTES);
+        }
+        buf.clear();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        TrajectoryFile.putHeader(buf, engine.getSpeciesCount(), engine.getBoundaryMode(),
+                keyframeInterval, recordEvery, engine.getAspect());
+        buf.flip();
+        filled.add(buf);
+        return true;
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer buf = filled.take();
+                if (buf == END) break;
+                if (failure == null) {
+                    write(buf);
+                }
+                free.add(buf);
+            }
+            if (failure == null) {
+                writeTrailer();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+    }
+
+    private void write(ByteBuffer buf) {
+        boolean header = offset == 0;
+        long start = offset;
+        try {
+            while (buf.hasRemaining()) {
+                offset += channel.write(buf);
+            }
+        } catch (IOException e) {
+            failure = e;
+            return;
+        }
+        bytesWritten = offset;
+        if (header) return;
+        if (buf.get(0) == TrajectoryFile.KEYFRAME) {
+            keyframes.add(new long[] {framesWritten, buf.order(ByteOrder.LITTLE_ENDIAN).getLong(5), start});
+        }
+        framesWritten++;
+    }
+
+    private void writeTrailer() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(keyframes.size() * TrajectoryFile.TRAILER_ENTRY_BYTES
+                + TrajectoryFile.TRAILER_TAIL_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] k : keyframes) {
+            buf.putInt((int) k[0]).putLong(k[1]).putLong(k[2]);
+        }
+        buf.putInt(keyframes.size()).putInt(framesWritten).putLong(offset).putInt(TrajectoryFile.TRAILER_MAGIC);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            offset += channel.write(buf);
+        }
+        bytesWritten = offset;
+    }
+}
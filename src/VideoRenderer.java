@@ -0,0 +1,451 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+// Renders a run offline at any resolution, e.g. 4K or 8K frames for publishing, as a PNG
+// sequence or a raw RGB stream:
+//
+//   java -Xmx4g -cp bin VideoRenderer --width 3840 --height 2160 --frames 600 --supersample 2 --glow 0.3 --png frames
+//   java -cp bin VideoRenderer --trajectory run.traj --raw - | ffmpeg -f rawvideo -pix_fmt rgb24 -s 3840x2160 -r 60 -i - run.mp4
+//
+// Frames come from a seeded engine (or a snapshot given with --load), stepped a few steps per
+// frame, or from a recorded trajectory. Three stages overlap, joined by bounded queues over a
+// fixed pool of frame buffers:
+//
+//   main thread    steps the engine and copies out positions
+//   rasterizer     renders the frame with a TileRasterizer, its tiles spread over --threads
+//   encoders       --encoders threads writing PNG files, or converting to RGB bytes and
+//                  appending them to the raw stream in frame order
+//
+// Nothing is dropped: a stage that runs ahead waits for a free buffer.
+public class VideoRenderer {
+
+    // One frame buffer travelling through the pipeline
+    private static final class Frame {
+        final BufferedImage image;
+        final int[] rgb;
+        float[] xs = new float[0];
+        float[] ys = new float[0];
+        byte[] species = new byte[0];
+        int count;
+        int index;
+
+        Frame(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        void ensure(int n) {
+            if (xs.length < n) {
+                xs = new float[n];
+                ys = new float[n];
+                species = new byte[n];
+            }
+        }
+    }
+
+    private static final Frame END = new Frame(1, 1);
+
+    private final BlockingQueue<Frame> free;
+    private final BlockingQueue<Frame> toRaster;
+    private final BlockingQueue<Frame> toEncode;
+    private final TileRasterizer rasterizer;
+    private final int[] palette;
+    private final double cameraX, cameraY, zoom;
+    private final Path pngDir;
+    private final OutputStream raw;
+    private final int encoders;
+
+    private int nextRawFrame;
+    private volatile Exception failure;
+    private final AtomicLong rasterNanos = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+
+    // Progress, reported as frames leave the pipeline
+    private final AtomicInteger finished = new AtomicInteger();
+    private PrintStream log;
+    private int frames;
+    private long start;
+
+    private VideoRenderer(int width, int height, int buffers, int encoders, TileRasterizer rasterizer, int[] palette,
+                          double cameraX, double cameraY, double zoom, Path pngDir, OutputStream raw) {
+        free = new ArrayBlockingQueue<>(buffers);
+        toRaster = new ArrayBlockingQueue<>(buffers + 1);
+        toEncode = new ArrayBlockingQueue<>(buffers + encoders);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Frame(width, height));
+        }
+        this.rasterizer = rasterizer;
+        this.palette = palette;
+        this.cameraX = cameraX;
+        this.cameraY = cameraY;
+        this.zoom = zoom;
+        this.pngDir = pngDir;
+        this.raw = raw;
+        this.encoders = encoders;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int width = 3840;
+        int height = 2160;
+        // Default: 300 frames from the engine, or the whole trajectory
+        int frames = -1;
+        int stepsPerFrame = 1;
+        int warmup = 0;
+        int particles = 50000;
+        long seed = 42;
+        int species = SimulationEngine.DEFAULT_SPECIES;
+        SimulationEngine.BoundaryMode mode = SimulationEngine.BoundaryMode.WRAP;
+        Path load = null;
+        Path trajectory = null;
+        int simThreads = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int encoders = Math.max(1, threads / 2);
+        int buffers = 0;
+        int supersample = 1;
+        float radius = 0;
+        float glow = 0;
+        int glowRadius = 0;
+        double zoom = 1;
+        double cameraX = 0.5;
+        double cameraY = 0.5;
+        Path pngDir = null;
+        String raw = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--width":
+                    width = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--height":
+                    height = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--frames":
+                    frames = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--steps-per-frame":
+                    stepsPerFrame = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--particles":
+                    particles = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--species":
+                    species = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--mode":
+                    mode = SimulationEngine.BoundaryMode.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--load":
+                    load = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--trajectory":
+                    trajectory = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--sim-threads":
+                    simThreads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--encoders":
+                    encoders = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--buffers":
+                    buffers = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--supersample":
+                    supersample = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--radius":
+                    radius = Float.parseFloat(value(args, ++i, arg));
+                    break;
+                case "--glow":
+                    glow = Float.parseFloat(value(args, ++i, arg));
+                    break;
+                case "--glow-radius":
+                    glowRadius = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--zoom":
+                    zoom = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--camera": {
+                    String[] xy = value(args, ++i, arg).split(",");
+                    cameraX = Double.parseDouble(xy[0]);
+                    cameraY = Double.parseDouble(xy[1]);
+                    break;
+                }
+                case "--png":
+                    pngDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--raw":
+                    raw = value(args, ++i, arg);
+                    break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    usage();
+                    System.exit(2);
+            }
+        }
+        if ((pngDir == null) == (raw == null)) {
+            System.err.println("Give exactly one of --png DIR or --raw FILE");
+            usage();
+            System.exit(2);
+        }
+        // Particle size follows the output: 2 px on a 720-line screen at zoom 1, as in the app
+        if (radius <= 0) {
+            radius = (float) (height / 720.0 * zoom);
+        }
+        if (glowRadius <= 0) {
+            glowRadius = Math.max(2, Math.round(4 * radius));
+        }
+        if (buffers <= 0) {
+            buffers = encoders + 2;
+        }
+        // Progress goes to stderr when the video itself goes to stdout
+        PrintStream log = "-".equals(raw) ? System.err : System.out;
+
+        SimulationEngine engine = null;
+        TrajectoryReader reader = null;
+        int speciesCount;
+        if (trajectory != null) {
+            reader = new TrajectoryReader(trajectory);
+            speciesCount = reader.getSpeciesCount();
+            frames = frames < 0 ? reader.getFrameCount() : Math.min(frames, reader.getFrameCount());
+        } else {
+            engine = new SimulationEngine(seed, species);
+            engine.setBoundaryMode(mode);
+            engine.setAspect((double) width / height);
+            engine.setThreads(simThreads);
+            if (load != null) {
+                SimulationState state = new SimulationState();
+                SnapshotFile.read(load, state);
+                state.applyTo(engine);
+            } else {
+                engine.generateRandomParticles(particles);
+            }
+            engine.step(warmup);
+            speciesCount = engine.getSpeciesCount();
+            if (frames < 0) frames = 300;
+        }
+
+        OutputStream rawOut = null;
+        if (raw != null) {
+            rawOut = "-".equals(raw) ? System.out : new FileOutputStream(raw);
+            rawOut = new BufferedOutputStream(rawOut, 1 << 20);
+        } else {
+            Files.createDirectories(pngDir);
+        }
+        TileRasterizer rasterizer = new TileRasterizer(width, height, supersample, radius, glow, glowRadius, threads);
+        VideoRenderer renderer = new VideoRenderer(width, height, buffers, encoders, rasterizer,
+                ParticleRenderer.speciesPalette(speciesCount), cameraX, cameraY, zoom, pngDir, rawOut);
+        log.printf(Locale.ROOT, "%dx%d, %d frames, %d tiles on %d threads, %dx supersampling, radius %.1f px, glow %.2f"
+                        + " (radius %d px), %d encoders, %d buffers%n",
+                width, height, frames, rasterizer.getTileCount(), threads, supersample, radius, glow,
+                glow > 0 ? glowRadius : 0, encoders, buffers);
+
+        renderer.log = log;
+        renderer.frames = frames;
+        renderer.start = System.nanoTime();
+        Thread rasterThread = new Thread(renderer::rasterize, "rasterizer");
+        rasterThread.start();
+        Thread[] encoderThreads = new Thread[encoders];
+        for (int e = 0; e < encoders; e++) {
+            encoderThreads[e] = new Thread(renderer::encode, "encoder-" + e);
+            encoderThreads[e].start();
+        }
+
+        long stepNanos = 0;
+        int produced = 0;
+        try {
+            for (int f = 0; f < frames && renderer.failure == null; f++) {
+                Frame frame = renderer.free.take();
+                long t0 = System.nanoTime();
+                if (reader != null) {
+                    if (!reader.next()) {
+                        renderer.free.add(frame);
+                        break;
+                    }
+                    int n = reader.getCount();
+                    frame.ensure(n);
+                    System.arraycopy(reader.getPositionsX(), 0, frame.xs, 0, n);
+                    System.arraycopy(reader.getPositionsY(), 0, frame.ys, 0, n);
+                    System.arraycopy(reader.getSpecies(), 0, frame.species, 0, n);
+                    frame.count = n;
+                } else {
+                    if (f > 0) {
+                        engine.step(stepsPerFrame);
+                    }
+                    int n = engine.getParticleCount();
+                    frame.ensure(n);
+                    engine.copyPositions(frame.xs, frame.ys);
+                    engine.copySpecies(frame.species);
+                    frame.count = n;
+                }
+                stepNanos += System.nanoTime() - t0;
+                frame.index = f;
+                renderer.toRaster.put(frame);
+                produced++;
+            }
+        } finally {
+            renderer.toRaster.put(END);
+            rasterThread.join();
+            for (Thread t : encoderThreads) {
+                t.join();
+            }
+            rasterizer.shutdown();
+            if (rawOut != null) {
+                rawOut.flush();
+                if (rawOut != System.out) rawOut.close();
+            }
+            if (reader != null) reader.close();
+        }
+        if (renderer.failure != null) {
+            throw renderer.failure;
+        }
+
+        double seconds = (System.nanoTime() - renderer.start) / 1e9;
+        double perFrame = 1e6 * Math.max(1, produced);
+        double busy = stepNanos + renderer.rasterNanos.get() + renderer.encodeNanos.get();
+        log.printf(Locale.ROOT, "rendered %d frames in %.1f s: %.2f frames/s, %.1f Mpixel/s%n",
+                produced, seconds, produced / seconds, (double) produced * width * height / seconds / 1e6);
+        log.printf(Locale.ROOT, "per frame: %s %.1f ms, raster %.1f ms, encode %.1f ms (summed over %d encoders);"
+                        + " stages overlapped %.2fx%n",
+                reader != null ? "decode" : "step", stepNanos / perFrame, renderer.rasterNanos.get() / perFrame,
+                renderer.encodeNanos.get() / perFrame, encoders, busy / 1e9 / seconds);
+        log.println("output: " + (pngDir != null ? pngDir.resolve("frame_000000.png") + " ..." : raw)
+                + (raw != null ? String.format(" (rgb24, %dx%d)", width, height) : ""));
+    }
+
+    private void rasterize() {
+        try {
+            while (true) {
+                Frame frame = toRaster.take();
+                if (frame == END) break;
+                long t0 = System.nanoTime();
+                try {
+                    if (failure == null) {
+                        rasterizer.render(frame.xs, frame.ys, frame.species, frame.count, palette,
+                                cameraX, cameraY, zoom, frame.rgb);
+                    }
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+                rasterNanos.addAndGet(System.nanoTime() - t0);
+                toEncode.put(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int e = 0; e < encoders; e++) {
+                toEncode.add(END);
+            }
+        }
+    }
+
+    private void encode() {
+        byte[] bytes = new byte[0];
+        try {
+            while (true) {
+                Frame frame = toEncode.take();
+                if (frame == END) break;
+                long t0 = System.nanoTime();
+                try {
+                    if (failure != null) {
+                        // Keep draining so the other stages can finish
+                    } else if (pngDir != null) {
+                        Path file = pngDir.resolve(String.format("frame_%06d.png", frame.index));
+                        if (!ImageIO.write(frame.image, "png", file.toFile())) {
+                            throw new IOException("no PNG writer available");
+                        }
+                    } else {
+                        int[] rgb = frame.rgb;
+                        if (bytes.length < 3 * rgb.length) {
+                            bytes = new byte[3 * rgb.length];
+                        }
+                        for (int p = 0, b = 0; p < rgb.length; p++, b += 3) {
+                            int c = rgb[p];
+                            bytes[b] = (byte) (c >>> 16);
+                            bytes[b + 1] = (byte) (c >>> 8);
+                            bytes[b + 2] = (byte) c;
+                        }
+                        writeInOrder(frame.index, bytes, 3 * rgb.length);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+                encodeNanos.addAndGet(System.nanoTime() - t0);
+                free.put(frame);
+                int done = finished.incrementAndGet();
+                if (done % Math.max(1, frames / 10) == 0) {
+                    log.printf(Locale.ROOT, "%d / %d frames, %.2f frames/s%n",
+                            done, frames, done / ((System.nanoTime() - start) / 1e9));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Raw frames are converted in parallel but must reach the stream in order
+    private void writeInOrder(int index, byte[] bytes, int length) throws IOException, InterruptedException {
+        synchronized (this) {
+            while (nextRawFrame != index && failure == null) {
+                wait();
+            }
+            if (failure != null) return;
+        }
+        raw.write(bytes, 0, length);
+        synchronized (this) {
+            nextRawFrame++;
+            notifyAll();
+        }
+    }
+
+    // Records the first failure and keeps the pipeline draining, so every thread can finish
+    private void fail(Exception e) {
+        synchronized (this) {
+            if (failure == null) failure = e;
+            notifyAll();
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java VideoRenderer (--png DIR | --raw FILE|-) [--width W] [--height H]");
+        System.out.println("                          [--frames N] [--steps-per-frame K] [--warmup W]");
+        System.out.println("                          [--particles N] [--seed S] [--species M]");
+        System.out.println("                          [--mode WRAP|CLOSED|INFINITE] [--load FILE] [--trajectory FILE]");
+        System.out.println("                          [--sim-threads T] [--threads T] [--encoders E] [--buffers B]");
+        System.out.println("                          [--supersample S] [--radius PX] [--glow G] [--glow-radius PX]");
+        System.out.println("                          [--zoom Z] [--camera X,Y]");
+    }
+}